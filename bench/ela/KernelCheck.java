@@ -0,0 +1,286 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Checks the table-driven, branchless difference and mask kernels against the scalar loop
+ * they replaced, which scaled every band with ScaleBand() and masked with a compare. Every
+ * largest difference 0-255 is covered, with thresholds at and around the edges of the
+ * 0-765 sum range plus the int extremes, masked and unmasked. The scale tables are also
+ * checked at their ends: difference 0 maps to 0, everything past the largest difference to
+ * 255, and identical images (largest difference 0) give an all-zero table. Color and gray JPEGs decoded
+ * through the pooled readers are checked against ImageIO.read(), pixels and ELA outputs.
+ * It lives in package ela to reach the package-private kernels. Run with "ant bench-check".
+ *
+ * @author Robert Streetman
+ */
+public class KernelCheck {
+    private static final int[] THRESHOLDS = {Integer.MIN_VALUE, -766, -2, -1, 0, 1, 2, 25, 254, 255,
+        256, 382, 383, 510, 763, 764, 765, 766, 767, 1000, Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+    private static final int[] MASK_COLORS = {0xFF00FF, 0xFFFF00FF, 0x00000000, 0xFFFFFFFF};
+    private static final int PAD = 3;     //Pixels left untouched at each end of the range
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws IOException {
+        //Every pair of red/green differences in both directions, blue varied with them and
+        //alpha bits set so masking has to drop them
+        int n = 2 * 256 * 256 + 2 * PAD;
+        int[] original = new int[n];
+        int[] comp = new int[n];
+        
+        for (int i = PAD; i < n - PAD; i++) {
+            int k = i - PAD;
+            int dr = (k >> 8) & 0xff;
+            int dg = k & 0xff;
+            int db = (dr * 7 + dg * 13) & 0xff;
+            int d = (dr << 16) | (dg << 8) | db;
+            
+            if (k < 256 * 256) {
+                original[i] = 0xA5FFFFFF;
+                comp[i] = 0x5AFFFFFF - d;
+            } else {
+                original[i] = 0xA5000000;
+                comp[i] = 0x5A000000 | d;
+            }
+        }
+        
+        for (int maxDiff = 0; maxDiff <= 255; maxDiff++) {
+            double scale = ELA.Scale(maxDiff);
+            int[] table = ELA.ScaleTable(scale);
+            CheckTableEdges(table, maxDiff);
+            
+            for (int d = 0; d < 256; d++) {
+                if (table[d] != ELA.ScaleBand(d, scale)) {
+                    failures++;
+                    Fail("ScaleTable maxDiff %d: table[%d] = %d, ScaleBand = %d", maxDiff, d, table[d],
+                            ELA.ScaleBand(d, scale));
+                }
+            }
+            
+            int[] expectedDiff = new int[n];
+            ReferenceDifference(original, comp, expectedDiff, scale);
+            
+            //Unmasked
+            int[] diff = Sentinel(n);
+            ELA.DifferenceRange(original, comp, diff, null, table, 0, Integer.MAX_VALUE, PAD, n - PAD);
+            Compare("DifferenceRange unmasked", maxDiff, 0, 0, expectedDiff, diff);
+            
+            //Masked, at every threshold and mask color
+            for (int threshold : THRESHOLDS) {
+                for (int color : MASK_COLORS) {
+                    CheckMasked(original, comp, expectedDiff, table, scale, maxDiff, threshold, color);
+                }
+            }
+        }
+        
+        //Every threshold across the sum range, at the largest difference where sums reach 765
+        double scale = ELA.Scale(255);
+        int[] table = ELA.ScaleTable(scale);
+        int[] expectedDiff = new int[n];
+        ReferenceDifference(original, comp, expectedDiff, scale);
+        
+        for (int threshold = -2; threshold <= 767; threshold++) {
+            CheckMasked(original, comp, expectedDiff, table, scale, 255, threshold, 0xFF00FF);
+        }
+        
+        CheckDecode(BufferedImage.TYPE_3BYTE_BGR);
+        CheckDecode(BufferedImage.TYPE_BYTE_GRAY);
+        
+        if (failures > 0) {
+            System.out.format("KernelCheck: %d mismatches%n", failures);
+            System.exit(1);
+        }
+        
+        System.out.format("KernelCheck: kernels match the scalar reference, pooled decodes match ImageIO%n");
+    }
+    
+    /**
+     * Checks the ends and shape of a scale table, which the comparison with ScaleBand() can't
+     * catch if both are wrong the same way. Like the original loop, scaling truncates, so the
+     * largest difference lands on 254 when 255.0 / maxDiff * maxDiff falls just short of 255.
+     */
+    private static void CheckTableEdges(int[] table, int maxDiff) {
+        int top = (maxDiff > 0) ? 255 : 0;
+        
+        if (table.length != 256 || table[0] != 0 || table[255] != top || table[maxDiff] < top - 1) {
+            failures++;
+            Fail("ScaleTable maxDiff %d: table[0] = %d, table[%d] = %d, table[255] = %d", maxDiff, table[0],
+                    maxDiff, table[maxDiff], table[255]);
+            return;
+        }
+        
+        for (int d = 1; d < 256; d++) {
+            if (table[d] < table[d - 1] || table[d] > 255 || (d > maxDiff && table[d] != top)) {
+                failures++;
+                Fail("ScaleTable maxDiff %d: table[%d] = %d after %d", maxDiff, d, table[d], table[d - 1]);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Decodes a JPEG of the given type through the pooled paths and compares the image and
+     * its ELA outputs with ImageIO.read(). The pool's INPUT image and the handed-in
+     * destination are BGR images of the JPEG's size, as a previous color image leaves them.
+     */
+    private static void CheckDecode(int type) throws IOException {
+        int width = 333;
+        int height = 250;
+        BufferedImage source = new BufferedImage(width, height, type);
+        
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                source.setRGB(c, r, ((c * 255 / width) << 16) | ((r * 255 / height) << 8) | ((c * r * 7) & 0xff));
+            }
+        }
+        
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(source, "jpg", jpeg);
+        String name = (type == BufferedImage.TYPE_BYTE_GRAY) ? "gray JPEG" : "color JPEG";
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(jpeg.toByteArray()));
+        
+        BufferPool pool = BufferPool.Local();
+        pool.Image(BufferPool.Slot.INPUT, width, height);
+        
+        try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg.toByteArray()))) {
+            CompareDecode(name + " via ImageUtils.Read", expected, ImageUtils.Read(in, pool));
+        }
+        
+        try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg.toByteArray()))) {
+            CompareDecode(name + " via JPEGCodecs.Read", expected,
+                    JPEGCodecs.Read(in, new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR)));
+        }
+    }
+    
+    private static void CompareDecode(String path, BufferedImage expected, BufferedImage actual) {
+        if (actual.getType() != expected.getType()) {
+            failures++;
+            Fail("%s: image type %d, ImageIO.read gives %d", path, actual.getType(), expected.getType());
+            return;
+        }
+        
+        int[] maskColor = Pixel.MAGENTA.RGB();
+        ELAImages want = ELA.GetDifferenceAndMask(expected, ELA.GetCompressedImage(expected, 0.95f), maskColor, 25);
+        ELAImages got = ELA.GetDifferenceAndMask(actual, ELA.GetCompressedImage(actual, 0.95f), maskColor, 25);
+        Compare(path + " pixels", 0, 0, 0, Pixels(expected), Pixels(actual));
+        Compare(path + " difference", 0, 25, 0, Pixels(want.Difference()), Pixels(got.Difference()));
+        Compare(path + " masked", 0, 25, 0, Pixels(want.Masked()), Pixels(got.Masked()));
+    }
+    
+    private static int[] Pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+    
+    /**
+     * Checks the masked DifferenceRange and MaskRange against the reference at one threshold.
+     */
+    private static void CheckMasked(int[] original, int[] comp, int[] expectedDiff, int[] table,
+            double scale, int maxDiff, int threshold, int color) {
+        int n = original.length;
+        int[] expectedMasked = Sentinel(n);
+        
+        for (int i = PAD; i < n - PAD; i++) {
+            int p = expectedDiff[i];
+            int sum = ((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff);
+            expectedMasked[i] = (sum > threshold) ? color : (original[i] & 0xffffff);
+        }
+        
+        int[] diff = Sentinel(n);
+        int[] masked = Sentinel(n);
+        ELA.DifferenceRange(original, comp, diff, masked, table, color, threshold, PAD, n - PAD);
+        Compare("DifferenceRange diff", maxDiff, threshold, color, expectedDiff, diff);
+        Compare("DifferenceRange masked", maxDiff, threshold, color, expectedMasked, masked);
+        
+        //MaskRange reads the difference back, with alpha bits it must ignore
+        int[] mask = new int[n];
+        
+        for (int i = 0; i < n; i++) {
+            mask[i] = expectedDiff[i] | (i << 24);
+        }
+        
+        int[] result = Sentinel(n);
+        ImageUtils.MaskRange(original, mask, result, color, threshold, PAD, n - PAD);
+        Compare("MaskRange", maxDiff, threshold, color, expectedMasked, result);
+    }
+    
+    /**
+     * The difference loop the kernels replaced.
+     */
+    private static void ReferenceDifference(int[] original, int[] comp, int[] diff, double scale) {
+        int n = original.length;
+        
+        for (int i = 0; i < n; i++) {
+            if (i < PAD || i >= n - PAD) {
+                diff[i] = SentinelValue(i);
+                continue;
+            }
+            
+            int o = original[i];
+            int c = comp[i];
+            int dr = ELA.ScaleBand(Math.abs(((o >> 16) & 0xff) - ((c >> 16) & 0xff)), scale);
+            int dg = ELA.ScaleBand(Math.abs(((o >> 8) & 0xff) - ((c >> 8) & 0xff)), scale);
+            int db = ELA.ScaleBand(Math.abs((o & 0xff) - (c & 0xff)), scale);
+            diff[i] = (dr << 16) | (dg << 8) | db;
+        }
+    }
+    
+    /**
+     * Returns an array filled with values the kernels never write, so writes outside
+     * [from, to) show up as mismatches.
+     */
+    private static int[] Sentinel(int n) {
+        int[] a = new int[n];
+        
+        for (int i = 0; i < n; i++) {
+            a[i] = SentinelValue(i);
+        }
+        
+        return a;
+    }
+    
+    private static int SentinelValue(int i) {
+        return 0x7E000000 | i;
+    }
+    
+    private static void Compare(String kernel, int maxDiff, int threshold, int color, int[] expected,
+            int[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                if (failures++ < 20) {
+                    Fail("%s maxDiff %d threshold %d color %08X: pixel %d expected %08X, got %08X",
+                            kernel, maxDiff, threshold, color, i, expected[i], actual[i]);
+                }
+                
+                return;
+            }
+        }
+    }
+    
+    private static void Fail(String format, Object... args) {
+        System.out.format("KernelCheck: Error: " + format + "%n", args);
+    }
+}
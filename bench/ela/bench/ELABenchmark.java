@@ -0,0 +1,190 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela.bench;
+
+import ela.BufferPool;
+import ela.ELA;
+import ela.ELAImages;
+import ela.ImageUtils;
+import ela.Pixel;
+import ela.RGBRaster;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the ELA hot paths on synthetic images, so they run offline. Run with
+ * "ant bench", which adds the GC profiler for allocation rates.
+ * 
+ * @author Robert Streetman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ELABenchmark {
+    private static final int THRESHOLD = 25;
+    private static final int[] MASK = Pixel.MAGENTA.RGB();
+    
+    @Param({"1", "12", "50"})
+    public int megapixels;
+    
+    @Param({"0.95", "0.75"})
+    public float quality;
+    
+    private BufferedImage image;
+    private BufferedImage compressed;
+    private BufferedImage difference;
+    private int[][][] rgbArray;
+    private RGBRaster rgbPacked;
+    
+    @Setup(Level.Trial)
+    public void Setup() {
+        //4:3 camera-like frame of the requested size
+        int width = (int) Math.sqrt(megapixels * 1e6 * 4 / 3);
+        int height = width * 3 / 4;
+        
+        image = SyntheticImage(width, height, 85);
+        compressed = ELA.GetCompressedImage(image, quality);
+        difference = ELA.GetDifferenceImage(image, compressed);
+        rgbArray = ImageUtils.RGBArray(image);
+        rgbPacked = ImageUtils.RGBPacked(difference);
+    }
+    
+    /**
+     * Builds a smooth gradient with low-amplitude noise and a pasted noisier rectangle, so
+     * recompression produces realistic, non-uniform error levels.
+     */
+    static BufferedImage SyntheticImage(int width, int height, long seed) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(seed);
+        int[] row = new int[width];
+        
+        for (int r = 0; r < height; r++) {
+            boolean inPatch = r > height / 3 && r < height / 2;
+            
+            for (int c = 0; c < width; c++) {
+                int noise = (inPatch && c > width / 3 && c < width / 2) ? 48 : 8;
+                int red = (c * 255 / width + random.nextInt(noise)) & 0xff;
+                int green = (r * 255 / height + random.nextInt(noise)) & 0xff;
+                int blue = ((c + r) * 127 / (width + height) + random.nextInt(noise)) & 0xff;
+                row[c] = (red << 16) | (green << 8) | blue;
+            }
+            
+            img.setRGB(0, r, width, 1, row, 0, width);
+        }
+        
+        return img;
+    }
+    
+    @Benchmark
+    public int[][][] RGBArray() {
+        return ImageUtils.RGBArray(image);
+    }
+    
+    @Benchmark
+    public RGBRaster RGBPacked() {
+        return ImageUtils.RGBPacked(image);
+    }
+    
+    @Benchmark
+    public BufferedImage RGBImgArray() {
+        return ImageUtils.RGBImg(rgbArray);
+    }
+    
+    @Benchmark
+    public BufferedImage RGBImgPacked() {
+        return ImageUtils.RGBImg(rgbPacked);
+    }
+    
+    @Benchmark
+    public BufferedImage GetCompressedImage() {
+        return ELA.GetCompressedImage(image, quality);
+    }
+    
+    @Benchmark
+    public BufferedImage GetDifferenceImage() {
+        return ELA.GetDifferenceImage(image, compressed);
+    }
+    
+    @Benchmark
+    public BufferedImage MaskImages() {
+        return ImageUtils.MaskImages(image, difference, MASK, THRESHOLD);
+    }
+    
+    @Benchmark
+    public ELAImages GetDifferenceAndMask() {
+        return ELA.GetDifferenceAndMask(image, compressed, MASK, THRESHOLD);
+    }
+    
+    /**
+     * Whole per-image pipeline as run in directory mode, with the outputs encoded to memory
+     * instead of disk.
+     */
+    @Benchmark
+    public int EndToEnd() throws IOException {
+        BufferedImage comp = ELA.GetCompressedImage(image, quality);
+        ELAImages output = ELA.GetDifferenceAndMask(image, comp, MASK, THRESHOLD);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        
+        ImageIO.write(output.Difference(), "jpg", encoded);
+        ImageIO.write(output.Masked(), "jpg", encoded);
+        
+        return encoded.size();
+    }
+    
+    /**
+     * EndToEnd() with every image-sized buffer taken from the thread's BufferPool, as
+     * FileELATask runs it. Compare the two with -prof gc.
+     */
+    @Benchmark
+    public int EndToEndPooled() throws IOException {
+        BufferPool pool = BufferPool.Local();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage comp = ELA.GetCompressedImage(image, quality, pool.Image(BufferPool.Slot.COMPRESSED, width, height));
+        RGBRaster difference = pool.Raster(BufferPool.Slot.DIFFERENCE, width, height);
+        RGBRaster masked = pool.Raster(BufferPool.Slot.MASKED, width, height);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        
+        ELA.GetDifferenceAndMask(ImageUtils.RGBPacked(image, pool.Raster(BufferPool.Slot.ORIGINAL_PIXELS, width, height)),
+                ImageUtils.RGBPacked(comp, pool.Raster(BufferPool.Slot.COMPRESSED_PIXELS, width, height)),
+                MASK, THRESHOLD, 1, difference, masked);
+        ImageIO.write(ImageUtils.BGRImg(difference, pool.Image(BufferPool.Slot.ENCODE, width, height)), "jpg", encoded);
+        ImageIO.write(ImageUtils.BGRImg(masked, pool.Image(BufferPool.Slot.ENCODE, width, height)), "jpg", encoded);
+        
+        return encoded.size();
+    }
+}
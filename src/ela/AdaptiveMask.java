@@ -0,0 +1,76 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * This class holds the outcome of adaptive masking: the masked image, and the connected
+ * regions of the pixels it marked, found in the same run.
+ * 
+ * @author Robert Streetman
+ */
+public class AdaptiveMask {
+    public static final String CSV_HEADER = "x,y,width,height,pixels";
+    
+    private final BufferedImage MASKED;
+    private final long PIXELS;
+    private final long PIXELS_OVER;
+    private final int REGION_COUNT;
+    private final List<Region> REGIONS;
+    
+    AdaptiveMask(BufferedImage masked, long pixels, long pixelsOver, int regionCount, List<Region> regions) {
+        MASKED = masked;
+        PIXELS = pixels;
+        PIXELS_OVER = pixelsOver;
+        REGION_COUNT = regionCount;
+        REGIONS = regions;
+    }
+    
+    public BufferedImage Masked() {
+        return MASKED;
+    }
+    
+    /**
+     * Returns the fraction of pixels marked as changed.
+     * 
+     * @return  Fraction of marked pixels, 0-1
+     */
+    public double FractionOver() {
+        return (PIXELS > 0) ? (double) PIXELS_OVER / PIXELS : 0.0;
+    }
+    
+    /**
+     * Returns the number of connected regions of marked pixels.
+     * 
+     * @return  Number of regions, including those not in Regions()
+     */
+    public int RegionCount() {
+        return REGION_COUNT;
+    }
+    
+    /**
+     * Returns the largest connected regions of marked pixels.
+     * 
+     * @return  Regions, largest first
+     */
+    public List<Region> Regions() {
+        return REGIONS;
+    }
+}
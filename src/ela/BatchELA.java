@@ -0,0 +1,113 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs ELA tasks on a fixed pool of worker threads. Submission blocks once the
+ * bounded queue is full, so only a limited number of images are decoded at once no matter
+ * how many files are fed in.
+ * 
+ * @author Robert Streetman
+ */
+public class BatchELA {
+    private final ExecutorService EXECUTOR;
+    private final Semaphore SLOTS;      //Running + queued tasks allowed at once
+    private final BatchTally TALLY = new BatchTally();
+    
+    /**
+     * Creates a batch with one worker per available core and a queue twice that size.
+     */
+    public BatchELA() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Creates a batch with the given number of workers and a queue twice that size.
+     * 
+     * @param threads   Number of worker threads
+     */
+    public BatchELA(int threads) {
+        this(threads, threads * 2);
+    }
+    
+    /**
+     * Creates a batch with the given number of workers and queue capacity.
+     * 
+     * @param threads       Number of worker threads
+     * @param queueCapacity Number of tasks allowed to wait for a free worker
+     */
+    public BatchELA(int threads, int queueCapacity) {
+        EXECUTOR = Executors.newFixedThreadPool(threads);
+        SLOTS = new Semaphore(threads + queueCapacity);
+    }
+    
+    /**
+     * Queues a task, blocking while the queue is full.
+     * 
+     * @param task  Task to run
+     * @throws InterruptedException If interrupted while waiting for room in the queue
+     */
+    public void Submit(final FileELATask task) throws InterruptedException {
+        SLOTS.acquire();
+        
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long startTime = System.nanoTime();
+                    
+                    try {
+                        TALLY.Record(task.call());
+                    } catch (Throwable ex) {
+                        //Tasks report exceptions themselves, this is an Error (e.g. out of memory)
+                        ELAResult result = ELAResult.Failed(task.FileName(), ex.toString(), System.nanoTime() - startTime);
+                        TALLY.Record(result);
+                        RuntimeStats.Global().Finished(result);
+                    } finally {
+                        SLOTS.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            SLOTS.release();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Stops accepting tasks, waits for all queued tasks to finish and summarizes the batch.
+     * 
+     * @return  Summary of the finished batch
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public BatchSummary AwaitCompletion() throws InterruptedException {
+        EXECUTOR.shutdown();
+        
+        while (!EXECUTOR.awaitTermination(1, TimeUnit.SECONDS)) {
+            //Keep waiting, a large batch can take hours
+        }
+        
+        return TALLY.Summary();
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.util.List;
+
+/**
+ * This class summarizes a finished batch: how many images were processed, which failed,
+ * and how long it took.
+ * 
+ * @author Robert Streetman
+ */
+public class BatchSummary {
+    private final int PROCESSED;
+    private final int CACHED;
+    private final List<ELAResult> FAILURES;
+    private final long WALL_NS;
+    
+    BatchSummary(int processed, int cached, List<ELAResult> failures, long wallTime) {
+        PROCESSED = processed;
+        CACHED = cached;
+        FAILURES = failures;
+        WALL_NS = wallTime;
+    }
+    
+    public int Processed() {
+        return PROCESSED;
+    }
+    
+    /**
+     * Returns how many of the processed images were restored from the result cache.
+     * 
+     * @return  Number of cache hits
+     */
+    public int Cached() {
+        return CACHED;
+    }
+    
+    public List<ELAResult> Failures() {
+        return FAILURES;
+    }
+    
+    public long WallNanos() {
+        return WALL_NS;
+    }
+    
+    /**
+     * Returns the throughput of the batch.
+     * 
+     * @return  Images processed per second of wall time
+     */
+    public double ImagesPerSecond() {
+        return (WALL_NS > 0) ? PROCESSED / (WALL_NS / 1e9) : 0.0;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d images (%d cached), %d failed in %d ms (%.2f images/sec)", PROCESSED,
+                CACHED, FAILURES.size(), WALL_NS / 1000000, ImagesPerSecond());
+    }
+}
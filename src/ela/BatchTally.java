@@ -0,0 +1,48 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class counts the results of a running batch so they can be summarized at the end.
+ * It is shared by the worker threads, so every method is synchronized.
+ * 
+ * @author Robert Streetman
+ */
+class BatchTally {
+    private final long START_NS = System.nanoTime();
+    private final List<ELAResult> FAILURES = new ArrayList<>();
+    private int processed = 0;
+    private int cached = 0;
+    
+    synchronized void Record(ELAResult result) {
+        processed++;
+        
+        if (result.FromCache()) {
+            cached++;
+        } else if (!result.Success()) {
+            FAILURES.add(result);
+        }
+    }
+    
+    synchronized BatchSummary Summary() {
+        return new BatchSummary(processed, cached, new ArrayList<>(FAILURES), System.nanoTime() - START_NS);
+    }
+}
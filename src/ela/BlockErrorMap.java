@@ -0,0 +1,265 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class holds an error level per 8x8 pixel block: the RMS difference per RGB band
+ * between an image and its recompressed version. It is what the DCT-domain estimate
+ * produces, and the pixel-domain path can produce one for comparison.
+ * 
+ * @author Robert Streetman
+ */
+public class BlockErrorMap {
+    public static final int BLOCK = 8;
+    
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final int BLOCKS_WIDE;
+    private final int BLOCKS_HIGH;
+    private final float[] ERRORS;
+    
+    /**
+     * Creates a map over an image of the given size.
+     * 
+     * @param width     Image width in pixels
+     * @param height    Image height in pixels
+     * @param errors    RMS error per block, row by row, ceil(width/8) x ceil(height/8)
+     */
+    BlockErrorMap(int width, int height, float[] errors) {
+        WIDTH = width;
+        HEIGHT = height;
+        BLOCKS_WIDE = (width + BLOCK - 1) / BLOCK;
+        BLOCKS_HIGH = (height + BLOCK - 1) / BLOCK;
+        ERRORS = errors;
+    }
+    
+    public int Width() {
+        return WIDTH;
+    }
+    
+    public int Height() {
+        return HEIGHT;
+    }
+    
+    public int BlocksWide() {
+        return BLOCKS_WIDE;
+    }
+    
+    public int BlocksHigh() {
+        return BLOCKS_HIGH;
+    }
+    
+    public float Error(int bx, int by) {
+        return ERRORS[by * BLOCKS_WIDE + bx];
+    }
+    
+    public float[] Errors() {
+        return ERRORS;
+    }
+    
+    public double Mean() {
+        double sum = 0;
+        
+        for (float e : ERRORS) {
+            sum += e;
+        }
+        
+        return sum / ERRORS.length;
+    }
+    
+    public double Max() {
+        float max = 0;
+        
+        for (float e : ERRORS) {
+            max = Math.max(max, e);
+        }
+        
+        return max;
+    }
+    
+    /**
+     * Returns the block error below which the given share of blocks fall.
+     * 
+     * @param pct   Percentile, 0-100
+     * @return      Block error at that percentile
+     */
+    public double Percentile(double pct) {
+        float[] sorted = ERRORS.clone();
+        Arrays.sort(sorted);
+        
+        return sorted[Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(sorted.length * pct / 100.0) - 1))];
+    }
+    
+    /**
+     * Renders the map at image size, each block a flat gray level scaled so the largest
+     * error is white, like the difference image.
+     * 
+     * @return  Grayscale image of the map
+     */
+    public BufferedImage ToImage() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        double max = Max();
+        double scale = (max > 0) ? 255.0 / max : 0;
+        
+        for (int r = 0; r < HEIGHT; r++) {
+            int row = (r / BLOCK) * BLOCKS_WIDE;
+            
+            for (int c = 0; c < WIDTH; c++) {
+                pixels[r * WIDTH + c] = (byte) Math.min(255, (int) (ERRORS[row + c / BLOCK] * scale));
+            }
+        }
+        
+        return image;
+    }
+    
+    /**
+     * Returns the Pearson correlation of this map's block errors with another map's.
+     * 
+     * @param other Map of the same image size
+     * @return      Correlation, -1 to 1, or NaN if either map is constant
+     */
+    public double Correlation(BlockErrorMap other) {
+        return pearson(ERRORS, other.ERRORS);
+    }
+    
+    /**
+     * Returns the Spearman rank correlation of this map's block errors with another map's,
+     * i.e. how well this map orders blocks from least to most suspicious.
+     * 
+     * @param other Map of the same image size
+     * @return      Rank correlation, -1 to 1
+     */
+    public double RankCorrelation(BlockErrorMap other) {
+        return pearson(ranks(ERRORS), ranks(other.ERRORS));
+    }
+    
+    /**
+     * Returns the share of the other map's top blocks that are also among this map's top
+     * blocks, i.e. how many of the blocks a pre-screen should flag it actually flags.
+     * 
+     * @param other Map of the same image size
+     * @param pct   Top share of blocks compared, e.g. 10 for the top 10%
+     * @return      Overlap, 0-1
+     */
+    public double TopOverlap(BlockErrorMap other, double pct) {
+        int n = Math.max(1, (int) Math.round(ERRORS.length * pct / 100.0));
+        boolean[] mine = top(ERRORS, n);
+        boolean[] theirs = top(other.ERRORS, n);
+        int both = 0;
+        
+        for (int i = 0; i < mine.length; i++) {
+            both += (mine[i] && theirs[i]) ? 1 : 0;
+        }
+        
+        return both / (double) n;
+    }
+    
+    private static double pearson(float[] a, float[] b) {
+        double meanA = 0;
+        double meanB = 0;
+        
+        for (int i = 0; i < a.length; i++) {
+            meanA += a[i];
+            meanB += b[i];
+        }
+        
+        meanA /= a.length;
+        meanB /= b.length;
+        double cov = 0;
+        double varA = 0;
+        double varB = 0;
+        
+        for (int i = 0; i < a.length; i++) {
+            double da = a[i] - meanA;
+            double db = b[i] - meanB;
+            cov += da * db;
+            varA += da * da;
+            varB += db * db;
+        }
+        
+        return cov / Math.sqrt(varA * varB);
+    }
+    
+    /**
+     * Ranks values from 0, ties getting their average rank.
+     */
+    private static float[] ranks(float[] values) {
+        Integer[] order = new Integer[values.length];
+        
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        
+        final float[] v = values;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer x, Integer y) {
+                return Float.compare(v[x], v[y]);
+            }
+        });
+        
+        float[] ranks = new float[values.length];
+        
+        for (int i = 0; i < order.length; ) {
+            int j = i;
+            
+            while (j + 1 < order.length && values[order[j + 1]] == values[order[i]]) {
+                j++;
+            }
+            
+            for (int k = i; k <= j; k++) {
+                ranks[order[k]] = (i + j) / 2f;
+            }
+            
+            i = j + 1;
+        }
+        
+        return ranks;
+    }
+    
+    private static boolean[] top(float[] values, int n) {
+        boolean[] flagged = new boolean[values.length];
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+        float cut = sorted[sorted.length - n];
+        int count = 0;
+        
+        //Strictly above the cut first, then ties until n are flagged
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] > cut) {
+                flagged[i] = true;
+                count++;
+            }
+        }
+        
+        for (int i = 0; i < values.length && count < n; i++) {
+            if (values[i] == cut) {
+                flagged[i] = true;
+                count++;
+            }
+        }
+        
+        return flagged;
+    }
+}
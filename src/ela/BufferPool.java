@@ -0,0 +1,171 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * This class hands out reusable image buffers to the thread that owns it, so a worker
+ * analyzing one image after another stops allocating image-sized arrays once it has seen
+ * the first image of a size. Each slot holds one buffer, kept while the requested
+ * dimensions stay the same and replaced when they change.
+ * 
+ * A buffer stays valid until its slot is requested again, so images built on pooled
+ * buffers must not be handed to another thread or kept past the current image.
+ * 
+ * @author Robert Streetman
+ */
+public final class BufferPool {
+    
+    /**
+     * What a pooled buffer is used for, one buffer per slot.
+     */
+    public enum Slot {
+        INPUT, COMPRESSED, ORIGINAL_PIXELS, COMPRESSED_PIXELS, DIFFERENCE, MASKED, ENCODE
+    }
+    
+    private static final ThreadLocal<BufferPool> LOCAL = new ThreadLocal<BufferPool>() {
+        @Override
+        protected BufferPool initialValue() {
+            return new BufferPool();
+        }
+    };
+    
+    private final int[][] PIXELS = new int[Slot.values().length][];
+    private final BufferedImage[] IMAGES = new BufferedImage[Slot.values().length];
+    private final OffHeapPixels[] OFF_HEAP = new OffHeapPixels[Slot.values().length];
+    private final ReusableByteStream ENCODE_BUFFER = new ReusableByteStream();
+    private long allocated;
+    
+    private BufferPool() {
+    }
+    
+    /**
+     * Returns the calling thread's pool.
+     * 
+     * @return  Pool owned by the current thread
+     */
+    public static BufferPool Local() {
+        return LOCAL.get();
+    }
+    
+    /**
+     * Returns a packed raster of the given size on the slot's pixel array. The pixels are
+     * whatever the previous user left in them.
+     * 
+     * @param slot      Buffer to use
+     * @param width     Width in pixels
+     * @param height    Height in pixels
+     * @return          Raster backed by the pooled array
+     */
+    public RGBRaster Raster(Slot slot, int width, int height) {
+        int[] pixels = PIXELS[slot.ordinal()];
+        
+        //Same pixel count is enough, a portrait image reuses the landscape buffer
+        if (pixels == null || pixels.length != width * height) {
+            pixels = new int[width * height];
+            PIXELS[slot.ordinal()] = pixels;
+            allocated += 4L * pixels.length;
+        }
+        
+        return new RGBRaster(width, height, pixels);
+    }
+    
+    /**
+     * Returns the slot's TYPE_3BYTE_BGR image, the layout the JPEG decoder produces and the
+     * encoder reads fastest, for use as a decode destination or encode source.
+     * 
+     * @param slot      Buffer to use
+     * @param width     Width in pixels
+     * @param height    Height in pixels
+     * @return          Pooled image of exactly that size
+     */
+    public BufferedImage Image(Slot slot, int width, int height) {
+        BufferedImage image = IMAGES[slot.ordinal()];
+        
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            IMAGES[slot.ordinal()] = image;
+            allocated += 3L * width * height;
+        }
+        
+        return image;
+    }
+    
+    /**
+     * Returns the slot's off-heap pixel store, kept while it is large enough and of the same
+     * kind, so a batch of huge images doesn't allocate or map a new store for each.
+     * 
+     * @param slot          Buffer to use
+     * @param length        Pixels needed
+     * @param scratchDir    Directory for a memory-mapped store, or null for direct memory
+     * @return              Store of at least length pixels
+     * @throws IOException  If a scratch file can't be created or mapped
+     */
+    OffHeapPixels OffHeap(Slot slot, long length, File scratchDir) throws IOException {
+        OffHeapPixels store = OFF_HEAP[slot.ordinal()];
+        
+        if (store == null || store.Length() < length || !Objects.equals(store.ScratchDir(), scratchDir)) {
+            if (store != null) {
+                store.close();
+            }
+            
+            store = new OffHeapPixels(length, scratchDir);
+            OFF_HEAP[slot.ordinal()] = store;
+        }
+        
+        return store;
+    }
+    
+    /**
+     * Returns the thread's buffer for in-memory JPEG encoding, grown to the largest image
+     * seen.
+     */
+    ReusableByteStream EncodeBuffer() {
+        return ENCODE_BUFFER;
+    }
+    
+    /**
+     * Bytes of heap image buffers this pool has allocated so far, the encode buffer and
+     * off-heap stores excluded.
+     * Stays flat once the pool is warm.
+     * 
+     * @return  Allocated bytes
+     */
+    public long Allocated() {
+        return allocated;
+    }
+    
+    /**
+     * Drops every pooled buffer, e.g. after an unusually large image.
+     */
+    public void Clear() {
+        for (int i = 0; i < PIXELS.length; i++) {
+            PIXELS[i] = null;
+            IMAGES[i] = null;
+            
+            if (OFF_HEAP[i] != null) {
+                OFF_HEAP[i].close();
+                OFF_HEAP[i] = null;
+            }
+        }
+    }
+}
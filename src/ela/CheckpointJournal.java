@@ -0,0 +1,150 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class records which input files a batch has finished, one absolute path per line,
+ * so a killed run can be restarted and skip them. Each line is flushed as soon as its image
+ * is done, so at most the images in flight are redone.
+ * 
+ * Earlier runs' paths are held as sorted 64-bit hashes rather than strings, which keeps a
+ * journal of millions of files to a few MB of heap.
+ * 
+ * @author Robert Streetman
+ */
+public class CheckpointJournal implements Closeable {
+    private final BufferedWriter OUT;
+    private final long[] DONE;          //Sorted hashes of paths finished by earlier runs
+    
+    /**
+     * Opens a journal, loading what earlier runs finished and appending to it.
+     * 
+     * @param path  Journal file, created if missing
+     * @throws IOException  If the file can't be read or opened for appending
+     */
+    public CheckpointJournal(Path path) throws IOException {
+        long[] done = new long[1024];
+        int count = 0;
+        
+        if (Files.exists(path)) {
+            try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                
+                while ((line = in.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    
+                    if (count == done.length) {
+                        done = Arrays.copyOf(done, count * 2);
+                    }
+                    
+                    done[count++] = hash(line);
+                }
+            }
+        }
+        
+        DONE = Arrays.copyOf(done, count);
+        Arrays.sort(DONE);
+        boolean torn = endsMidLine(path);
+        OUT = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        
+        //A run killed mid-write leaves a partial line, don't glue the next path onto it
+        if (torn) {
+            OUT.newLine();
+        }
+    }
+    
+    /**
+     * Returns how many files earlier runs finished.
+     * 
+     * @return  Number of journaled files
+     */
+    public int Size() {
+        return DONE.length;
+    }
+    
+    /**
+     * Checks whether an earlier run finished this file.
+     * 
+     * @param file  Input file
+     * @return      True if the file is in the journal
+     */
+    public boolean Done(Path file) {
+        return Arrays.binarySearch(DONE, hash(key(file))) >= 0;
+    }
+    
+    /**
+     * Records a finished file.
+     * 
+     * @param file  Input file
+     * @throws IOException  If the journal can't be written
+     */
+    public synchronized void Completed(Path file) throws IOException {
+        OUT.write(key(file));
+        OUT.newLine();
+        OUT.flush();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        OUT.close();
+    }
+    
+    private static String key(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+    
+    /**
+     * 64-bit FNV-1a, enough that millions of paths won't collide in practice.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        
+        return h;
+    }
+    
+    private static boolean endsMidLine(Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            return false;
+        }
+        
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            file.seek(file.length() - 1);
+            
+            return file.read() != '\n';
+        }
+    }
+}
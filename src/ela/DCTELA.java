@@ -0,0 +1,234 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+import javax.imageio.plugins.jpeg.JPEGQTable;
+
+/**
+ * This class estimates error-level analysis directly from a JPEG's quantized DCT
+ * coefficients, without decoding to pixels or re-encoding. Each coefficient is dequantized
+ * with the file's own table and requantized with the table the JPEG writer would use at
+ * the target quality; the requantization error, summed over a block, equals the pixel error
+ * of that block (the DCT is orthonormal). Rounding between decode and re-encode is modeled
+ * as Gaussian noise on the coefficients. The result is a block-resolution error map, meant
+ * as a fast pre-screen ahead of the pixel-domain ELA.
+ * 
+ * The estimate ignores clipping and the chroma resampling of the real re-encode, so it is a
+ * ranking of blocks more than an exact error level. Compare() measures how well the two
+ * agree on a given image.
+ * 
+ * @author Robert Streetman
+ */
+public class DCTELA {
+    //Squared RGB error per unit squared Y, Cb, Cr error (from the JFIF YCbCr to RGB matrix)
+    private static final double[] YCC_WEIGHTS = { 3.0, 0.344136 * 0.344136 + 1.772 * 1.772,
+            1.402 * 1.402 + 0.714136 * 0.714136 };
+    //Variance of the coefficient noise from the pixel rounding and color conversions
+    //between the original and the re-encoder, fitted on the test/ images
+    private static final double NOISE_VARIANCE = 0.25;
+    
+    public static final String COMPARE_HEADER = "image,blocks,pearson,spearman,top10_overlap,dct_mean,pixel_mean,dct_ms,pixel_ms";
+    
+    /**
+     * Estimates the block error map of recompressing a JPEG file at the given quality.
+     * 
+     * @param jpeg      JPEG file
+     * @param quality   JPEG compression level, generally ~0.95, as for GetCompressedImage
+     * @return          Estimated error per 8x8 block
+     * @throws IOException  If the file can't be read or isn't a supported JPEG (baseline,
+     *                      extended or progressive Huffman, 8-bit, 1 or 3 components)
+     */
+    public static BlockErrorMap Estimate(File jpeg, float quality) throws IOException {
+        return Estimate(JPEGCoefficients.Read(Files.readAllBytes(jpeg.toPath())), quality);
+    }
+    
+    static BlockErrorMap Estimate(JPEGCoefficients jpeg, float quality) throws IOException {
+        int components = jpeg.Components();
+        
+        if (components != 1 && components != 3) {
+            throw new IOException("DCT estimate needs a gray or YCbCr JPEG, got " + components + " components");
+        }
+        
+        int width = jpeg.Width();
+        int height = jpeg.Height();
+        int blocksWide = (width + 7) / 8;
+        int blocksHigh = (height + 7) / 8;
+        double[] mse = new double[blocksWide * blocksHigh];
+        int[][] targets = TargetTables(quality);
+        double[][] expected = ExpectedErrors(targets, NOISE_VARIANCE);
+        
+        for (int c = 0; c < components; c++) {
+            if (jpeg.MaxH() % jpeg.H(c) != 0 || jpeg.MaxV() % jpeg.V(c) != 0) {
+                throw new IOException("Unsupported chroma subsampling");
+            }
+            
+            //A subsampled component's block covers several pixel blocks
+            int sx = jpeg.MaxH() / jpeg.H(c);
+            int sy = jpeg.MaxV() / jpeg.V(c);
+            int[] source = jpeg.QuantTable(c);
+            int[] target = targets[(c == 0) ? 0 : 1];
+            double weight = (components == 1) ? 3.0 : YCC_WEIGHTS[c];
+            short[] coef = jpeg.Coefficients(c);
+            int stride = jpeg.Stride(c);
+            
+            for (int by = 0; by < jpeg.BlocksPerColumn(c); by++) {
+                for (int bx = 0; bx < jpeg.BlocksPerLine(c); bx++) {
+                    double blockMSE = weight * RequantizationError(coef, (by * stride + bx) * 64, source, target,
+                            expected) / 64;
+                    
+                    for (int y = by * sy; y < Math.min(blocksHigh, (by + 1) * sy); y++) {
+                        for (int x = bx * sx; x < Math.min(blocksWide, (bx + 1) * sx); x++) {
+                            mse[y * blocksWide + x] += blockMSE;
+                        }
+                    }
+                }
+            }
+        }
+        
+        float[] errors = new float[mse.length];
+        
+        //Same measure as the pixel map: RMS per RGB band
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = (float) Math.sqrt(mse[i] / 3);
+        }
+        
+        return new BlockErrorMap(width, height, errors);
+    }
+    
+    /**
+     * Returns the luminance and chrominance tables, in natural order, which the JPEG
+     * writer uses at the given quality (the IJG quality scaling of the standard tables).
+     * 
+     * @param quality   JPEG compression level, 0-1
+     * @return          Luminance and chrominance tables
+     */
+    static int[][] TargetTables(float quality) {
+        quality = Math.max(0.01f, Math.min(1f, quality));
+        float scale = (quality < 0.5f) ? 0.5f / quality : 2f - 2f * quality;
+        
+        return new int[][] { JPEGQTable.K1Luminance.getScaledInstance(scale, true).getTable(),
+                JPEGQTable.K2Chrominance.getScaledInstance(scale, true).getTable() };
+    }
+    
+    /**
+     * Sums the expected squared error of requantizing one block's dequantized coefficients
+     * with the target table, looked up in ExpectedErrors().
+     */
+    static double RequantizationError(short[] coef, int offset, int[] source, int[] target, double[][] expected) {
+        double sum = 0;
+        
+        for (int k = 0; k < 64; k++) {
+            int q = target[k];
+            sum += expected[q][Math.floorMod(coef[offset + k] * source[k], q)];
+        }
+        
+        return sum;
+    }
+    
+    /**
+     * Tabulates, for each quantizer step q and offset r of a coefficient from the q grid,
+     * the expected squared error of requantizing it. The re-encoder sees the coefficient
+     * plus the noise of the pixel rounding and color conversion in between, so a
+     * coefficient already on the grid mostly comes back unchanged, while one near a grid
+     * midpoint may go either way. Only the steps used by the given tables are filled in.
+     */
+    static double[][] ExpectedErrors(int[][] tables, double noiseVariance) {
+        double[][] expected = new double[256][];
+        double sigma = Math.sqrt(noiseVariance);
+        
+        for (int[] table : tables) {
+            for (int q : table) {
+                if (expected[q] == null) {
+                    expected[q] = expectedErrors(q, sigma);
+                }
+            }
+        }
+        
+        return expected;
+    }
+    
+    private static double[] expectedErrors(int q, double sigma) {
+        double[] expected = new double[q];
+        
+        for (int r = 0; r < q; r++) {
+            double sum = 0;
+            
+            //The coefficient sits r above grid point 0, sum over the grid points it may round to
+            for (int m = -2; m <= 2; m++) {
+                double low = (m - 0.5) * q - r;
+                double high = (m + 0.5) * q - r;
+                double p = normalCDF(high / sigma) - normalCDF(low / sigma);
+                double err = m * q - r;
+                sum += p * err * err;
+            }
+            
+            expected[r] = sum;
+        }
+        
+        return expected;
+    }
+    
+    /**
+     * Standard normal CDF, Abramowitz and Stegun 7.1.26 (error about 1e-7).
+     */
+    private static double normalCDF(double x) {
+        double z = Math.abs(x) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * z);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027
+                + t * 1.061405429)))) * Math.exp(-z * z);
+        
+        return (x >= 0) ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+    
+    /**
+     * Runs both the DCT estimate and the pixel-domain path on a JPEG and compares their
+     * block maps.
+     * 
+     * @param jpeg      JPEG file
+     * @param quality   JPEG compression level
+     * @return          One CSV line, columns as COMPARE_HEADER
+     * @throws IOException  If either path fails on the file
+     */
+    public static String Compare(File jpeg, float quality) throws IOException {
+        long start = System.nanoTime();
+        BlockErrorMap estimate = Estimate(jpeg, quality);
+        long dctTime = System.nanoTime() - start;
+        
+        start = System.nanoTime();
+        BufferedImage image = ImageIO.read(jpeg);
+        BufferedImage compressed = (image == null) ? null : ELA.GetCompressedImage(image, quality);
+        
+        if (compressed == null) {
+            throw new IOException("Pixel-domain path failed");
+        }
+        
+        BlockErrorMap actual = ELA.GetBlockErrorMap(image, compressed);
+        long pixelTime = System.nanoTime() - start;
+        
+        return String.format(Locale.ROOT, "\"%s\",%d,%.4f,%.4f,%.4f,%.4f,%.4f,%d,%d", jpeg.getName(),
+                estimate.Errors().length, estimate.Correlation(actual), estimate.RankCorrelation(actual),
+                estimate.TopOverlap(actual, 10), estimate.Mean(), actual.Mean(), dctTime / 1000000,
+                pixelTime / 1000000);
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class walks a directory tree and hands each image file to a sink as soon as it is
+ * found, so work starts right away and the listing is never held in memory. A sink that
+ * blocks (e.g. on a full queue) pauses the walk. Extensions match case-insensitively, this
+ * tool's own outputs are skipped, and so are files a checkpoint journal says are done.
+ * 
+ * A file counts as an output only when it is named after an image in the same folder
+ * (x.jpg gives x_difference.jpg, x_masked.png, ...), so images that merely look like
+ * outputs are still analyzed. With --out, the output folder is skipped as a whole.
+ * 
+ * @author Robert Streetman
+ */
+public class DirectoryWalker {
+    //jpg, jpeg, png in any case; outputs are the source's name plus a suffix
+    private static final Pattern IMAGE = Pattern.compile("(?i).*\\.(jpe?g|png)$");
+    private static final Pattern OUTPUT = Pattern.compile("(?i)(.*)_((preview_)?(difference|masked)|(difference|masked)_q\\d+|blocks)\\.(jpe?g|png)$");
+    private static final String[] SOURCE_EXTENSIONS = {"jpg", "jpeg", "png", "JPG", "JPEG", "PNG"};
+    
+    private final CheckpointJournal JOURNAL;
+    private final Path OUTPUT_DIR;
+    private int found = 0;
+    private int skipped = 0;
+    private int outputs = 0;
+    private int unreadable = 0;
+    
+    /**
+     * Receives the image files of a walk, in the order found.
+     */
+    public interface Sink {
+        void Accept(Path file) throws InterruptedException;
+    }
+    
+    /**
+     * Creates a walker.
+     * 
+     * @param journal   Journal of finished files to skip, or null to take every image
+     * @param outputDir Folder the outputs go to, skipped if it is inside the tree, or null
+     */
+    public DirectoryWalker(CheckpointJournal journal, File outputDir) {
+        JOURNAL = journal;
+        OUTPUT_DIR = (outputDir == null) ? null : outputDir.getAbsoluteFile().toPath().normalize();
+    }
+    
+    /**
+     * Checks a file the way the walk does: an image extension, and not one of this tool's
+     * outputs.
+     * 
+     * @param file  Image file
+     * @return      True if the file would be analyzed
+     */
+    static boolean IsImage(Path file) {
+        return IMAGE.matcher(file.getFileName().toString()).matches() && !IsOutput(file);
+    }
+    
+    /**
+     * Checks whether a file is named like an output of an image next to it.
+     * 
+     * @param file  Image file
+     * @return      True if a source image with the name minus the output suffix exists
+     */
+    static boolean IsOutput(Path file) {
+        Matcher output = OUTPUT.matcher(file.getFileName().toString());
+        
+        if (!output.matches()) {
+            return false;
+        }
+        
+        for (String extension : SOURCE_EXTENSIONS) {
+            if (Files.isRegularFile(file.resolveSibling(output.group(1) + "." + extension))) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Walks the tree under root, passing every image file to the sink. Unreadable
+     * directories and files are counted and skipped rather than ending the walk.
+     * 
+     * @param root  Top directory
+     * @param sink  Destination for image files
+     * @throws IOException  If the root can't be walked
+     * @throws InterruptedException If the sink was interrupted, the walk stops there
+     */
+    public void Walk(Path root, final Sink sink) throws IOException, InterruptedException {
+        final InterruptedException[] interrupted = { null };
+        
+        final Path top = root.toAbsolutePath().normalize();
+        
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                Path path = dir.toAbsolutePath().normalize();
+                
+                //Outputs mirror the tree under --out, without sources next to them
+                return (OUTPUT_DIR != null && path.equals(OUTPUT_DIR) && !path.equals(top))
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || !IMAGE.matcher(file.getFileName().toString()).matches()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                if (IsOutput(file)) {
+                    outputs++;
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                found++;
+                
+                if (JOURNAL != null && JOURNAL.Done(file)) {
+                    skipped++;
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                try {
+                    sink.Accept(file);
+                } catch (InterruptedException ex) {
+                    interrupted[0] = ex;
+                    return FileVisitResult.TERMINATE;
+                }
+                
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                unreadable++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        
+        if (interrupted[0] != null) {
+            throw interrupted[0];
+        }
+    }
+    
+    /**
+     * Returns how many image files the walk found, including skipped ones.
+     * 
+     * @return  Image files found
+     */
+    public int Found() {
+        return found;
+    }
+    
+    /**
+     * Returns how many image files were skipped because the journal had them.
+     * 
+     * @return  Image files already done
+     */
+    public int Skipped() {
+        return skipped;
+    }
+    
+    /**
+     * Returns how many outputs of an earlier run were skipped, not counting the output
+     * folder given to the constructor.
+     * 
+     * @return  Output files skipped
+     */
+    public int Outputs() {
+        return outputs;
+    }
+    
+    /**
+     * Returns how many files or directories couldn't be read.
+     * 
+     * @return  Unreadable entries
+     */
+    public int Unreadable() {
+        return unreadable;
+    }
+}
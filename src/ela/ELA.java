@@ -21,13 +21,16 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import javax.imageio.IIOImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriter;
-import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 /**
  * This class holds static methods for performing error-level analysis on image files.
@@ -38,47 +41,94 @@ public class ELA {
     
     /**
      * Send this method a BufferedImage which needs to be compressed to an arbitrary JPEG level.
+     * The image is encoded and decoded entirely in memory, nothing is written to disk.
      * 
      * @param image Source image to compress
      * @param compressionLevel  JPEG compression level, generally ~0.95
      * @return BufferedImage Compressed version of source image
      */
+    public static BufferedImage GetCompressedImage(BufferedImage image, float compressionLevel) {
+        return GetCompressedImage(image, compressionLevel, null);
+    }
+    
+    /**
+     * Compresses the image in memory like GetCompressedImage(), decoding the result into a
+     * caller-supplied image when it has the source's size and a layout the decoder offers
+     * (TYPE_3BYTE_BGR for color images, see BufferPool.Image()).
+     * 
+     * @param image Source image to compress
+     * @param compressionLevel  JPEG compression level, generally ~0.95
+     * @param destination   Image to decode into, or null
+     * @return BufferedImage Compressed version of source image, the destination if it was used
+     */
+    public static BufferedImage GetCompressedImage(BufferedImage image, float compressionLevel,
+            BufferedImage destination) {
+        long startTime = System.nanoTime();
+        BufferedImage compressed = null;
+        ReusableByteStream buffer = BufferPool.Local().EncodeBuffer();
+        buffer.reset();
+        
+        try {
+            //Write re-compressed jpg to memory buffer
+            try (ImageOutputStream imgStream = new MemoryCacheImageOutputStream(buffer)) {
+                JPEGCodecs.Write(image, imgStream, compressionLevel);
+            }
+            
+            //Read re-compressed jpg back from the same buffer
+            try (ImageInputStream inStream = new MemoryCacheImageInputStream(buffer.toInputStream())) {
+                compressed = JPEGCodecs.Read(inStream, destination);
+            }
+        } catch (IOException ex) {
+            System.out.format("GetCompressedImage: Error creating compressed image: %s...%n", ex.getMessage());
+        }
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.RECOMPRESS, startTime);
+        
+        return compressed;
+    }
+    
+    /**
+     * Send this method a BufferedImage which needs to be compressed to an arbitrary JPEG level.
+     * The compressed image is spilled to a temporary file next to fname, use this only for
+     * images whose encoded form is too large to hold on the heap.
+     * 
+     * @param image Source image to compress
+     * @param fname Base name used to place the temporary file
+     * @param compressionLevel  JPEG compression level, generally ~0.95
+     * @return BufferedImage Compressed version of source image
+     */
     //TODO:Add exceptions for bad input
     public static BufferedImage GetCompressedImage(BufferedImage image, String fname, float compressionLevel) {
+        long startTime = System.nanoTime();
         BufferedImage compressed = null;
         
         try {
-            //Easiest to write to file at first, find a way to feed into stream...
-            String tmpName = fname + "_temp.jpg";
-            File writeToFile = new File(tmpName);
-            
-            //Set JPEG compression settings
-            ImageOutputStream imgStream = ImageIO.createImageOutputStream(writeToFile);
-            ImageWriter imgWriter = ImageIO.getImageWritersByFormatName("jpg").next();
-            imgWriter.setOutput(imgStream);
-            
-            JPEGImageWriteParam jpgParams = new JPEGImageWriteParam(null);
-            jpgParams.setCompressionMode(JPEGImageWriteParam.MODE_EXPLICIT);
-            jpgParams.setCompressionQuality(compressionLevel);
-            
-            //Write re-compressed jpg to file.
-            imgWriter.write(null, new IIOImage(image, null, null), jpgParams);
-            imgWriter.dispose();
+            //Unique temp name, so runs on inputs sharing a basename don't collide
+            File base = new File(fname);
+            File writeToFile = File.createTempFile(base.getName() + "_", "_temp.jpg", base.getAbsoluteFile().getParentFile());
             
-            //Read re-compressed jpg to stream
-            compressed = ImageIO.read(new File(tmpName));
-            Path path = Paths.get(tmpName);
-            
-            //Delete re-compressed jpg, not needed
             try {
-                Files.delete(path);
-            } catch (IOException ex) {
-                System.out.format("GetCompressedImage: Error deleting temporary file: %s...%n", ex.getMessage());
-            }            
+                //Write re-compressed jpg to file.
+                try (ImageOutputStream imgStream = ImageIO.createImageOutputStream(writeToFile)) {
+                    JPEGCodecs.Write(image, imgStream, compressionLevel);
+                }
+                
+                //Read re-compressed jpg to stream
+                compressed = ImageIO.read(writeToFile);
+            } finally {
+                //Delete re-compressed jpg, not needed
+                try {
+                    Files.delete(writeToFile.toPath());
+                } catch (IOException ex) {
+                    System.out.format("GetCompressedImage: Error deleting temporary file: %s...%n", ex.getMessage());
+                }
+            }
         } catch (IOException ex) {
             System.out.format("GetCompressedImage: Error creating compressed image: %s...%n", ex.getMessage());
         }
         
+        RuntimeStats.Global().Time(RuntimeStats.Stage.RECOMPRESS, startTime);
+        
         return compressed;
     }
     
@@ -90,49 +140,500 @@ public class ELA {
      * @return BufferedImage    Difference image: each pixel's RGB is the difference between the original & compressed RGB values.
      */
     public static BufferedImage GetDifferenceImage(BufferedImage image, BufferedImage compressed) {
+        return GetDifferenceImage(image, compressed, 1);
+    }
+    
+    /**
+     * Creates a difference image from the original image and the slightly re-compressed image,
+     * splitting the image into row bands processed by up to parallelism threads. The result
+     * is identical to the single-threaded one.
+     * 
+     * @param image             The uncompressed original image
+     * @param compressed        The compressed version of the original
+     * @param parallelism       Number of threads to use for this image, 1 for the calling thread only
+     * @return BufferedImage    Difference image: each pixel's RGB is the difference between the original & compressed RGB values.
+     */
+    public static BufferedImage GetDifferenceImage(BufferedImage image, BufferedImage compressed,
+            int parallelism) {
+        if (image.getHeight() != compressed.getHeight() || image.getWidth() != compressed.getWidth()) {
+            return null;
+        }
+        
+        return GetDifferenceImage(ImageUtils.RGBPacked(image), ImageUtils.RGBPacked(compressed), parallelism,
+                new RGBRaster(image.getWidth(), image.getHeight()));
+    }
+    
+    /**
+     * Creates the difference image from packed rasters, writing it into a caller-supplied
+     * raster, e.g. one from a BufferPool.
+     * 
+     * @param original          Packed pixels of the uncompressed original
+     * @param compressed        Packed pixels of the compressed version
+     * @param parallelism       Number of threads to use for this image, 1 for the calling thread only
+     * @param destination       Raster receiving the difference, the same size as the original
+     * @return BufferedImage    Difference image on the destination's pixels, or null if the sizes don't match
+     */
+    public static BufferedImage GetDifferenceImage(RGBRaster original, RGBRaster compressed, int parallelism,
+            RGBRaster destination) {
         BufferedImage difference = null;
+        int height = original.Height();
+        int width = original.Width();
+        
+        if (height == compressed.Height() && width == compressed.Width()
+                && height == destination.Height() && width == destination.Width()) {
+            Difference(original.Pixels(), compressed.Pixels(), destination.Pixels(), null, 0, Integer.MAX_VALUE,
+                    width, height, parallelism);
+            difference = ImageUtils.RGBImg(destination);
+        }
+        
+        return difference;
+    }
+    
+    /**
+     * Creates both the difference image and the masked image in one traversal of the
+     * original and compressed pixels. Equivalent to GetDifferenceImage() followed by
+     * ImageUtils.MaskImages(), without re-reading the difference image.
+     * 
+     * @param image         The uncompressed original image
+     * @param compressed    The compressed version of the original
+     * @param maskColor     The RGB pixel values desired for the mask color.
+     * @param threshold     Max pixel value (r+g+b) allowed before marking pixel as changed.
+     * @return ELAImages    Difference and masked images, or null if the sizes don't match
+     */
+    public static ELAImages GetDifferenceAndMask(BufferedImage image, BufferedImage compressed,
+            int[] maskColor, int threshold) {
+        return GetDifferenceAndMask(image, compressed, maskColor, threshold, 1);
+    }
+    
+    /**
+     * Creates both the difference image and the masked image in one traversal, splitting the
+     * image into row bands processed by up to parallelism threads.
+     * 
+     * @param image         The uncompressed original image
+     * @param compressed    The compressed version of the original
+     * @param maskColor     The RGB pixel values desired for the mask color.
+     * @param threshold     Max pixel value (r+g+b) allowed before marking pixel as changed.
+     * @param parallelism   Number of threads to use for this image, 1 for the calling thread only
+     * @return ELAImages    Difference and masked images, or null if the sizes don't match
+     */
+    public static ELAImages GetDifferenceAndMask(BufferedImage image, BufferedImage compressed,
+            int[] maskColor, int threshold, int parallelism) {
         int height = image.getHeight();
         int width = image.getWidth();
         
-        if (height == compressed.getHeight() && width == compressed.getWidth()) {
-            int[][][] original = ImageUtils.RGBArray(image);
-            int[][][] comp = ImageUtils.RGBArray(compressed);
-            int[][][] diff = new int[height][width][3];
-            int[] chanMaxDiff = new int[3]; //Keep track of largest difference in each band
+        if (height != compressed.getHeight() || width != compressed.getWidth()) {
+            return null;
+        }
+        
+        return GetDifferenceAndMask(ImageUtils.RGBPacked(image), ImageUtils.RGBPacked(compressed), maskColor,
+                threshold, parallelism, new RGBRaster(width, height), new RGBRaster(width, height));
+    }
+    
+    /**
+     * Creates the difference and masked images from packed rasters in one traversal,
+     * writing them into caller-supplied rasters, e.g. ones from a BufferPool.
+     * 
+     * @param original      Packed pixels of the uncompressed original
+     * @param compressed    Packed pixels of the compressed version
+     * @param maskColor     The RGB pixel values desired for the mask color.
+     * @param threshold     Max pixel value (r+g+b) allowed before marking pixel as changed.
+     * @param parallelism   Number of threads to use for this image, 1 for the calling thread only
+     * @param difference    Raster receiving the difference, the same size as the original
+     * @param masked        Raster receiving the masked original, the same size as the original
+     * @return ELAImages    Images on the destination rasters' pixels, or null if the sizes don't match
+     */
+    public static ELAImages GetDifferenceAndMask(RGBRaster original, RGBRaster compressed, int[] maskColor,
+            int threshold, int parallelism, RGBRaster difference, RGBRaster masked) {
+        ELAImages result = null;
+        int height = original.Height();
+        int width = original.Width();
+        
+        if (maskColor.length == 3 && height == compressed.Height() && width == compressed.Width()
+                && height == difference.Height() && width == difference.Width()
+                && height == masked.Height() && width == masked.Width()) {
+            Difference(original.Pixels(), compressed.Pixels(), difference.Pixels(), masked.Pixels(),
+                    RGBRaster.Pack(maskColor), threshold, width, height, parallelism);
+            result = new ELAImages(ImageUtils.RGBImg(difference), ImageUtils.RGBImg(masked));
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Computes the RMS difference per RGB band of each 8x8 block, the pixel-domain
+     * counterpart of DCTELA.Estimate().
+     * 
+     * @param image         The uncompressed original image
+     * @param compressed    The compressed version of the original
+     * @return              Error per block, or null if the sizes don't match
+     */
+    public static BlockErrorMap GetBlockErrorMap(BufferedImage image, BufferedImage compressed) {
+        int height = image.getHeight();
+        int width = image.getWidth();
+        
+        if (height != compressed.getHeight() || width != compressed.getWidth()) {
+            return null;
+        }
+        
+        return GetBlockErrorMap(ImageUtils.RGBPacked(image), ImageUtils.RGBPacked(compressed));
+    }
+    
+    /**
+     * Computes the block error map like GetBlockErrorMap() from packed rasters. The errors
+     * aren't scaled by the image's max, so maps of different images (e.g. video frames)
+     * compare directly.
+     * 
+     * @param originalRaster    Packed pixels of the uncompressed original
+     * @param compressedRaster  Packed pixels of the compressed version
+     * @return                  Error per block, or null if the sizes don't match
+     */
+    public static BlockErrorMap GetBlockErrorMap(RGBRaster originalRaster, RGBRaster compressedRaster) {
+        int height = originalRaster.Height();
+        int width = originalRaster.Width();
+        
+        if (height != compressedRaster.Height() || width != compressedRaster.Width()) {
+            return null;
+        }
+        
+        int[] original = originalRaster.Pixels();
+        int[] comp = compressedRaster.Pixels();
+        int blocksWide = (width + BlockErrorMap.BLOCK - 1) / BlockErrorMap.BLOCK;
+        int blocksHigh = (height + BlockErrorMap.BLOCK - 1) / BlockErrorMap.BLOCK;
+        long[] squares = new long[blocksWide * blocksHigh];
+        float[] errors = new float[squares.length];
+        
+        for (int r = 0; r < height; r++) {
+            int row = (r / BlockErrorMap.BLOCK) * blocksWide;
             
-            for (int r = 0; r < height; r++) {
-                for (int c = 0; c < width; c++) {
-                    for (int band = 0; band < 3; band++) {
-                        int d = Math.abs(original[r][c][band] - comp[r][c][band]);
-                        
-                        diff[r][c][band] = d;
-                        chanMaxDiff[band] = (d > chanMaxDiff[band]) ? d : chanMaxDiff[band];
-                    }
-                }
+            for (int c = 0, i = r * width; c < width; c++, i++) {
+                int o = original[i];
+                int p = comp[i];
+                int dr = ((o >> 16) & 0xff) - ((p >> 16) & 0xff);
+                int dg = ((o >> 8) & 0xff) - ((p >> 8) & 0xff);
+                int db = (o & 0xff) - (p & 0xff);
+                squares[row + c / BlockErrorMap.BLOCK] += dr * dr + dg * dg + db * db;
             }
+        }
+        
+        for (int by = 0; by < blocksHigh; by++) {
+            int rows = Math.min(BlockErrorMap.BLOCK, height - by * BlockErrorMap.BLOCK);
             
-            //Pick largest difference of all bands, so that no value is scaled over 255
-            int maxDiff = 0;
+            for (int bx = 0; bx < blocksWide; bx++) {
+                int pixels = rows * Math.min(BlockErrorMap.BLOCK, width - bx * BlockErrorMap.BLOCK);
+                errors[by * blocksWide + bx] = (float) Math.sqrt(squares[by * blocksWide + bx] / (3.0 * pixels));
+            }
+        }
+        
+        return new BlockErrorMap(width, height, errors);
+    }
+    
+    /**
+     * Computes triage metrics from the original and recompressed images without building any
+     * output image: per band error statistics, the fraction of pixels whose scaled error
+     * (r+g+b) exceeds threshold, as masking would mark them, and the largest connected
+     * regions of such pixels.
+     * 
+     * @param image         The uncompressed original image
+     * @param compressed    The compressed version of the original
+     * @param threshold     Max pixel value (r+g+b) allowed before marking pixel as changed.
+     * @param maxRegions    Number of largest regions to report
+     * @param parallelism   Number of threads to use for the statistics pass
+     * @return ELAMetrics   Metrics of the image, or null if the sizes don't match
+     */
+    public static ELAMetrics GetMetrics(BufferedImage image, BufferedImage compressed, int threshold,
+            int maxRegions, int parallelism) {
+        if (image.getHeight() != compressed.getHeight() || image.getWidth() != compressed.getWidth()) {
+            return null;
+        }
+        
+        return GetMetrics(ImageUtils.RGBPacked(image), ImageUtils.RGBPacked(compressed), threshold, maxRegions,
+                parallelism);
+    }
+    
+    /**
+     * Computes triage metrics like GetMetrics() from packed rasters, e.g. ones filled in
+     * BufferPool buffers.
+     * 
+     * @param originalRaster    Packed pixels of the uncompressed original
+     * @param compressedRaster  Packed pixels of the compressed version
+     * @param threshold     Max pixel value (r+g+b) allowed before marking pixel as changed.
+     * @param maxRegions    Number of largest regions to report
+     * @param parallelism   Number of threads to use for the statistics pass
+     * @return ELAMetrics   Metrics of the image, or null if the sizes don't match
+     */
+    public static ELAMetrics GetMetrics(RGBRaster originalRaster, RGBRaster compressedRaster, int threshold,
+            int maxRegions, int parallelism) {
+        int height = originalRaster.Height();
+        int width = originalRaster.Width();
+        
+        if (height != compressedRaster.Height() || width != compressedRaster.Width()) {
+            return null;
+        }
+        
+        final int[] original = originalRaster.Pixels();
+        final int[] comp = compressedRaster.Pixels();
+        final ErrorStats stats = new ErrorStats();
+        long startTime = System.nanoTime();
+        
+        //Pass 1: histograms, which also give the max used for scaling
+        ParallelRows.ForEach(parallelism, width, height, new ParallelRows.Band() {
+            @Override
+            public void Run(int from, int to) {
+                ErrorStats band = ErrorStats.Compute(original, comp, from, to);
+                
+                synchronized (stats) {
+                    stats.Merge(band);
+                }
+            }
+        });
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.DIFFERENCE, startTime);
+        startTime = System.nanoTime();
+        
+        //Pass 2: flag pixels over the threshold and label connected regions, row by row
+        int[] table = ScaleTable(Scale(stats.MaxDiff()));
+        RegionLabeler labeler = new RegionLabeler(maxRegions);
+        boolean[] flagged = new boolean[width];
+        long pixelsOver = 0;
+        
+        for (int r = 0; r < height; r++) {
+            int i = r * width;
             
-            for (int i = 0; i < 3; i++) {
-                maxDiff = (chanMaxDiff[i] > maxDiff) ? chanMaxDiff[i] : maxDiff;
+            for (int c = 0; c < width; c++, i++) {
+                int o = original[i];
+                int p = comp[i];
+                int sum = table[Math.abs(((o >> 16) & 0xff) - ((p >> 16) & 0xff))]
+                        + table[Math.abs(((o >> 8) & 0xff) - ((p >> 8) & 0xff))]
+                        + table[Math.abs((o & 0xff) - (p & 0xff))];
+                
+                flagged[c] = sum > threshold;
+                pixelsOver += flagged[c] ? 1 : 0;
             }
             
-            //Rescale all pixel values so that the max value now = 255.
-            double scale = 255.0 / maxDiff;
+            labeler.AddRow(r, flagged, width);
+        }
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.MASK, startTime);
+        
+        return new ELAMetrics(width, height, stats, threshold, pixelsOver, labeler.Count(),
+                labeler.Regions());
+    }
+    
+    /**
+     * Runs ELA at several recompression qualities on one image. The original is converted to
+     * a raster once, and the recompressions run concurrently, one quality per thread, on the
+     * shared ParallelRows pool of that size.
+     * 
+     * @param image         The uncompressed original image
+     * @param qualities     JPEG compression levels to try
+     * @param parallelism   Max number of qualities processed at once, 1 runs them in turn on
+     *                      the calling thread
+     * @return              One result per quality, in the given order
+     * @throws IOException  If any recompression fails
+     */
+    public static List<QualityResult> GetQualitySweep(final BufferedImage image, float[] qualities,
+            int parallelism) throws IOException {
+        final int[] original = ImageUtils.RGBPacked(image).Pixels();
+        int threads = Math.max(1, Math.min(parallelism, qualities.length));
+        List<QualityResult> results = new ArrayList<>();
+        
+        if (threads == 1) {
+            for (float quality : qualities) {
+                results.add(GetQualityResult(image, original, quality));
+            }
             
-            for (int r = 0; r < height; r++) {
-                for (int c = 0; c < width; c++) {
-                    for (int band = 0; band < 3; band++) {
-                        diff[r][c][band] *= scale;
-                        diff[r][c][band]  = (diff[r][c][band] > 255) ? 255 : (diff[r][c][band] < 0) ? 0 : diff[r][c][band];
-                    }
+            return results;
+        }
+        
+        List<Callable<QualityResult>> tasks = new ArrayList<>();
+        
+        for (final float quality : qualities) {
+            tasks.add(new Callable<QualityResult>() {
+                @Override
+                public QualityResult call() throws IOException {
+                    return GetQualityResult(image, original, quality);
                 }
+            });
+        }
+        
+        try {
+            for (Future<QualityResult> future : ParallelRows.Pool(threads).invokeAll(tasks)) {
+                results.add(future.get());
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Quality sweep interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof IOException) ? (IOException) ex.getCause()
+                    : new IOException(ex.getCause());
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Recompresses the image at one quality and builds its statistics and difference image.
+     * The statistics pass doubles as the max-difference pre-pass.
+     */
+    private static QualityResult GetQualityResult(BufferedImage image, int[] original, float quality)
+            throws IOException {
+        BufferedImage compressed = GetCompressedImage(image, quality);
+        
+        if (compressed == null) {
+            throw new IOException("Could not recompress at quality " + quality);
+        }
+        
+        int[] comp = ImageUtils.RGBPacked(compressed).Pixels();
+        int[] diff = new int[original.length];
+        long startTime = System.nanoTime();
+        ErrorStats stats = ErrorStats.Compute(original, comp, 0, original.length);
+        
+        DifferenceRange(original, comp, diff, null, ScaleTable(Scale(stats.MaxDiff())), 0, Integer.MAX_VALUE, 0, diff.length);
+        RuntimeStats.Global().Time(RuntimeStats.Stage.DIFFERENCE, startTime);
+        
+        return new QualityResult(quality, ImageUtils.RGBImg(new RGBRaster(image.getWidth(), image.getHeight(), diff)), stats);
+    }
+    
+    /**
+     * Runs the max-difference reduction and then the difference/mask kernel over the whole
+     * image, both split into row bands.
+     */
+    private static void Difference(final int[] original, final int[] comp, final int[] diff,
+            final int[] masked, final int maskColor, final int threshold, int width, int height,
+            int parallelism) {
+        long startTime = System.nanoTime();
+        int maxDiff = ParallelRows.Max(parallelism, width, height, new ParallelRows.MaxBand() {
+            @Override
+            public int Run(int from, int to) {
+                return MaxDifference(original, comp, from, to);
+            }
+        });
+        final int[] table = ScaleTable(Scale(maxDiff));
+        RuntimeStats.Global().Time(RuntimeStats.Stage.DIFFERENCE, startTime);
+        startTime = System.nanoTime();
+        
+        ParallelRows.ForEach(parallelism, width, height, new ParallelRows.Band() {
+            @Override
+            public void Run(int from, int to) {
+                DifferenceRange(original, comp, diff, masked, table, maskColor, threshold, from, to);
+            }
+        });
+        
+        //Without a mask this pass only writes the difference
+        RuntimeStats.Global().Time((masked != null) ? RuntimeStats.Stage.MASK : RuntimeStats.Stage.DIFFERENCE, startTime);
+    }
+    
+    /**
+     * Finds the largest single-band difference between two packed rasters over [from, to).
+     * 
+     * @param original  Packed original pixels
+     * @param comp      Packed compressed pixels
+     * @param from      First pixel index
+     * @param to        Pixel index after the last one
+     * @return          Largest absolute band difference
+     */
+    static int MaxDifference(int[] original, int[] comp, int from, int to) {
+        int maxDiff = 0;
+        
+        for (int i = from; i < to; i++) {
+            int o = original[i];
+            int c = comp[i];
+            int dr = Math.abs(((o >> 16) & 0xff) - ((c >> 16) & 0xff));
+            int dg = Math.abs(((o >> 8) & 0xff) - ((c >> 8) & 0xff));
+            int db = Math.abs((o & 0xff) - (c & 0xff));
             
-            difference = ImageUtils.RGBImg(diff);
+            maxDiff = Math.max(maxDiff, Math.max(dr, Math.max(dg, db)));
         }
         
-        return difference;
+        return maxDiff;
+    }
+    
+    /**
+     * Returns the factor which rescales differences so the largest one becomes 255.
+     * 
+     * @param maxDiff   Largest band difference in the image
+     * @return          Scale factor, 0 if the images are identical
+     */
+    static double Scale(int maxDiff) {
+        return (maxDiff > 0) ? 255.0 / maxDiff : 0.0;
+    }
+    
+    /**
+     * Tabulates ScaleBand() for every possible band difference, so the kernels scale with a
+     * lookup instead of an int-double-int round trip per band. Built from ScaleBand() itself,
+     * the results are identical.
+     * 
+     * @param scale Scale factor from Scale()
+     * @return      Scaled value of each difference 0-255
+     */
+    static int[] ScaleTable(double scale) {
+        int[] table = new int[256];
+        
+        for (int d = 0; d < table.length; d++) {
+            table[d] = ScaleBand(d, scale);
+        }
+        
+        return table;
+    }
+    
+    /**
+     * Writes the scaled difference of [from, to) into diff and, when masked is not null,
+     * the original masked with maskColor wherever the scaled difference (r+g+b) exceeds
+     * threshold.
+     * 
+     * @param original  Packed original pixels
+     * @param comp      Packed compressed pixels
+     * @param diff      Destination for scaled difference pixels
+     * @param masked    Destination for masked pixels, or null
+     * @param table     Scale table from ScaleTable()
+     * @param maskColor Packed mask color
+     * @param threshold Masking threshold on r+g+b of the scaled difference
+     * @param from      First pixel index
+     * @param to        Pixel index after the last one
+     */
+    static void DifferenceRange(int[] original, int[] comp, int[] diff, int[] masked, int[] table,
+            int maskColor, int threshold, int from, int to) {
+        if (masked == null) {
+            for (int i = from; i < to; i++) {
+                int o = original[i];
+                int c = comp[i];
+                
+                diff[i] = (table[Math.abs(((o >> 16) & 0xff) - ((c >> 16) & 0xff))] << 16)
+                        | (table[Math.abs(((o >> 8) & 0xff) - ((c >> 8) & 0xff))] << 8)
+                        | table[Math.abs((o & 0xff) - (c & 0xff))];
+            }
+            
+            return;
+        }
+        
+        //Sums are 0-765, clamping keeps threshold - sum from overflowing
+        int limit = Math.max(-1, Math.min(threshold, 765));
+        
+        for (int i = from; i < to; i++) {
+            int o = original[i];
+            int c = comp[i];
+            int dr = table[Math.abs(((o >> 16) & 0xff) - ((c >> 16) & 0xff))];
+            int dg = table[Math.abs(((o >> 8) & 0xff) - ((c >> 8) & 0xff))];
+            int db = table[Math.abs((o & 0xff) - (c & 0xff))];
+            
+            //All ones where the sum is over the threshold, selects without a branch
+            int over = (limit - (dr + dg + db)) >> 31;
+            
+            diff[i] = (dr << 16) | (dg << 8) | db;
+            masked[i] = (maskColor & over) | (o & 0xffffff & ~over);
+        }
+    }
+    
+    /**
+     * Scales one band difference, truncating and clamping to 0-255.
+     * 
+     * @param d     Band difference
+     * @param scale Scale factor, 255 / largest difference
+     * @return      Scaled value
+     */
+    static int ScaleBand(int d, double scale) {
+        int v = (int) (d * scale);
+        
+        return (v > 255) ? 255 : (v < 0) ? 0 : v;
     }
 }
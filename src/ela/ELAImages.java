@@ -0,0 +1,44 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * This class holds the two images produced by error-level analysis: the scaled difference
+ * image and the original masked where the difference is high.
+ * 
+ * @author Robert Streetman
+ */
+public class ELAImages {
+    private final BufferedImage DIFFERENCE;
+    private final BufferedImage MASKED;
+    
+    ELAImages(BufferedImage difference, BufferedImage masked) {
+        DIFFERENCE = difference;
+        MASKED = masked;
+    }
+    
+    public BufferedImage Difference() {
+        return DIFFERENCE;
+    }
+    
+    public BufferedImage Masked() {
+        return MASKED;
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class holds the numbers used to triage an image without looking at its outputs:
+ * error statistics per band, the fraction of pixels whose scaled error exceeds the masking
+ * threshold, and the largest connected regions of such pixels.
+ * 
+ * @author Robert Streetman
+ */
+public class ELAMetrics {
+    public static final String CSV_HEADER = "image,width,height,mean_r,mean_g,mean_b,max_r,max_g,max_b,"
+            + "p50_r,p50_g,p50_b,p95_r,p95_g,p95_b,p99_r,p99_g,p99_b,threshold,fraction_over,region_count,regions";
+    
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final ErrorStats STATS;
+    private final int THRESHOLD;
+    private final long PIXELS_OVER;
+    private final int REGION_COUNT;
+    private final List<Region> REGIONS;
+    
+    ELAMetrics(int width, int height, ErrorStats stats, int threshold, long pixelsOver, int regionCount,
+            List<Region> regions) {
+        WIDTH = width;
+        HEIGHT = height;
+        STATS = stats;
+        THRESHOLD = threshold;
+        PIXELS_OVER = pixelsOver;
+        REGION_COUNT = regionCount;
+        REGIONS = regions;
+    }
+    
+    public int Width() {
+        return WIDTH;
+    }
+    
+    public int Height() {
+        return HEIGHT;
+    }
+    
+    public ErrorStats Stats() {
+        return STATS;
+    }
+    
+    public int Threshold() {
+        return THRESHOLD;
+    }
+    
+    /**
+     * Returns the fraction of pixels which masking would mark as changed.
+     * 
+     * @return  Fraction of pixels over the threshold, 0-1
+     */
+    public double FractionOver() {
+        return (STATS.Pixels() > 0) ? (double) PIXELS_OVER / STATS.Pixels() : 0.0;
+    }
+    
+    /**
+     * Returns the number of connected regions over the threshold.
+     * 
+     * @return  Number of regions, including those not in Regions()
+     */
+    public int RegionCount() {
+        return REGION_COUNT;
+    }
+    
+    /**
+     * Returns the largest connected regions over the threshold.
+     * 
+     * @return  Regions, largest first
+     */
+    public List<Region> Regions() {
+        return REGIONS;
+    }
+    
+    /**
+     * Formats these metrics as one JSON object (no trailing newline).
+     * 
+     * @param image Image name
+     * @return      JSON line
+     */
+    public String ToJSON(String image) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"image\":\"").append(EscapeJSON(image)).append('"')
+                .append(",\"width\":").append(WIDTH)
+                .append(",\"height\":").append(HEIGHT)
+                .append(",\"mean\":").append(String.format(Locale.ROOT, "[%.4f,%.4f,%.4f]",
+                        STATS.Mean(ErrorStats.RED), STATS.Mean(ErrorStats.GREEN), STATS.Mean(ErrorStats.BLUE)))
+                .append(",\"max\":").append(Bands(-1))
+                .append(",\"p50\":").append(Bands(50))
+                .append(",\"p95\":").append(Bands(95))
+                .append(",\"p99\":").append(Bands(99))
+                .append(",\"threshold\":").append(THRESHOLD)
+                .append(",\"fraction_over\":").append(String.format(Locale.ROOT, "%.6f", FractionOver()))
+                .append(",\"region_count\":").append(REGION_COUNT)
+                .append(",\"regions\":[");
+        
+        for (int i = 0; i < REGIONS.size(); i++) {
+            Region r = REGIONS.get(i);
+            json.append((i > 0) ? "," : "").append(String.format("{\"x\":%d,\"y\":%d,\"width\":%d,\"height\":%d,\"pixels\":%d}",
+                    r.X(), r.Y(), r.Width(), r.Height(), r.Pixels()));
+        }
+        
+        return json.append("]}").toString();
+    }
+    
+    /**
+     * Formats these metrics as one CSV row matching CSV_HEADER (no trailing newline).
+     * Regions are listed as x:y:width:height:pixels separated by semicolons.
+     * 
+     * @param image Image name
+     * @return      CSV row
+     */
+    public String ToCSV(String image) {
+        StringBuilder regions = new StringBuilder();
+        
+        for (Region r : REGIONS) {
+            regions.append((regions.length() > 0) ? ";" : "").append(r);
+        }
+        
+        return String.format(Locale.ROOT, "\"%s\",%d,%d,%.4f,%.4f,%.4f,%s,%s,%s,%s,%d,%.6f,%d,%s",
+                image.replace("\"", "\"\""), WIDTH, HEIGHT,
+                STATS.Mean(ErrorStats.RED), STATS.Mean(ErrorStats.GREEN), STATS.Mean(ErrorStats.BLUE),
+                CSVBands(-1), CSVBands(50), CSVBands(95), CSVBands(99),
+                THRESHOLD, FractionOver(), REGION_COUNT, regions);
+    }
+    
+    /**
+     * Per band values as a JSON array: max when pct is negative, else that percentile.
+     */
+    private String Bands(double pct) {
+        return "[" + CSVBands(pct) + "]";
+    }
+    
+    private String CSVBands(double pct) {
+        int[] v = new int[3];
+        
+        for (int band = 0; band < 3; band++) {
+            v[band] = (pct < 0) ? STATS.Max(band) : STATS.Percentile(band, pct);
+        }
+        
+        return v[0] + "," + v[1] + "," + v[2];
+    }
+    
+    private static String EscapeJSON(String s) {
+        StringBuilder out = new StringBuilder(s.length());
+        
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            
+            if (ch == '"' || ch == '\\') {
+                out.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                out.append(String.format("\\u%04x", (int) ch));
+            } else {
+                out.append(ch);
+            }
+        }
+        
+        return out.toString();
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.File;
+
+/**
+ * This class holds the settings for one ELA run, shared by every image in the run.
+ * 
+ * @author Robert Streetman
+ */
+public class ELAOptions {
+    private float quality;              //JPG recompression percentage
+    private int threshold;              //Threshold for error level difference
+    private int[] maskColor;            //Mask pixel color
+    private boolean spill = false;      //Recompress via temp file instead of memory
+    private boolean stream = false;     //Process in strips, for images larger than the heap
+    private int stripRows = 0;          //Rows per strip in stream mode, 0 picks from image width
+    private boolean offHeap = false;    //Stream mode keeps decoded strips off the heap, decoding once
+    private File scratchDir = null;     //Directory for memory-mapped off-heap storage, null for direct memory
+    private float[] qualities = null;   //Qualities for a sweep, null for a single quality
+    private ResultCache cache = null;   //Cache of earlier outputs, null to always recompute
+    private MetricsWriter metrics = null;   //Metrics-only mode destination, null to write images
+    private int maxRegions = 5;         //Largest high-error regions reported in metrics
+    private CheckpointJournal journal = null;   //Record of finished files, null to not record
+    private boolean dct = false;        //Block error map from JPEG coefficients instead of images
+    private int previewSize = 0;        //Longest side of the triage preview, 0 for full resolution only
+    private double escalateScore = Double.POSITIVE_INFINITY;   //Preview score above which to run full resolution
+    private boolean outputDifference = true;    //Write the difference image
+    private boolean outputMasked = true;        //Write the masked image
+    private OutputFormat outputFormat = OutputFormat.JPEG;  //File format of the written images
+    private float outputQuality = -1f;          //JPEG output quality, negative for the writer's default
+    private File outputDir = null;              //Directory receiving outputs, null to write next to each input
+    private double adaptiveSensitivity = 0;     //Local deviations for adaptive masking, 0 for the global threshold
+    private int adaptiveWindow = 1024;          //Side of the adaptive masking window, in pixels
+    
+    /**
+     * Creates options with the given analysis settings and everything else at defaults.
+     * 
+     * @param quality   JPEG recompression quality, generally ~0.95
+     * @param threshold Max pixel value (r+g+b) allowed before marking pixel as changed
+     * @param maskColor RGB mask color
+     */
+    public ELAOptions(float quality, int threshold, int[] maskColor) {
+        this.quality = quality;
+        this.threshold = threshold;
+        this.maskColor = maskColor;
+    }
+    
+    public float Quality() {
+        return quality;
+    }
+    
+    public int Threshold() {
+        return threshold;
+    }
+    
+    public int[] MaskColor() {
+        return maskColor;
+    }
+    
+    public boolean Spill() {
+        return spill;
+    }
+    
+    public ELAOptions SetSpill(boolean spill) {
+        this.spill = spill;
+        return this;
+    }
+    
+    public boolean Stream() {
+        return stream;
+    }
+    
+    public ELAOptions SetStream(boolean stream) {
+        this.stream = stream;
+        return this;
+    }
+    
+    public int StripRows() {
+        return stripRows;
+    }
+    
+    public ELAOptions SetStripRows(int stripRows) {
+        this.stripRows = stripRows;
+        return this;
+    }
+    
+    /**
+     * Returns whether stream mode stores each strip's original and recompressed pixels off
+     * the heap as it is first decoded, instead of decoding the image again for each output.
+     * 
+     * @return  True to keep intermediate pixels off the heap
+     */
+    public boolean OffHeap() {
+        return offHeap;
+    }
+    
+    public ELAOptions SetOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+    
+    /**
+     * Returns the directory holding memory-mapped scratch files for off-heap storage. Without
+     * one, off-heap pixels go to direct memory, limited by -XX:MaxDirectMemorySize.
+     * 
+     * @return  Scratch directory, or null for direct memory
+     */
+    public File ScratchDir() {
+        return scratchDir;
+    }
+    
+    public ELAOptions SetScratchDir(File scratchDir) {
+        this.scratchDir = scratchDir;
+        return this;
+    }
+    
+    public float[] Qualities() {
+        return qualities;
+    }
+    
+    public ELAOptions SetQualities(float[] qualities) {
+        this.qualities = qualities;
+        return this;
+    }
+    
+    public ResultCache Cache() {
+        return cache;
+    }
+    
+    public ELAOptions SetCache(ResultCache cache) {
+        this.cache = cache;
+        return this;
+    }
+    
+    public MetricsWriter Metrics() {
+        return metrics;
+    }
+    
+    public ELAOptions SetMetrics(MetricsWriter metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+    
+    public int MaxRegions() {
+        return maxRegions;
+    }
+    
+    public ELAOptions SetMaxRegions(int maxRegions) {
+        this.maxRegions = maxRegions;
+        return this;
+    }
+    
+    public CheckpointJournal Journal() {
+        return journal;
+    }
+    
+    public ELAOptions SetJournal(CheckpointJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+    
+    public boolean DCT() {
+        return dct;
+    }
+    
+    public ELAOptions SetDCT(boolean dct) {
+        this.dct = dct;
+        return this;
+    }
+    
+    public int PreviewSize() {
+        return previewSize;
+    }
+    
+    public ELAOptions SetPreviewSize(int previewSize) {
+        this.previewSize = previewSize;
+        return this;
+    }
+    
+    /**
+     * Returns the preview score (fraction of preview pixels over the threshold) above which
+     * an image is analyzed again at full resolution. Infinite by default, never escalating.
+     * 
+     * @return  Escalation score, 0-1
+     */
+    public double EscalateScore() {
+        return escalateScore;
+    }
+    
+    public ELAOptions SetEscalateScore(double escalateScore) {
+        this.escalateScore = escalateScore;
+        return this;
+    }
+    
+    public boolean OutputDifference() {
+        return outputDifference;
+    }
+    
+    public boolean OutputMasked() {
+        return outputMasked;
+    }
+    
+    /**
+     * Selects which images are written. Analysis runs the same either way, except in strip
+     * mode where each skipped image saves a pass over the source.
+     * 
+     * @param difference    Write the difference image
+     * @param masked        Write the masked image
+     * @return              These options
+     */
+    public ELAOptions SetOutputs(boolean difference, boolean masked) {
+        this.outputDifference = difference;
+        this.outputMasked = masked;
+        return this;
+    }
+    
+    public OutputFormat OutputFormat() {
+        return outputFormat;
+    }
+    
+    public ELAOptions SetOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+        return this;
+    }
+    
+    /**
+     * Returns the JPEG quality of written images, ignored by the lossless formats.
+     * 
+     * @return  Quality 0-1, or a negative value for the writer's default
+     */
+    public float OutputQuality() {
+        return outputQuality;
+    }
+    
+    public ELAOptions SetOutputQuality(float outputQuality) {
+        this.outputQuality = outputQuality;
+        return this;
+    }
+    
+    /**
+     * Returns the directory outputs are written to. Directory runs recreate the input
+     * tree's layout below it.
+     * 
+     * @return  Output directory, or null to write each output next to its input
+     */
+    public File OutputDir() {
+        return outputDir;
+    }
+    
+    public ELAOptions SetOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+        return this;
+    }
+    
+    /**
+     * Returns how many standard deviations an 8x8 block's error must stand above the
+     * blocks around it for adaptive masking to mark it.
+     * 
+     * @return  Sensitivity, or 0 when masking uses the global threshold
+     */
+    public double AdaptiveSensitivity() {
+        return adaptiveSensitivity;
+    }
+    
+    public ELAOptions SetAdaptiveSensitivity(double adaptiveSensitivity) {
+        this.adaptiveSensitivity = adaptiveSensitivity;
+        return this;
+    }
+    
+    public boolean Adaptive() {
+        return adaptiveSensitivity > 0;
+    }
+    
+    public int AdaptiveWindow() {
+        return adaptiveWindow;
+    }
+    
+    public ELAOptions SetAdaptiveWindow(int adaptiveWindow) {
+        this.adaptiveWindow = adaptiveWindow;
+        return this;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+/**
+ * This class holds the outcome of running ELA on one image.
+ * 
+ * @author Robert Streetman
+ */
+public class ELAResult {
+    private final String FILE_NAME;
+    private final String ERROR;
+    private final long DURATION_NS;
+    private final boolean CACHED;
+    
+    private ELAResult(String filename, String error, long duration, boolean cached) {
+        FILE_NAME = filename;
+        ERROR = error;
+        DURATION_NS = duration;
+        CACHED = cached;
+    }
+    
+    /**
+     * Creates the result of an image which was analyzed successfully.
+     * 
+     * @param filename  Name of the analyzed image
+     * @param duration  Time spent on the image, in nanoseconds
+     * @return          Successful result
+     */
+    public static ELAResult Succeeded(String filename, long duration) {
+        return new ELAResult(filename, null, duration, false);
+    }
+    
+    /**
+     * Creates the result of an image whose outputs were restored from the result cache.
+     * 
+     * @param filename  Name of the image
+     * @param duration  Time spent on the image, in nanoseconds
+     * @return          Successful, cached result
+     */
+    public static ELAResult Cached(String filename, long duration) {
+        return new ELAResult(filename, null, duration, true);
+    }
+    
+    /**
+     * Creates the result of an image which could not be analyzed.
+     * 
+     * @param filename  Name of the image
+     * @param error     Description of what went wrong
+     * @param duration  Time spent on the image, in nanoseconds
+     * @return          Failed result
+     */
+    public static ELAResult Failed(String filename, String error, long duration) {
+        return new ELAResult(filename, error, duration, false);
+    }
+    
+    public String FileName() {
+        return FILE_NAME;
+    }
+    
+    public boolean Success() {
+        return ERROR == null;
+    }
+    
+    public String Error() {
+        return ERROR;
+    }
+    
+    public long DurationNanos() {
+        return DURATION_NS;
+    }
+    
+    public boolean FromCache() {
+        return CACHED;
+    }
+}
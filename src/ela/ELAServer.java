@@ -0,0 +1,341 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * This class serves error-level analysis over local HTTP, so callers keep one warm JVM with
+ * loaded codecs instead of starting a new one per image.
+ * 
+ *   POST /ela?output=masked|difference|metrics[&amp;quality=0.95][&amp;threshold=25]
+ *        body: image bytes; returns the image in the --format format (JPEG by default) or a
+ *        JSON metrics object
+ *   GET  /health
+ * 
+ * At most "concurrency" images are analyzed at once; further requests get 429 with
+ * Retry-After instead of queueing.
+ * 
+ * @author Robert Streetman
+ */
+public class ELAServer {
+    private static final int MAX_BODY_BYTES = 256 << 20;
+    private static final int WARMUP_RUNS = 20;
+    
+    private final HttpServer SERVER;
+    private final ExecutorService EXECUTOR;
+    private final Semaphore SLOTS;
+    private final ELAOptions OPTIONS;
+    
+    //Request and response buffers, reused by each server thread
+    private static final ThreadLocal<ReusableByteStream> REQUEST_BUFFER = new ThreadLocal<ReusableByteStream>() {
+        @Override
+        protected ReusableByteStream initialValue() {
+            return new ReusableByteStream();
+        }
+    };
+    private static final ThreadLocal<ReusableByteStream> RESPONSE_BUFFER = new ThreadLocal<ReusableByteStream>() {
+        @Override
+        protected ReusableByteStream initialValue() {
+            return new ReusableByteStream();
+        }
+    };
+    
+    /**
+     * Creates a server; call Start() to begin accepting requests.
+     * 
+     * @param address       Address to bind, normally loopback
+     * @param concurrency   Max images analyzed at once
+     * @param options       Default quality, threshold and mask color
+     * @throws IOException  If the address can't be bound
+     */
+    public ELAServer(InetSocketAddress address, int concurrency, ELAOptions options) throws IOException {
+        OPTIONS = options;
+        SLOTS = new Semaphore(concurrency);
+        //A few threads beyond the limit, so excess requests are answered with 429 quickly
+        EXECUTOR = Executors.newFixedThreadPool(concurrency + 4);
+        SERVER = HttpServer.create(address, 64);
+        SERVER.setExecutor(EXECUTOR);
+        SERVER.createContext("/ela", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                HandleAnalyze(exchange);
+            }
+        });
+        SERVER.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Respond(exchange, 200, "text/plain", "ok\n".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+    
+    /**
+     * Warms up the codecs and JIT, then starts accepting requests.
+     */
+    public void Start() {
+        //No temp files for in-memory streams
+        ImageIO.setUseCache(false);
+        Warmup();
+        RuntimeStats.Global().Reset();     //Report real requests only
+        SERVER.start();
+    }
+    
+    /**
+     * Stops accepting requests and waits up to delay seconds for running ones.
+     * 
+     * @param delay Seconds to wait for running requests
+     */
+    public void Stop(int delay) {
+        SERVER.stop(delay);
+        EXECUTOR.shutdown();
+    }
+    
+    public InetSocketAddress Address() {
+        return SERVER.getAddress();
+    }
+    
+    /**
+     * Runs the pipeline on a synthetic image a few times, so plugin discovery, codec pools
+     * and compiled code are ready before the first real request.
+     */
+    private void Warmup() {
+        BufferedImage image = new BufferedImage(512, 384, BufferedImage.TYPE_3BYTE_BGR);
+        
+        for (int r = 0; r < image.getHeight(); r++) {
+            for (int c = 0; c < image.getWidth(); c++) {
+                image.setRGB(c, r, ((c * 255 / 512) << 16) | ((r * 255 / 384) << 8) | ((c * r) & 0x3f));
+            }
+        }
+        
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            BufferedImage compressed = ELA.GetCompressedImage(image, OPTIONS.Quality());
+            ELAImages output = ELA.GetDifferenceAndMask(image, compressed, OPTIONS.MaskColor(), OPTIONS.Threshold());
+            ELA.GetMetrics(image, compressed, OPTIONS.Threshold(), OPTIONS.MaxRegions(), 1);
+            
+            try {
+                Encode(ImageUtils.RGBPacked(output.Masked()));
+            } catch (IOException ex) {
+                System.out.format("ELAServer: Error during warmup: %s...%n", ex.getMessage());
+            }
+        }
+    }
+    
+    private void HandleAnalyze(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                RespondText(exchange, 405, "POST image bytes to /ela");
+                return;
+            }
+            
+            //Bounded concurrency: refuse rather than queue
+            if (!SLOTS.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                RespondText(exchange, 429, "Too many concurrent requests");
+                return;
+            }
+            
+            long startTime = System.nanoTime();
+            boolean ok = false;
+            RuntimeStats.Global().Started();
+            
+            try {
+                ok = Analyze(exchange);
+            } finally {
+                SLOTS.release();
+                RuntimeStats.Global().Finished(ok ? ELAResult.Succeeded("request", System.nanoTime() - startTime)
+                        : ELAResult.Failed("request", "Not analyzed", System.nanoTime() - startTime));
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.out.format("ELAServer: Error handling request: %s...%n", ex);
+            RespondText(exchange, 500, ex.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Analyzes the posted image and sends the response.
+     * 
+     * @return  True if the image was analyzed, false if the request was rejected
+     */
+    private boolean Analyze(HttpExchange exchange) throws IOException {
+        long startTime = System.nanoTime();
+        Map<String, String> query = ParseQuery(exchange.getRequestURI().getRawQuery());
+        String output = query.containsKey("output") ? query.get("output") : "masked";
+        float quality;
+        int threshold;
+        
+        try {
+            quality = query.containsKey("quality") ? Float.parseFloat(query.get("quality")) : OPTIONS.Quality();
+            threshold = query.containsKey("threshold") ? Integer.parseInt(query.get("threshold")) : OPTIONS.Threshold();
+        } catch (NumberFormatException ex) {
+            RespondText(exchange, 400, "Bad quality or threshold: " + ex.getMessage());
+            return false;
+        }
+        
+        if (quality < 0 || quality > 1 || !(output.equals("masked") || output.equals("difference") || output.equals("metrics"))) {
+            RespondText(exchange, 400, "output must be masked, difference or metrics; quality 0-1");
+            return false;
+        }
+        
+        ReusableByteStream body = REQUEST_BUFFER.get();
+        
+        if (!ReadBody(exchange.getRequestBody(), body)) {
+            RespondText(exchange, 413, "Image larger than " + MAX_BODY_BYTES + " bytes");
+            return false;
+        }
+        
+        //The response is encoded before this handler thread takes the next request, so the
+        //decoded image can live in this thread's pool
+        BufferPool pool = BufferPool.Local();
+        long decodeTime = System.nanoTime();
+        BufferedImage image;
+        
+        try (ImageInputStream in = new MemoryCacheImageInputStream(body.toInputStream())) {
+            image = ImageUtils.Read(in, pool);
+        } catch (IOException ex) {
+            RespondText(exchange, 400, "Could not decode image: " + ex.getMessage());
+            return false;
+        }
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.DECODE, decodeTime);
+        RuntimeStats.Global().AddBytesRead(body.size());
+        
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage compressed = ELA.GetCompressedImage(image, quality, pool.Image(BufferPool.Slot.COMPRESSED, width, height));
+        
+        if (compressed == null) {
+            RespondText(exchange, 400, "Could not recompress image");
+            return false;
+        }
+        
+        RGBRaster originalPixels = ImageUtils.RGBPacked(image, pool.Raster(BufferPool.Slot.ORIGINAL_PIXELS, width, height));
+        RGBRaster compressedPixels = ImageUtils.RGBPacked(compressed, pool.Raster(BufferPool.Slot.COMPRESSED_PIXELS, width, height));
+        exchange.getResponseHeaders().set("X-ELA-Time-Ms", Long.toString((System.nanoTime() - startTime) / 1000000));
+        
+        if (output.equals("metrics")) {
+            ELAMetrics metrics = ELA.GetMetrics(originalPixels, compressedPixels, threshold, OPTIONS.MaxRegions(), 1);
+            Respond(exchange, 200, "application/json", (metrics.ToJSON("request") + "\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+            //Results land in the pooled rasters, which are encoded without repacking
+            RGBRaster difference = pool.Raster(BufferPool.Slot.DIFFERENCE, width, height);
+            RGBRaster masked = pool.Raster(BufferPool.Slot.MASKED, width, height);
+            ELA.GetDifferenceAndMask(originalPixels, compressedPixels, OPTIONS.MaskColor(), threshold, 1, difference, masked);
+            ReusableByteStream encoded = Encode(output.equals("masked") ? masked : difference);
+            Respond(exchange, 200, OPTIONS.OutputFormat().ContentType(), encoded);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reads the whole request body into the buffer.
+     * 
+     * @return  False if the body exceeds MAX_BODY_BYTES
+     */
+    private static boolean ReadBody(InputStream in, ReusableByteStream body) throws IOException {
+        byte[] chunk = new byte[1 << 16];
+        int read;
+        body.reset();
+        
+        while ((read = in.read(chunk)) > 0) {
+            if (body.size() + read > MAX_BODY_BYTES) {
+                return false;
+            }
+            
+            body.write(chunk, 0, read);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Encodes a response image in the configured output format, into this thread's buffer.
+     */
+    private ReusableByteStream Encode(RGBRaster pixels) throws IOException {
+        ReusableByteStream encoded = RESPONSE_BUFFER.get();
+        encoded.reset();
+        
+        long startTime = System.nanoTime();
+        OutputWriter.Write(pixels, encoded, OPTIONS.OutputFormat(), OPTIONS.OutputQuality());
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.ENCODE, startTime);
+        RuntimeStats.Global().AddBytesWritten(encoded.size());
+        
+        return encoded;
+    }
+    
+    private static Map<String, String> ParseQuery(String raw) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                
+                if (eq > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        
+        return query;
+    }
+    
+    private static void RespondText(HttpExchange exchange, int status, String message) throws IOException {
+        Respond(exchange, status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static void Respond(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    private static void Respond(HttpExchange exchange, int status, String type, ReusableByteStream body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.size());
+        
+        try (OutputStream out = exchange.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+/**
+ * This class summarizes the raw (unscaled) error levels of an image: one histogram of the
+ * absolute original/recompressed difference per band, from which means, maxima and
+ * percentiles are read. Histograms of separate pixel ranges can be merged, so the
+ * statistics can be gathered in parallel bands.
+ * 
+ * @author Robert Streetman
+ */
+public class ErrorStats {
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+    
+    private final long[][] HISTOGRAM = new long[3][256];
+    private long pixels = 0;
+    
+    /**
+     * Gathers statistics over pixels [from, to) of two packed rasters.
+     * 
+     * @param original  Packed original pixels
+     * @param comp      Packed recompressed pixels
+     * @param from      First pixel index
+     * @param to        Pixel index after the last one
+     * @return          Statistics of the range
+     */
+    static ErrorStats Compute(int[] original, int[] comp, int from, int to) {
+        ErrorStats stats = new ErrorStats();
+        long[] red = stats.HISTOGRAM[RED];
+        long[] green = stats.HISTOGRAM[GREEN];
+        long[] blue = stats.HISTOGRAM[BLUE];
+        
+        for (int i = from; i < to; i++) {
+            int o = original[i];
+            int c = comp[i];
+            
+            red[Math.abs(((o >> 16) & 0xff) - ((c >> 16) & 0xff))]++;
+            green[Math.abs(((o >> 8) & 0xff) - ((c >> 8) & 0xff))]++;
+            blue[Math.abs((o & 0xff) - (c & 0xff))]++;
+        }
+        
+        stats.pixels = Math.max(0, to - from);
+        
+        return stats;
+    }
+    
+    /**
+     * Adds another range's statistics into this one.
+     * 
+     * @param other Statistics of a disjoint pixel range
+     * @return      This object
+     */
+    ErrorStats Merge(ErrorStats other) {
+        for (int band = 0; band < 3; band++) {
+            for (int v = 0; v < 256; v++) {
+                HISTOGRAM[band][v] += other.HISTOGRAM[band][v];
+            }
+        }
+        
+        pixels += other.pixels;
+        
+        return this;
+    }
+    
+    public long Pixels() {
+        return pixels;
+    }
+    
+    /**
+     * Returns the mean absolute difference of one band.
+     * 
+     * @param band  RED, GREEN or BLUE
+     * @return      Mean difference, 0-255
+     */
+    public double Mean(int band) {
+        long sum = 0;
+        
+        for (int v = 1; v < 256; v++) {
+            sum += v * HISTOGRAM[band][v];
+        }
+        
+        return (pixels > 0) ? (double) sum / pixels : 0.0;
+    }
+    
+    /**
+     * Returns the mean absolute difference over all bands.
+     * 
+     * @return  Mean difference, 0-255
+     */
+    public double Mean() {
+        return (Mean(RED) + Mean(GREEN) + Mean(BLUE)) / 3.0;
+    }
+    
+    /**
+     * Returns the largest difference of one band.
+     * 
+     * @param band  RED, GREEN or BLUE
+     * @return      Largest difference, 0-255
+     */
+    public int Max(int band) {
+        for (int v = 255; v > 0; v--) {
+            if (HISTOGRAM[band][v] > 0) {
+                return v;
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Returns the largest difference of all bands, the value ELA scales to 255.
+     * 
+     * @return  Largest difference, 0-255
+     */
+    public int MaxDiff() {
+        return Math.max(Max(RED), Math.max(Max(GREEN), Max(BLUE)));
+    }
+    
+    /**
+     * Returns the smallest difference which at least pct percent of the band's pixels don't
+     * exceed.
+     * 
+     * @param band  RED, GREEN or BLUE
+     * @param pct   Percentile, 0-100
+     * @return      Difference at that percentile, 0-255
+     */
+    public int Percentile(int band, double pct) {
+        long rank = (long) Math.ceil(pixels * pct / 100.0);
+        long seen = 0;
+        
+        for (int v = 0; v < 256; v++) {
+            seen += HISTOGRAM[band][v];
+            
+            if (seen >= rank && seen > 0) {
+                return v;
+            }
+        }
+        
+        return 0;
+    }
+}
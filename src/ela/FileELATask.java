@@ -0,0 +1,280 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.imageio.ImageIO;
+
+/**
+ * This task runs the ELA process on a single file, so a program can multithread over many
+ * files. It reports the outcome as an ELAResult instead of printing it.
+ *
+ * @author Robert Streetman
+ */
+public class FileELATask implements Callable<ELAResult> {
+    private static final String[] DCT_SUFFIXES = { "_blocks.png" };
+    
+    private final File IMAGE_FILE;
+    private final String FILE_NAME;
+    private final ELAOptions OPTIONS;
+    private final int PARALLELISM;
+    
+    FileELATask(String filename, File file, ELAOptions options) {
+        this(filename, file, options, 1);
+    }
+    
+    /**
+     * Creates a task which may use several threads on its one image, for running a single
+     * file rather than a batch.
+     * 
+     * @param filename      Base name for output files
+     * @param file          Image file to analyze
+     * @param options       Analysis settings
+     * @param parallelism   Threads to use within this image
+     */
+    FileELATask(String filename, File file, ELAOptions options, int parallelism) {
+        FILE_NAME = filename;
+        IMAGE_FILE = file;
+        OPTIONS = options;
+        PARALLELISM = parallelism;
+    }
+    
+    /**
+     * Returns the base name this task writes its outputs under.
+     * 
+     * @return  Output base name
+     */
+    String FileName() {
+        return FILE_NAME;
+    }
+    
+    @Override
+    public ELAResult call() {
+        RuntimeStats.Global().Started();
+        ELAResult result = run();
+        RuntimeStats.Global().Finished(result);
+        
+        return result;
+    }
+    
+    private ELAResult run() {
+        long startTime = System.nanoTime();
+        
+        try {
+            //Sweep outputs depend on the qualities list, metrics aren't files and previews may
+            //or may not escalate, only single-quality image runs are cached
+            ResultCache cache = (OPTIONS.Qualities() == null && OPTIONS.Metrics() == null
+                    && OPTIONS.PreviewSize() <= 0) ? OPTIONS.Cache() : null;
+            String[] suffixes = OPTIONS.DCT() ? DCT_SUFFIXES : OutputWriter.Suffixes(OPTIONS);
+            String key = null;
+            
+            if (cache != null) {
+                key = cache.Key(IMAGE_FILE, OPTIONS, OPTIONS.DCT() ? "dct" : OutputWriter.CacheMode(OPTIONS));
+                
+                if (cache.Restore(key, FILE_NAME, suffixes)) {
+                    completed();
+                    return ELAResult.Cached(FILE_NAME, System.nanoTime() - startTime);
+                }
+            }
+            
+            Analyze();
+            
+            if (cache != null) {
+                cache.Store(key, FILE_NAME, suffixes);
+            }
+            
+            completed();
+        } catch(IOException ex) {
+            return ELAResult.Failed(FILE_NAME, ex.getMessage(), System.nanoTime() - startTime);
+        } catch(RuntimeException ex) {
+            return ELAResult.Failed(FILE_NAME, ex.toString(), System.nanoTime() - startTime);
+        }
+        
+        return ELAResult.Succeeded(FILE_NAME, System.nanoTime() - startTime);
+    }
+    
+    /**
+     * Runs the analysis selected by the options and writes its outputs.
+     * 
+     * @throws IOException  If the image can't be read or an output can't be written
+     */
+    private void Analyze() throws IOException {
+        //Pre-screen: block error map straight from the JPEG coefficients
+        if (OPTIONS.DCT()) {
+            ImageIO.write(BlockErrors().ToImage(), "png", new File(FILE_NAME + DCT_SUFFIXES[0]));
+            return;
+        }
+        
+        //Triage at reduced resolution, full resolution only for high scores
+        if (OPTIONS.PreviewSize() > 0 && Preview() <= OPTIONS.EscalateScore()) {
+            return;
+        }
+        
+        //Too large for the heap, analyze in strips
+        if (OPTIONS.Stream() && OPTIONS.Metrics() == null) {
+            String extension = OutputWriter.Format(OPTIONS).Extension();
+            File differenceOut = OPTIONS.OutputDifference() ? new File(FILE_NAME + "_difference" + extension) : null;
+            File maskedOut = OPTIONS.OutputMasked() ? new File(FILE_NAME + "_masked" + extension) : null;
+            new StreamingELA(IMAGE_FILE, OPTIONS).Run(differenceOut, maskedOut);
+            
+            //Strips are decoded, compared and encoded interleaved, so only bytes are counted
+            RuntimeStats.Global().AddBytesRead(IMAGE_FILE.length());
+            RuntimeStats.Global().AddBytesWritten((differenceOut == null ? 0 : differenceOut.length())
+                    + (maskedOut == null ? 0 : maskedOut.length()));
+            return;
+        }
+        
+        //Read image and create compressed version, in this worker's reusable buffers
+        BufferPool pool = BufferPool.Local();
+        long startTime = System.nanoTime();
+        BufferedImage imgInput = ImageUtils.Read(IMAGE_FILE, pool);
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.DECODE, startTime);
+        RuntimeStats.Global().AddBytesRead(IMAGE_FILE.length());
+        
+        //Several qualities: the selected outputs of each plus an error-level vs quality curve
+        if (OPTIONS.Qualities() != null) {
+            List<QualityResult> sweep = ELA.GetQualitySweep(imgInput, OPTIONS.Qualities(), PARALLELISM);
+            int[] original = OPTIONS.OutputMasked() ? ImageUtils.RGBPacked(imgInput).Pixels() : null;
+            
+            for (QualityResult result : sweep) {
+                RGBRaster difference = ImageUtils.RGBPacked(result.Difference());
+                RGBRaster masked = null;
+                
+                if (original != null) {
+                    masked = new RGBRaster(difference.Width(), difference.Height(), new int[original.length]);
+                    ImageUtils.MaskRange(original, difference.Pixels(), masked.Pixels(), RGBRaster.Pack(OPTIONS.MaskColor()),
+                            OPTIONS.Threshold(), 0, original.length);
+                }
+                
+                OutputWriter.WriteSweep(difference, masked, FILE_NAME, result.Quality(), OPTIONS);
+            }
+            
+            try (Writer csv = Files.newBufferedWriter(Paths.get(FILE_NAME + "_quality.csv"), StandardCharsets.UTF_8)) {
+                QualityResult.WriteCSV(IMAGE_FILE.getName(), sweep, csv, true);
+            }
+            
+            return;
+        }
+        
+        int width = imgInput.getWidth();
+        int height = imgInput.getHeight();
+        BufferedImage imgCompressed = OPTIONS.Spill()
+                ? ELA.GetCompressedImage(imgInput, FILE_NAME, OPTIONS.Quality())
+                : ELA.GetCompressedImage(imgInput, OPTIONS.Quality(), pool.Image(BufferPool.Slot.COMPRESSED, width, height));
+        
+        if (imgCompressed == null) {
+            throw new IOException("Could not recompress image");
+        }
+        
+        RGBRaster original = ImageUtils.RGBPacked(imgInput, pool.Raster(BufferPool.Slot.ORIGINAL_PIXELS, width, height));
+        RGBRaster compressed = ImageUtils.RGBPacked(imgCompressed, pool.Raster(BufferPool.Slot.COMPRESSED_PIXELS, width, height));
+        
+        //Metrics only: one record for the batch file, no images encoded
+        if (OPTIONS.Metrics() != null) {
+            ELAMetrics metrics = ELA.GetMetrics(original, compressed, OPTIONS.Threshold(),
+                    OPTIONS.MaxRegions(), PARALLELISM);
+            OPTIONS.Metrics().Write(IMAGE_FILE.getPath(), metrics);
+            return;
+        }
+        
+        RGBRaster difference = pool.Raster(BufferPool.Slot.DIFFERENCE, width, height);
+        RGBRaster masked = pool.Raster(BufferPool.Slot.MASKED, width, height);
+        
+        //Adaptive: mask by local statistics of the difference image, and list its regions
+        if (OutputWriter.Adaptive(OPTIONS)) {
+            ELA.GetDifferenceImage(original, compressed, PARALLELISM, difference);
+            AdaptiveMask mask = ImageUtils.MaskImagesAdaptive(original, difference, OPTIONS.MaskColor(),
+                    OPTIONS.AdaptiveSensitivity(), OPTIONS.AdaptiveWindow(), OPTIONS.MaxRegions(), PARALLELISM, masked);
+            OutputWriter.Write(difference, masked, FILE_NAME, OPTIONS);
+            OutputWriter.WriteRegions(mask, FILE_NAME);
+            return;
+        }
+        
+        //Get difference image and masked original in one pass, save them
+        ELA.GetDifferenceAndMask(original, compressed, OPTIONS.MaskColor(), OPTIONS.Threshold(), PARALLELISM,
+                difference, masked);
+        OutputWriter.Write(difference, masked, FILE_NAME, OPTIONS);
+    }
+    
+    private void completed() throws IOException {
+        if (OPTIONS.Journal() != null) {
+            OPTIONS.Journal().Completed(IMAGE_FILE.toPath());
+        }
+    }
+    
+    /**
+     * Estimates the block error map from the JPEG coefficients, falling back to the pixel
+     * path for other formats and JPEG processes the estimate doesn't support.
+     */
+    private BlockErrorMap BlockErrors() throws IOException {
+        try {
+            return DCTELA.Estimate(IMAGE_FILE, OPTIONS.Quality());
+        } catch (IOException ex) {
+            BufferedImage imgInput = ImageIO.read(IMAGE_FILE);
+            
+            if (imgInput == null) {
+                throw new IOException("No decoder for image format");
+            }
+            
+            BufferedImage imgCompressed = ELA.GetCompressedImage(imgInput, OPTIONS.Quality());
+            
+            if (imgCompressed == null) {
+                throw new IOException("Could not recompress image");
+            }
+            
+            return ELA.GetBlockErrorMap(imgInput, imgCompressed);
+        }
+    }
+    
+    /**
+     * Runs ELA on a subsampled decode of the image, writing thumbnails (or a metrics
+     * record, tagged "#preview", in metrics mode).
+     * 
+     * @return  Preview score: the fraction of preview pixels over the threshold
+     */
+    private double Preview() throws IOException {
+        BufferedImage preview = ImageUtils.ReadSubsampled(IMAGE_FILE, OPTIONS.PreviewSize());
+        BufferedImage compressed = ELA.GetCompressedImage(preview, OPTIONS.Quality());
+        
+        if (compressed == null) {
+            throw new IOException("Could not recompress preview");
+        }
+        
+        ELAMetrics metrics = ELA.GetMetrics(preview, compressed, OPTIONS.Threshold(), OPTIONS.MaxRegions(), PARALLELISM);
+        
+        if (OPTIONS.Metrics() != null) {
+            OPTIONS.Metrics().Write(IMAGE_FILE.getPath() + "#preview", metrics);
+        } else {
+            ELAImages output = ELA.GetDifferenceAndMask(preview, compressed, OPTIONS.MaskColor(),
+                    OPTIONS.Threshold(), PARALLELISM);
+            OutputWriter.Write(ImageUtils.RGBPacked(output.Difference()), ImageUtils.RGBPacked(output.Masked()),
+                    FILE_NAME + "_preview", OPTIONS);
+        }
+        
+        return metrics.FractionOver();
+    }
+}
@@ -18,6 +18,22 @@
 package ela;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /**
  * This class contains utility methods for moving data into/out of image files.
@@ -27,8 +43,123 @@ import java.awt.image.BufferedImage;
 //TODO:Add exceptions for bad input
 public class ImageUtils {
     
+    //Packed RGB layout shared by every raster this class builds
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+    
+    /**
+     * Send this method an image file to get it decoded like ImageIO.read(), into the pool's
+     * INPUT image when that is the decoder's default layout (color JPEGs) and into a new
+     * image otherwise, so the pixels always match ImageIO.read(). JPEGs are decoded with a pooled reader from JPEGCodecs.
+     * 
+     * @param file  Image file
+     * @param pool  The calling thread's buffer pool, or null to always allocate
+     * @return      Decoded image
+     * @throws IOException  If the file can't be read or has no decoder
+     */
+    public static BufferedImage Read(File file, BufferPool pool) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            return Read(in, pool);
+        }
+    }
+    
+    /**
+     * Send this method an image file to get it decoded like Read(File, BufferPool), but into
+     * a caller-owned image instead of the pool's, for images handed on to another thread.
+     * The destination is used only if it has the image's size and the decoder's default
+     * layout.
+     * 
+     * @param file          Image file
+     * @param destination   Image to decode into, or null to always allocate
+     * @return              Decoded image, the destination if it was used
+     * @throws IOException  If the file can't be read or has no decoder
+     */
+    public static BufferedImage Read(File file, BufferedImage destination) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            return Read(in, null, destination);
+        }
+    }
+    
+    /**
+     * Decodes the first image of an open stream like Read(File, BufferPool), e.g. a frame
+     * held in memory. The stream is left open.
+     * 
+     * @param in    Source stream, or null
+     * @param pool  The calling thread's buffer pool, or null to always allocate
+     * @return      Decoded image
+     * @throws IOException  If the stream can't be read or has no decoder
+     */
+    public static BufferedImage Read(ImageInputStream in, BufferPool pool) throws IOException {
+        return Read(in, pool, null);
+    }
+    
+    private static BufferedImage Read(ImageInputStream in, BufferPool pool, BufferedImage destination) throws IOException {
+        if (in != null && JPEGCodecs.IsJPEG(in)) {
+            return (pool != null) ? JPEGCodecs.Read(in, pool) : JPEGCodecs.Read(in, destination);
+        }
+        
+        Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+        
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException("No decoder for image format");
+        }
+        
+        ImageReader reader = readers.next();
+        
+        try {
+            reader.setInput(in, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            
+            if (destination == null && pool != null) {
+                destination = pool.Image(BufferPool.Slot.INPUT, reader.getWidth(0), reader.getHeight(0));
+            }
+            
+            if (destination != null && JPEGCodecs.Accepts(reader, destination)) {
+                param.setDestination(destination);
+            }
+            
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+    
+    /**
+     * Send this method an image file and a size to get the image decoded at reduced
+     * resolution: every Nth pixel of every Nth row, N chosen so the longer side is at most
+     * maxSize. Images already that small are decoded in full.
+     * 
+     * @param file      Image file
+     * @param maxSize   Largest allowed width or height, in pixels
+     * @return          Subsampled image
+     * @throws IOException  If the file can't be read or has no decoder
+     */
+    public static BufferedImage ReadSubsampled(File file, int maxSize) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+            
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("No decoder for image format");
+            }
+            
+            ImageReader reader = readers.next();
+            
+            try {
+                reader.setInput(in, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int step = Math.max(1, (longest + maxSize - 1) / maxSize);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
     /**
      * Send this method a BufferedImage to get an RGB array (value 0-255).
+     * Prefer RGBPacked(), this layout costs one small array per pixel.
      * 
      * @param img   BufferedImage, the input image from which to extract RGB
      * @return      A 3-dimensional array of RGB values from image
@@ -39,11 +170,12 @@ public class ImageUtils {
         int width = img.getWidth();
         
         if (height > 0 && width > 0) {
+            int[] pixels = RGBPacked(img).Pixels();
             rgb = new int[height][width][3];
 
             for (int row = 0; row < height; row++) {
                 for (int column = 0; column < width; column++) {
-                    rgb[row][column] = intRGB(img.getRGB(column, row));
+                    intRGB(pixels[row * width + column], rgb[row][column]);
                 }
             }
         }
@@ -51,6 +183,109 @@ public class ImageUtils {
         return rgb;
     }
     
+    /**
+     * Send this method a BufferedImage to get its pixels as a packed RGB raster. Common
+     * layouts (int RGB/ARGB, byte BGR/ABGR) are read straight from the image's data buffer,
+     * and an int RGB image with no offsets is shared rather than copied, so callers must
+     * not modify the returned pixels.
+     * 
+     * @param img   BufferedImage, the input image from which to extract RGB
+     * @return      Packed RGB raster of the image
+     */
+    public static RGBRaster RGBPacked(BufferedImage img) {
+        return RGBPacked(img, null);
+    }
+    
+    /**
+     * Converts an image to a packed RGB raster like RGBPacked(), writing the pixels into a
+     * caller-supplied raster of the same size. An int RGB image with no offsets is still
+     * shared rather than copied, so the result is not always the destination.
+     * 
+     * @param img           BufferedImage, the input image from which to extract RGB
+     * @param destination   Raster to fill, or null (or another size) to allocate one
+     * @return              Packed RGB raster of the image
+     */
+    public static RGBRaster RGBPacked(BufferedImage img, RGBRaster destination) {
+        int height = img.getHeight();
+        int width = img.getWidth();
+        Raster raster = img.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        ColorModel model = img.getColorModel();
+        int x0 = -raster.getSampleModelTranslateX();
+        int y0 = -raster.getSampleModelTranslateY();
+        
+        //Packed ints: 0x(AA)RRGGBB, alpha is ignored
+        if ((img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB)
+                && buffer instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            int[] data = ((DataBufferInt) buffer).getData();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int offset = buffer.getOffset() + y0 * stride + x0;
+            
+            if (img.getType() == BufferedImage.TYPE_INT_RGB && offset == 0 && stride == width) {
+                return new RGBRaster(width, height, data);
+            }
+            
+            destination = Fit(destination, width, height);
+            int[] pixels = destination.Pixels();
+            
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(data, offset + row * stride, pixels, row * width, width);
+            }
+            
+            return destination;
+        }
+        
+        //Interleaved sRGB bytes, e.g. BGR from the JPEG decoder
+        if (buffer instanceof DataBufferByte && buffer.getNumBanks() == 1
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getNumBands() >= 3 && model.getColorSpace().isCS_sRGB()
+                && !model.isAlphaPremultiplied()
+                && (img.getType() == BufferedImage.TYPE_3BYTE_BGR || img.getType() == BufferedImage.TYPE_4BYTE_ABGR)) {
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) buffer).getData();
+            int pixelStride = sm.getPixelStride();
+            int stride = sm.getScanlineStride();
+            int[] bandOffsets = sm.getBandOffsets();
+            destination = Fit(destination, width, height);
+            int[] pixels = destination.Pixels();
+            
+            for (int row = 0; row < height; row++) {
+                int base = buffer.getOffset() + (y0 + row) * stride + x0 * pixelStride;
+                int r = base + bandOffsets[0];
+                int g = base + bandOffsets[1];
+                int b = base + bandOffsets[2];
+                int out = row * width;
+                
+                for (int column = 0; column < width; column++) {
+                    pixels[out++] = ((data[r] & 0xff) << 16) | ((data[g] & 0xff) << 8) | (data[b] & 0xff);
+                    r += pixelStride;
+                    g += pixelStride;
+                    b += pixelStride;
+                }
+            }
+            
+            return destination;
+        }
+        
+        //Anything else goes through the color model, one bulk call
+        destination = Fit(destination, width, height);
+        img.getRGB(0, 0, width, height, destination.Pixels(), 0, width);
+        
+        return destination;
+    }
+    
+    /**
+     * Returns destination if it has the given size, otherwise a new raster.
+     */
+    private static RGBRaster Fit(RGBRaster destination, int width, int height) {
+        if (destination == null || destination.Width() != width || destination.Height() != height) {
+            return new RGBRaster(width, height);
+        }
+        
+        return destination;
+    }
+    
     /**
      * Send this method an array of RGB pixels (int) to get a BufferedImage.
      * 
@@ -77,25 +312,76 @@ public class ImageUtils {
     }
     
     /**
-     * Send this method a 32-bit pixel value from BufferedImage to get the RGB.
+     * Send this method a packed RGB raster to get a BufferedImage. The image is built
+     * directly on the raster's pixel array, nothing is copied.
      * 
-     * @param bits  The 32-bit BufferedImage pixel value
-     * @return      RGB values extracted from pixel  
+     * @param raster    Packed RGB raster
+     * @return BufferedImage (TYPE_INT_RGB) sharing the raster's pixels
      */
-    private static int[] intRGB(int bits) {
-        //Java rgb values are actually 4 bytes (r,g,b,a) pressed into one 32-bit integer
-        int[] rgb = { (bits >> 16) & 0xff, (bits >> 8) & 0xff, bits & 0xff };
+    public static BufferedImage RGBImg(RGBRaster raster) {
+        int width = raster.Width();
+        int height = raster.Height();
+        DataBufferInt buffer = new DataBufferInt(raster.Pixels(), width * height);
+        WritableRaster pixels = Raster.createPackedRaster(buffer, width, height, width,
+                RGB_MODEL.getMasks(), null);
         
-        //Don't propagate bad pixel values
-        for (int i = 0; i < 3; i++) {
-            if (rgb[i] < 0) {
-                rgb[i] = 0;
-            } else if (rgb[i] > 255) {
-                rgb[i] = 255;
+        return new BufferedImage(RGB_MODEL, pixels, false, null);
+    }
+    
+    /**
+     * Send this method a packed RGB raster to get a TYPE_3BYTE_BGR copy of it, written into
+     * destination when that is a TYPE_3BYTE_BGR image of the same size (e.g. from a
+     * BufferPool). The JPEG encoder reads this layout with far less per-row copying than
+     * packed ints.
+     * 
+     * @param raster        Packed RGB raster
+     * @param destination   Image to fill, or null to allocate one
+     * @return              BufferedImage (TYPE_3BYTE_BGR) holding the raster's pixels
+     */
+    public static BufferedImage BGRImg(RGBRaster raster, BufferedImage destination) {
+        int width = raster.Width();
+        int height = raster.Height();
+        
+        if (destination == null || destination.getType() != BufferedImage.TYPE_3BYTE_BGR
+                || destination.getWidth() != width || destination.getHeight() != height) {
+            destination = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        }
+        
+        WritableRaster target = destination.getRaster();
+        ComponentSampleModel sm = (ComponentSampleModel) target.getSampleModel();
+        DataBuffer buffer = target.getDataBuffer();
+        byte[] data = ((DataBufferByte) buffer).getData();
+        int[] pixels = raster.Pixels();
+        int x0 = -target.getSampleModelTranslateX();
+        int y0 = -target.getSampleModelTranslateY();
+        
+        for (int row = 0; row < height; row++) {
+            int out = buffer.getOffset() + (y0 + row) * sm.getScanlineStride() + x0 * 3;
+            int in = row * width;
+            
+            //Bytes are stored blue, green, red
+            for (int column = 0; column < width; column++) {
+                int p = pixels[in++];
+                data[out++] = (byte) p;
+                data[out++] = (byte) (p >> 8);
+                data[out++] = (byte) (p >> 16);
             }
         }
         
-        return rgb;
+        return destination;
+    }
+    
+    /**
+     * Send this method a 32-bit pixel value from BufferedImage to get the RGB.
+     * 
+     * @param bits  The 32-bit BufferedImage pixel value
+     * @param rgb   Array receiving the RGB values extracted from pixel
+     */
+    private static void intRGB(int bits, int[] rgb) {
+        //Java rgb values are actually 4 bytes (r,g,b,a) pressed into one 32-bit integer
+        rgb[0] = (bits >> 16) & 0xff;
+        rgb[1] = (bits >> 8) & 0xff;
+        rgb[2] = bits & 0xff;
     }
     
     /**
@@ -111,37 +397,266 @@ public class ImageUtils {
      */
     public static BufferedImage MaskImages(BufferedImage baseImage, BufferedImage maskImage,
             int[] maskColor, int threshold) {
+        return MaskImages(baseImage, maskImage, maskColor, threshold, 1);
+    }
+    
+    /**
+     * Masks the base image like MaskImages(), splitting the image into row bands processed
+     * by up to parallelism threads. The result is identical to the single-threaded one.
+     * 
+     * @param baseImage     The base image which is to be masked over.
+     * @param maskImage     The masking image. This is a difference image.
+     * @param maskColor     The RGB pixel values desired for the mask color.
+     * @param threshold     Max pixel value (r+g+b) allowed before marking pixel as changed.
+     * @param parallelism   Number of threads to use for this image, 1 for the calling thread only
+     * @return              BufferedImage where the base image has 'changed' pixels masked.
+     */
+    public static BufferedImage MaskImages(BufferedImage baseImage, BufferedImage maskImage,
+            int[] maskColor, int threshold, int parallelism) {
+        if (baseImage.getHeight() != maskImage.getHeight() || baseImage.getWidth() != maskImage.getWidth()) {
+            return null;
+        }
+        
+        return MaskImages(RGBPacked(baseImage), RGBPacked(maskImage), maskColor, threshold, parallelism,
+                new RGBRaster(baseImage.getWidth(), baseImage.getHeight()));
+    }
+    
+    /**
+     * Masks the packed base raster like MaskImages(), writing the result into a
+     * caller-supplied raster, e.g. one from a BufferPool.
+     * 
+     * @param baseRaster    The base pixels which are to be masked over.
+     * @param maskRaster    The masking pixels. This is a difference image.
+     * @param maskColor     The RGB pixel values desired for the mask color.
+     * @param threshold     Max pixel value (r+g+b) allowed before marking pixel as changed.
+     * @param parallelism   Number of threads to use for this image, 1 for the calling thread only
+     * @param destination   Raster receiving the masked pixels, the same size as the base
+     * @return              BufferedImage on the destination's pixels, or null if the sizes don't match
+     */
+    public static BufferedImage MaskImages(RGBRaster baseRaster, RGBRaster maskRaster, int[] maskColor,
+            final int threshold, int parallelism, RGBRaster destination) {
         BufferedImage result = null;
-        int height = baseImage.getHeight();
-        int width = baseImage.getWidth();
-        
-        if (maskColor.length == 3 && height == maskImage.getHeight()
-                && width == maskImage.getWidth()) {
-            int[][][] imgOrig = RGBArray(baseImage);
-            int[][][] imgMask = RGBArray(maskImage);
-            int[][][] imgResult = new int[height][width][3];
-            
-            for (int r = 0; r < height; r++) {
-                for (int c = 0; c < width; c++) {
-                    //Measure total magnitude of pixel
-                    int sumMaskPixel = 0;
-                    
-                    for (int band = 0; band < 3; band++) {
-                        sumMaskPixel += imgMask[r][c][band];
-                    }
-                    
-                    //If pixel magnitude > threshold, then mask w/ color
-                    if (sumMaskPixel > threshold) {
-                        imgResult[r][c] = maskColor;
-                    } else {
-                        imgResult[r][c] = imgOrig[r][c];
-                    }
+        int height = baseRaster.Height();
+        int width = baseRaster.Width();
+        
+        if (maskColor.length == 3 && height == maskRaster.Height() && width == maskRaster.Width()
+                && height == destination.Height() && width == destination.Width()) {
+            final int[] imgOrig = baseRaster.Pixels();
+            final int[] imgMask = maskRaster.Pixels();
+            final int[] imgResult = destination.Pixels();
+            final int color = RGBRaster.Pack(maskColor);
+            long startTime = System.nanoTime();
+            
+            ParallelRows.ForEach(parallelism, width, height, new ParallelRows.Band() {
+                @Override
+                public void Run(int from, int to) {
+                    MaskRange(imgOrig, imgMask, imgResult, color, threshold, from, to);
                 }
-            }
+            });
             
-            result = RGBImg(imgResult);
+            RuntimeStats.Global().Time(RuntimeStats.Stage.MASK, startTime);
+            result = RGBImg(destination);
         }
         
         return result;
     }
+    
+    /**
+     * Send this method a base image, a mask (difference) image, a mask color and a
+     * sensitivity to mask the base image where the mask stands out from its surroundings:
+     * each pixel (r+g+b) is compared with the mean and standard deviation of the mask in a
+     * window around it instead of one global threshold. The connected regions of masked
+     * pixels are found in the same run.
+     * 
+     * @param baseImage     The base image which is to be masked over.
+     * @param maskImage     The masking image. This is a difference image.
+     * @param maskColor     The RGB pixel values desired for the mask color.
+     * @param sensitivity   Standard deviations above the local mean before marking a pixel, e.g. 3
+     * @param window        Side of the window the local statistics cover, in pixels
+     * @param maxRegions    Number of largest regions to report
+     * @return              Masked image and regions, or null if the sizes don't match
+     */
+    public static AdaptiveMask MaskImagesAdaptive(BufferedImage baseImage, BufferedImage maskImage,
+            int[] maskColor, double sensitivity, int window, int maxRegions) {
+        if (baseImage.getHeight() != maskImage.getHeight() || baseImage.getWidth() != maskImage.getWidth()) {
+            return null;
+        }
+        
+        return MaskImagesAdaptive(RGBPacked(baseImage), RGBPacked(maskImage), maskColor, sensitivity, window,
+                maxRegions, 1, new RGBRaster(baseImage.getWidth(), baseImage.getHeight()));
+    }
+    
+    /**
+     * Masks the packed base raster like MaskImagesAdaptive(), writing the result into a
+     * caller-supplied raster. The local statistics are kept per 8x8 block and come from
+     * summed-area tables of the block sums, so the cost is linear in the pixels whatever
+     * the window size. Being relative, the thresholds don't change with the scaling of the
+     * difference image, so a single hot pixel no longer shifts the masking of the rest.
+     * 
+     * @param baseRaster    The base pixels which are to be masked over.
+     * @param maskRaster    The masking pixels. This is a difference image.
+     * @param maskColor     The RGB pixel values desired for the mask color.
+     * @param sensitivity   Standard deviations above the local mean before marking a pixel, e.g. 3
+     * @param window        Side of the window the local statistics cover, in pixels
+     * @param maxRegions    Number of largest regions to report
+     * @param parallelism   Number of threads to use for the masking pass, 1 for the calling thread only
+     * @param destination   Raster receiving the masked pixels, the same size as the base
+     * @return              Masked image on the destination's pixels and regions, or null if the sizes don't match
+     */
+    public static AdaptiveMask MaskImagesAdaptive(RGBRaster baseRaster, RGBRaster maskRaster, int[] maskColor,
+            double sensitivity, int window, int maxRegions, int parallelism, RGBRaster destination) {
+        final int height = baseRaster.Height();
+        final int width = baseRaster.Width();
+        
+        if (maskColor.length != 3 || height != maskRaster.Height() || width != maskRaster.Width()
+                || height != destination.Height() || width != destination.Width()) {
+            return null;
+        }
+        
+        final int[] imgOrig = baseRaster.Pixels();
+        final int[] imgMask = maskRaster.Pixels();
+        final int[] imgResult = destination.Pixels();
+        final int color = RGBRaster.Pack(maskColor);
+        final int blocksWide = (width + BlockErrorMap.BLOCK - 1) / BlockErrorMap.BLOCK;
+        long startTime = System.nanoTime();
+        final int[] limits = BlockLimits(imgMask, width, height, sensitivity, window);
+        
+        ParallelRows.ForEach(parallelism, width, height, new ParallelRows.Band() {
+            @Override
+            public void Run(int from, int to) {
+                MaskAdaptiveRange(imgOrig, imgMask, imgResult, color, limits, blocksWide, width, from, to);
+            }
+        });
+        
+        //Labeling takes rows in order, so it runs on this thread
+        RegionLabeler labeler = new RegionLabeler(maxRegions);
+        boolean[] flagged = new boolean[width];
+        long pixelsOver = 0;
+        
+        for (int r = 0; r < height; r++) {
+            int row = (r / BlockErrorMap.BLOCK) * blocksWide;
+            
+            for (int c = 0, i = r * width; c < width; c++, i++) {
+                int p = imgMask[i];
+                flagged[c] = ((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff) > limits[row + c / BlockErrorMap.BLOCK];
+                pixelsOver += flagged[c] ? 1 : 0;
+            }
+            
+            labeler.AddRow(r, flagged, width);
+        }
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.MASK, startTime);
+        
+        return new AdaptiveMask(RGBImg(destination), (long) width * height, pixelsOver, labeler.Count(),
+                labeler.Regions());
+    }
+    
+    /**
+     * Computes the masking limit of each 8x8 block. A block whose mean (r+g+b) is more than
+     * sensitivity standard deviations above the mean of the block means in the window
+     * centered on it stands out, and its pixels over that window mean are masked; other
+     * blocks get a limit no pixel can exceed. Summed-area tables of the block means and
+     * their squares make each window cost four lookups.
+     */
+    private static int[] BlockLimits(int[] imgMask, int width, int height, double sensitivity, int window) {
+        int block = BlockErrorMap.BLOCK;
+        int blocksWide = (width + block - 1) / block;
+        int blocksHigh = (height + block - 1) / block;
+        int stride = blocksWide + 1;
+        double[] means = new double[blocksWide * blocksHigh];
+        
+        for (int r = 0; r < height; r++) {
+            int row = (r / block) * blocksWide;
+            
+            for (int c = 0, i = r * width; c < width; c++, i++) {
+                int p = imgMask[i];
+                means[row + c / block] += ((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff);
+            }
+        }
+        
+        //Tables are one row and column larger, so windows at the edges need no special case
+        double[] sums = new double[stride * (blocksHigh + 1)];
+        double[] squares = new double[sums.length];
+        
+        for (int by = 0; by < blocksHigh; by++) {
+            int rows = Math.min(block, height - by * block);
+            
+            for (int bx = 0, j = (by + 1) * stride + 1; bx < blocksWide; bx++, j++) {
+                double mean = means[by * blocksWide + bx] / (rows * Math.min(block, width - bx * block));
+                means[by * blocksWide + bx] = mean;
+                sums[j] = mean + sums[j - 1] + sums[j - stride] - sums[j - stride - 1];
+                squares[j] = mean * mean + squares[j - 1] + squares[j - stride] - squares[j - stride - 1];
+            }
+        }
+        
+        //Window of 2 * radius + 1 blocks each way, clipped at the image edges
+        int radius = Math.max(0, (window / block - 1) / 2);
+        int[] limits = new int[means.length];
+        
+        for (int by = 0; by < blocksHigh; by++) {
+            int y0 = Math.max(0, by - radius);
+            int y1 = Math.min(blocksHigh, by + radius + 1);
+            
+            for (int bx = 0; bx < blocksWide; bx++) {
+                int x0 = Math.max(0, bx - radius);
+                int x1 = Math.min(blocksWide, bx + radius + 1);
+                double blocks = (double) (y1 - y0) * (x1 - x0);
+                double mean = (sums[y1 * stride + x1] - sums[y0 * stride + x1] - sums[y1 * stride + x0]
+                        + sums[y0 * stride + x0]) / blocks;
+                double meanSquare = (squares[y1 * stride + x1] - squares[y0 * stride + x1]
+                        - squares[y1 * stride + x0] + squares[y0 * stride + x0]) / blocks;
+                
+                //Relative floor, so a flat window doesn't flag blocks over rounding noise at any scale
+                double deviation = Math.max(0.05 * mean, Math.sqrt(Math.max(0.0, meanSquare - mean * mean)));
+                
+                //Values are whole numbers, so value > floor(mean) matches value > mean
+                limits[by * blocksWide + bx] = (means[by * blocksWide + bx] > mean + sensitivity * deviation)
+                        ? (int) Math.floor(mean) : 765;
+            }
+        }
+        
+        return limits;
+    }
+    
+    /**
+     * Masks pixels [from, to) of the packed base raster wherever the mask pixel (r+g+b)
+     * exceeds the limit of its block.
+     */
+    static void MaskAdaptiveRange(int[] imgOrig, int[] imgMask, int[] imgResult, int color, int[] limits,
+            int blocksWide, int width, int from, int to) {
+        int r = from / width;
+        int c = from % width;
+        
+        for (int i = from; i < to; i++) {
+            int p = imgMask[i];
+            int sumMaskPixel = ((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff);
+            int over = (limits[(r / BlockErrorMap.BLOCK) * blocksWide + c / BlockErrorMap.BLOCK] - sumMaskPixel) >> 31;
+            imgResult[i] = (color & over) | (imgOrig[i] & 0xffffff & ~over);
+            
+            if (++c == width) {
+                c = 0;
+                r++;
+            }
+        }
+    }
+    
+    /**
+     * Masks pixels [from, to) of the packed base raster wherever the mask pixel (r+g+b)
+     * exceeds threshold.
+     */
+    static void MaskRange(int[] imgOrig, int[] imgMask, int[] imgResult, int color, int threshold,
+            int from, int to) {
+        //Sums only reach 765, so any threshold can be clamped to where limit - sum can't overflow
+        int limit = Math.max(-1, Math.min(threshold, 765));
+        
+        for (int i = from; i < to; i++) {
+            //Measure total magnitude of pixel
+            int p = imgMask[i];
+            int sumMaskPixel = ((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff);
+            
+            //If pixel magnitude > threshold, then mask w/ color: all ones selects the color
+            int over = (limit - sumMaskPixel) >> 31;
+            imgResult[i] = (color & over) | (imgOrig[i] & 0xffffff & ~over);
+        }
+    }
 }
@@ -0,0 +1,272 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * This class keeps pools of JPEG ImageWriter/ImageReader instances, so encoding and decoding
+ * don't go through the ImageIO plugin registry and codec setup for every image. A codec
+ * which fails is disposed instead of returned to its pool.
+ * 
+ * @author Robert Streetman
+ */
+final class JPEGCodecs {
+    private static final int POOL_SIZE = 64;
+    private static final BlockingQueue<ImageWriter> WRITERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<ImageReader> READERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    
+    private JPEGCodecs() {
+    }
+    
+    /**
+     * Encodes an image as JPEG to an already open stream.
+     * 
+     * @param image     Source image to encode
+     * @param out       Destination stream
+     * @param quality   JPEG compression level, or a negative value for the writer's default
+     *                  (the same as ImageIO.write)
+     * @throws IOException  If the encoder fails
+     */
+    static void Write(RenderedImage image, ImageOutputStream out, float quality) throws IOException {
+        ImageWriter writer = WRITERS.poll();
+        
+        if (writer == null) {
+            writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        }
+        
+        boolean ok = false;
+        
+        try {
+            JPEGImageWriteParam params = null;
+            
+            //Set JPEG compression settings
+            if (quality >= 0) {
+                params = new JPEGImageWriteParam(null);
+                params.setCompressionMode(JPEGImageWriteParam.MODE_EXPLICIT);
+                params.setCompressionQuality(quality);
+            }
+            
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), params);
+            ok = true;
+        } finally {
+            Release(writer, ok);
+        }
+    }
+    
+    /**
+     * Encodes an image as JPEG with the writer's default settings to a file, replacing it.
+     * 
+     * @param image Source image to encode
+     * @param file  Destination file
+     * @throws IOException  If the file can't be written
+     */
+    static void Write(RenderedImage image, File file) throws IOException {
+        Write(image, file, -1f, System.nanoTime());
+    }
+    
+    /**
+     * Encodes a packed RGB raster as JPEG with the writer's default settings to a file,
+     * through the calling thread's pooled ENCODE image. Same output as encoding
+     * ImageUtils.RGBImg(raster), with much less garbage per row.
+     * 
+     * @param raster    Packed pixels to encode
+     * @param file      Destination file
+     * @throws IOException  If the file can't be written
+     */
+    static void Write(RGBRaster raster, File file) throws IOException {
+        Write(raster, file, -1f);
+    }
+    
+    /**
+     * Encodes a packed RGB raster as JPEG at the given quality to a file, like
+     * Write(RGBRaster, File).
+     * 
+     * @param raster    Packed pixels to encode
+     * @param file      Destination file
+     * @param quality   JPEG compression level, or a negative value for the writer's default
+     * @throws IOException  If the file can't be written
+     */
+    static void Write(RGBRaster raster, File file, float quality) throws IOException {
+        long startTime = System.nanoTime();
+        BufferedImage bgr = ImageUtils.BGRImg(raster,
+                BufferPool.Local().Image(BufferPool.Slot.ENCODE, raster.Width(), raster.Height()));
+        
+        Write(bgr, file, quality, startTime);
+    }
+    
+    private static void Write(RenderedImage image, File file, float quality, long startTime) throws IOException {
+        //FileImageOutputStream doesn't truncate, so start from an empty file like ImageIO.write
+        Files.deleteIfExists(file.toPath());
+        
+        try (ImageOutputStream out = new FileImageOutputStream(file)) {
+            Write(image, out, quality);
+        }
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.ENCODE, startTime);
+        RuntimeStats.Global().AddBytesWritten(file.length());
+    }
+    
+    /**
+     * Decodes a JPEG from an already open stream.
+     * 
+     * @param in    Source stream
+     * @return      Decoded image
+     * @throws IOException  If the decoder fails
+     */
+    static BufferedImage Read(ImageInputStream in) throws IOException {
+        return Read(in, null, null);
+    }
+    
+    /**
+     * Decodes a JPEG from an already open stream into a caller-supplied image. The
+     * destination is used only if it has the JPEG's size and the decoder's default type for
+     * it, otherwise a new image is returned.
+     * 
+     * @param in            Source stream
+     * @param destination   Image to decode into, or null
+     * @return              Decoded image, the destination if it was used
+     * @throws IOException  If the decoder fails
+     */
+    static BufferedImage Read(ImageInputStream in, BufferedImage destination) throws IOException {
+        return Read(in, destination, null);
+    }
+    
+    /**
+     * Decodes a JPEG from an already open stream into the pool's INPUT image, sized to the
+     * JPEG, when the decoder offers that image's type.
+     * 
+     * @param in    Source stream
+     * @param pool  The calling thread's buffer pool
+     * @return      Decoded image, the pool's INPUT image if it was used
+     * @throws IOException  If the decoder fails
+     */
+    static BufferedImage Read(ImageInputStream in, BufferPool pool) throws IOException {
+        return Read(in, null, pool);
+    }
+    
+    /**
+     * Checks for the SOI marker at the stream's position, leaving the position unchanged.
+     * 
+     * @param in    Source stream
+     * @return      True if the stream holds a JPEG
+     * @throws IOException  If the stream can't be read
+     */
+    static boolean IsJPEG(ImageInputStream in) throws IOException {
+        in.mark();
+        
+        try {
+            return in.read() == 0xFF && in.read() == 0xD8;
+        } finally {
+            in.reset();
+        }
+    }
+    
+    private static BufferedImage Read(ImageInputStream in, BufferedImage destination, BufferPool pool) throws IOException {
+        ImageReader reader = READERS.poll();
+        
+        if (reader == null) {
+            reader = ImageIO.getImageReadersByFormatName("jpg").next();
+        }
+        
+        boolean ok = false;
+        
+        try {
+            reader.setInput(in, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            
+            if (destination == null && pool != null) {
+                destination = pool.Image(BufferPool.Slot.INPUT, reader.getWidth(0), reader.getHeight(0));
+            }
+            
+            if (destination != null && Accepts(reader, destination)) {
+                param.setDestination(destination);
+            }
+            
+            BufferedImage image = reader.read(0, param);
+            ok = true;
+            
+            return image;
+        } finally {
+            Release(reader, ok);
+        }
+    }
+    
+    /**
+     * Checks that the reader's first image has the destination's size and that the
+     * destination's type is the reader's default type for it.
+     * 
+     * @param reader        Reader with its input set
+     * @param destination   Candidate destination
+     * @return              True if the image can be decoded into destination as is
+     * @throws IOException  If the header can't be read
+     */
+    static boolean Accepts(ImageReader reader, BufferedImage destination) throws IOException {
+        if (reader.getWidth(0) != destination.getWidth() || reader.getHeight(0) != destination.getHeight()) {
+            return false;
+        }
+        
+        //Only the default type decodes as ImageIO.read would: a gray JPEG also offers BGR, which
+        //would turn it into a three-channel image and change everything computed from it
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        
+        return types.hasNext() && types.next().getBufferedImageType() == destination.getType();
+    }
+    
+    private static void Release(ImageWriter writer, boolean reuse) {
+        if (reuse) {
+            writer.reset();
+            
+            if (WRITERS.offer(writer)) {
+                return;
+            }
+        }
+        
+        writer.dispose();
+    }
+    
+    private static void Release(ImageReader reader, boolean reuse) {
+        if (reuse) {
+            reader.reset();
+            
+            if (READERS.offer(reader)) {
+                return;
+            }
+        }
+        
+        reader.dispose();
+    }
+}
@@ -0,0 +1,737 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class entropy-decodes a JPEG to its quantized DCT coefficients without the inverse
+ * DCT, upsampling or color conversion, which javax.imageio doesn't expose. Baseline,
+ * extended sequential and progressive Huffman-coded 8-bit JPEGs are supported; arithmetic
+ * coding, lossless and hierarchical files throw an IOException.
+ * 
+ * Coefficients are stored per component as 64 shorts per block in natural (row-major)
+ * order, blocks laid out row by row and padded to whole MCUs.
+ * 
+ * @author Robert Streetman
+ */
+final class JPEGCoefficients {
+    //Zig-zag index to natural index
+    static final int[] ZIGZAG = {
+        0,  1,  8, 16,  9,  2,  3, 10, 17, 24, 32, 25, 18, 11,  4,  5,
+       12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,  6,  7, 14, 21, 28,
+       35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+       58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+    
+    private final byte[] DATA;
+    private final int[][] QUANT = new int[4][];
+    private final Huffman[] DC_TABLES = new Huffman[4];
+    private final Huffman[] AC_TABLES = new Huffman[4];
+    private int pos = 0;
+    private int width;
+    private int height;
+    private boolean progressive;
+    private int hMax = 1;
+    private int vMax = 1;
+    private int mcusX;
+    private int mcusY;
+    private Component[] components;
+    private int restartInterval = 0;
+    
+    //Entropy decoder state: bits are kept top-aligned in a 64-bit buffer
+    private long bits;
+    private int bitCount;
+    private boolean markerHit;
+    private int eobRun;
+    private int acState;        //Refinement state, see decodeACRefine
+    private int acRun;          //Zero coefficients left to skip in the refinement state
+    private int acNext;         //New coefficient waiting for its position
+    
+    /**
+     * One color component of the frame.
+     */
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int tq;
+        int blocksPerLine;      //Blocks covering the image
+        int blocksPerColumn;
+        int stride;             //Blocks per row, padded to whole MCUs
+        int rows;
+        short[] coefficients;
+        int pred;
+        Huffman dc;
+        Huffman ac;
+    }
+    
+    private JPEGCoefficients(byte[] data) {
+        DATA = data;
+    }
+    
+    /**
+     * Decodes every scan of a JPEG file's bytes.
+     * 
+     * @param data  Complete JPEG file
+     * @return      Decoded coefficients
+     * @throws IOException  If the file is corrupt or uses an unsupported JPEG process
+     */
+    static JPEGCoefficients Read(byte[] data) throws IOException {
+        JPEGCoefficients jpeg = new JPEGCoefficients(data);
+        
+        try {
+            jpeg.parse();
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated or corrupt JPEG", ex);
+        }
+        
+        return jpeg;
+    }
+    
+    int Width() {
+        return width;
+    }
+    
+    int Height() {
+        return height;
+    }
+    
+    int Components() {
+        return components.length;
+    }
+    
+    boolean Progressive() {
+        return progressive;
+    }
+    
+    int MaxH() {
+        return hMax;
+    }
+    
+    int MaxV() {
+        return vMax;
+    }
+    
+    int H(int c) {
+        return components[c].h;
+    }
+    
+    int V(int c) {
+        return components[c].v;
+    }
+    
+    /**
+     * Returns the component's quantization table in natural order.
+     */
+    int[] QuantTable(int c) {
+        return QUANT[components[c].tq];
+    }
+    
+    /**
+     * Returns how many blocks of the component cover the image horizontally, padding
+     * excluded.
+     */
+    int BlocksPerLine(int c) {
+        return components[c].blocksPerLine;
+    }
+    
+    int BlocksPerColumn(int c) {
+        return components[c].blocksPerColumn;
+    }
+    
+    /**
+     * Returns the row stride of the component's coefficient array, in blocks.
+     */
+    int Stride(int c) {
+        return components[c].stride;
+    }
+    
+    short[] Coefficients(int c) {
+        return components[c].coefficients;
+    }
+    
+    private void parse() throws IOException {
+        if ((DATA[0] & 0xff) != 0xff || (DATA[1] & 0xff) != 0xd8) {
+            throw new IOException("Not a JPEG file");
+        }
+        
+        pos = 2;
+        
+        while (true) {
+            int marker = nextMarker();
+            
+            switch (marker) {
+                case 0xd9:      //EOI
+                    if (components == null) {
+                        throw new IOException("No frame in JPEG");
+                    }
+                    
+                    return;
+                case 0xc0:      //Baseline
+                case 0xc1:      //Extended sequential
+                case 0xc2:      //Progressive
+                    readFrame(marker == 0xc2);
+                    break;
+                case 0xc3: case 0xc5: case 0xc6: case 0xc7:
+                case 0xc9: case 0xca: case 0xcb: case 0xcd: case 0xce: case 0xcf:
+                    throw new IOException(String.format("Unsupported JPEG process SOF%d", marker - 0xc0));
+                case 0xc4:
+                    readHuffmanTables();
+                    break;
+                case 0xdb:
+                    readQuantTables();
+                    break;
+                case 0xdd:
+                    pos += 2;
+                    restartInterval = u16(pos);
+                    pos += 2;
+                    break;
+                case 0xda:
+                    if (components == null) {
+                        throw new IOException("Scan before frame header");
+                    }
+                    
+                    readScan();
+                    break;
+                default:
+                    //APPn, COM and anything else with a length
+                    pos += u16(pos);
+            }
+        }
+    }
+    
+    /**
+     * Skips to the next marker and returns its code. Entropy-coded data, stuffed bytes and
+     * restart markers left over from a scan are passed over.
+     */
+    private int nextMarker() throws IOException {
+        while (pos + 1 < DATA.length) {
+            if ((DATA[pos] & 0xff) != 0xff) {
+                pos++;
+                continue;
+            }
+            
+            int marker = DATA[pos + 1] & 0xff;
+            
+            if (marker == 0x00 || marker == 0xff || (marker >= 0xd0 && marker <= 0xd7)) {
+                pos++;
+                continue;
+            }
+            
+            pos += 2;
+            
+            return marker;
+        }
+        
+        throw new IOException("Truncated JPEG, no EOI");
+    }
+    
+    private int u16(int at) {
+        return ((DATA[at] & 0xff) << 8) | (DATA[at + 1] & 0xff);
+    }
+    
+    private void readQuantTables() throws IOException {
+        int end = pos + u16(pos);
+        pos += 2;
+        
+        while (pos < end) {
+            int pq = (DATA[pos] & 0xff) >> 4;
+            int tq = DATA[pos] & 0x0f;
+            pos++;
+            
+            if (tq > 3) {
+                throw new IOException("Bad quantization table id " + tq);
+            }
+            
+            int[] table = new int[64];
+            
+            for (int k = 0; k < 64; k++) {
+                table[ZIGZAG[k]] = (pq == 0) ? DATA[pos++] & 0xff : u16(pos);
+                pos += (pq == 0) ? 0 : 2;
+            }
+            
+            QUANT[tq] = table;
+        }
+    }
+    
+    private void readHuffmanTables() throws IOException {
+        int end = pos + u16(pos);
+        pos += 2;
+        
+        while (pos < end) {
+            int tc = (DATA[pos] & 0xff) >> 4;
+            int th = DATA[pos] & 0x0f;
+            pos++;
+            
+            if (tc > 1 || th > 3) {
+                throw new IOException("Bad Huffman table class/id " + tc + "/" + th);
+            }
+            
+            int[] counts = new int[17];
+            int total = 0;
+            
+            for (int len = 1; len <= 16; len++) {
+                counts[len] = DATA[pos++] & 0xff;
+                total += counts[len];
+            }
+            
+            int[] symbols = new int[total];
+            
+            for (int i = 0; i < total; i++) {
+                symbols[i] = DATA[pos++] & 0xff;
+            }
+            
+            (tc == 0 ? DC_TABLES : AC_TABLES)[th] = new Huffman(counts, symbols);
+        }
+    }
+    
+    private void readFrame(boolean isProgressive) throws IOException {
+        if (components != null) {
+            throw new IOException("More than one frame in JPEG");
+        }
+        
+        progressive = isProgressive;
+        int precision = DATA[pos + 2] & 0xff;
+        height = u16(pos + 3);
+        width = u16(pos + 5);
+        int count = DATA[pos + 7] & 0xff;
+        pos += 8;
+        
+        if (precision != 8) {
+            throw new IOException("Unsupported JPEG precision " + precision);
+        }
+        
+        if (width == 0 || height == 0 || count == 0) {
+            throw new IOException("Unsupported JPEG frame " + width + "x" + height + ", " + count + " components");
+        }
+        
+        components = new Component[count];
+        
+        for (int i = 0; i < count; i++) {
+            Component comp = new Component();
+            comp.id = DATA[pos] & 0xff;
+            comp.h = (DATA[pos + 1] & 0xff) >> 4;
+            comp.v = DATA[pos + 1] & 0x0f;
+            comp.tq = DATA[pos + 2] & 0x0f;
+            pos += 3;
+            
+            if (comp.h < 1 || comp.h > 4 || comp.v < 1 || comp.v > 4 || comp.tq > 3) {
+                throw new IOException("Bad JPEG component " + comp.id);
+            }
+            
+            hMax = Math.max(hMax, comp.h);
+            vMax = Math.max(vMax, comp.v);
+            components[i] = comp;
+        }
+        
+        mcusX = (width + 8 * hMax - 1) / (8 * hMax);
+        mcusY = (height + 8 * vMax - 1) / (8 * vMax);
+        
+        for (Component comp : components) {
+            comp.blocksPerLine = ((width * comp.h + hMax - 1) / hMax + 7) / 8;
+            comp.blocksPerColumn = ((height * comp.v + vMax - 1) / vMax + 7) / 8;
+            comp.stride = mcusX * comp.h;
+            comp.rows = mcusY * comp.v;
+            comp.coefficients = new short[comp.stride * comp.rows * 64];
+        }
+    }
+    
+    private void readScan() throws IOException {
+        int count = DATA[pos + 2] & 0xff;
+        pos += 3;
+        Component[] scan = new Component[count];
+        
+        for (int i = 0; i < count; i++) {
+            int id = DATA[pos] & 0xff;
+            int tables = DATA[pos + 1] & 0xff;
+            pos += 2;
+            
+            for (Component comp : components) {
+                if (comp.id == id) {
+                    scan[i] = comp;
+                }
+            }
+            
+            if (scan[i] == null) {
+                throw new IOException("Scan references unknown component " + id);
+            }
+            
+            scan[i].dc = DC_TABLES[tables >> 4];
+            scan[i].ac = AC_TABLES[tables & 0x0f];
+        }
+        
+        int ss = DATA[pos] & 0xff;
+        int se = DATA[pos + 1] & 0xff;
+        int ah = (DATA[pos + 2] & 0xff) >> 4;
+        int al = DATA[pos + 2] & 0x0f;
+        pos += 3;
+        
+        if (!progressive && (ss != 0 || se != 63 || ah != 0 || al != 0)) {
+            throw new IOException("Bad sequential scan parameters");
+        }
+        
+        if (ss > se || se > 63 || (ss == 0 && se != 0 && progressive) || (ss > 0 && count != 1)) {
+            throw new IOException("Bad progressive scan parameters");
+        }
+        
+        decodeScan(scan, ss, se, ah, al);
+    }
+    
+    private void decodeScan(Component[] scan, int ss, int se, int ah, int al) throws IOException {
+        for (Component comp : scan) {
+            if ((ss == 0 && ah == 0 && comp.dc == null) || (se > 0 && comp.ac == null)) {
+                throw new IOException("Scan uses an undefined Huffman table");
+            }
+            
+            comp.pred = 0;
+        }
+        
+        resetBits();
+        eobRun = 0;
+        acState = 0;
+        
+        //Single component scans cover only the image's blocks, interleaved ones whole MCUs
+        boolean single = scan.length == 1;
+        int units = single ? scan[0].blocksPerLine * scan[0].blocksPerColumn : mcusX * mcusY;
+        int unitsPerLine = single ? scan[0].blocksPerLine : mcusX;
+        
+        for (int unit = 0; unit < units; unit++) {
+            if (restartInterval > 0 && unit > 0 && unit % restartInterval == 0) {
+                restart(scan);
+            }
+            
+            int ux = unit % unitsPerLine;
+            int uy = unit / unitsPerLine;
+            
+            if (single) {
+                decodeBlock(scan[0], (uy * scan[0].stride + ux) * 64, ss, se, ah, al);
+                continue;
+            }
+            
+            for (Component comp : scan) {
+                for (int y = 0; y < comp.v; y++) {
+                    for (int x = 0; x < comp.h; x++) {
+                        int block = (uy * comp.v + y) * comp.stride + ux * comp.h + x;
+                        decodeBlock(comp, block * 64, ss, se, ah, al);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Drops the bits left before a restart marker and resets the predictors.
+     */
+    private void restart(Component[] scan) {
+        resetBits();
+        
+        //Step over the RSTn marker the bit reader stopped at
+        while (pos + 1 < DATA.length && !((DATA[pos] & 0xff) == 0xff
+                && (DATA[pos + 1] & 0xff) >= 0xd0 && (DATA[pos + 1] & 0xff) <= 0xd7)) {
+            pos++;
+        }
+        
+        pos += 2;
+        eobRun = 0;
+        acState = 0;
+        
+        for (Component comp : scan) {
+            comp.pred = 0;
+        }
+    }
+    
+    private void decodeBlock(Component comp, int offset, int ss, int se, int ah, int al) throws IOException {
+        short[] coef = comp.coefficients;
+        
+        if (!progressive) {
+            decodeSequential(comp, coef, offset);
+        } else if (ss == 0) {
+            if (ah == 0) {
+                int t = decode(comp.dc);
+                comp.pred += (t == 0) ? 0 : extend(t);
+                coef[offset] = (short) (comp.pred << al);
+            } else if (readBit() != 0) {
+                coef[offset] |= (short) (1 << al);
+            }
+        } else if (ah == 0) {
+            decodeACFirst(comp, coef, offset, ss, se, al);
+        } else {
+            decodeACRefine(comp, coef, offset, ss, se, al);
+        }
+    }
+    
+    private void decodeSequential(Component comp, short[] coef, int offset) throws IOException {
+        int t = decode(comp.dc);
+        comp.pred += (t == 0) ? 0 : extend(t);
+        coef[offset] = (short) comp.pred;
+        
+        for (int k = 1; k < 64; k++) {
+            int rs = decode(comp.ac);
+            int s = rs & 15;
+            int r = rs >> 4;
+            
+            if (s == 0) {
+                if (r < 15) {
+                    break;      //End of block
+                }
+                
+                k += 15;
+                continue;
+            }
+            
+            k += r;
+            
+            if (k > 63) {
+                throw new IOException("Corrupt JPEG block");
+            }
+            
+            coef[offset + ZIGZAG[k]] = (short) extend(s);
+        }
+    }
+    
+    private void decodeACFirst(Component comp, short[] coef, int offset, int ss, int se, int al) throws IOException {
+        if (eobRun > 0) {
+            eobRun--;
+            return;
+        }
+        
+        for (int k = ss; k <= se; k++) {
+            int rs = decode(comp.ac);
+            int s = rs & 15;
+            int r = rs >> 4;
+            
+            if (s == 0) {
+                if (r < 15) {
+                    eobRun = receive(r) + (1 << r) - 1;
+                    break;
+                }
+                
+                k += 15;
+                continue;
+            }
+            
+            k += r;
+            
+            if (k > 63) {
+                throw new IOException("Corrupt JPEG block");
+            }
+            
+            coef[offset + ZIGZAG[k]] = (short) (extend(s) * (1 << al));
+        }
+    }
+    
+    /**
+     * Refinement of AC coefficients: one correction bit per already nonzero coefficient,
+     * plus newly nonzero ones placed among the zero runs. The run state carries over
+     * between blocks, as end-of-band runs can span many blocks.
+     */
+    private void decodeACRefine(Component comp, short[] coef, int offset, int ss, int se, int al) throws IOException {
+        for (int k = ss; k <= se; k++) {
+            int z = offset + ZIGZAG[k];
+            int sign = (coef[z] < 0) ? -1 : 1;
+            
+            switch (acState) {
+                case 0:         //Read the next run/value
+                    int rs = decode(comp.ac);
+                    int s = rs & 15;
+                    int r = rs >> 4;
+                    
+                    if (s == 0) {
+                        if (r < 15) {
+                            eobRun = receive(r) + (1 << r);
+                            acState = 4;
+                        } else {
+                            acRun = 16;
+                            acState = 1;
+                        }
+                    } else {
+                        if (s != 1) {
+                            throw new IOException("Corrupt JPEG refinement scan");
+                        }
+                        
+                        acNext = extend(s);
+                        acRun = r;
+                        acState = (r > 0) ? 2 : 3;
+                    }
+                    
+                    k--;        //Handle this coefficient in the new state
+                    break;
+                case 1:         //Skipping a run of 16 zeros
+                case 2:         //Skipping zeros before a new value
+                    if (coef[z] != 0) {
+                        coef[z] += sign * (readBit() << al);
+                    } else if (--acRun == 0) {
+                        acState = (acState == 2) ? 3 : 0;
+                    }
+                    
+                    break;
+                case 3:         //Place the new value at the next zero
+                    if (coef[z] != 0) {
+                        coef[z] += sign * (readBit() << al);
+                    } else {
+                        coef[z] = (short) (acNext << al);
+                        acState = 0;
+                    }
+                    
+                    break;
+                default:        //End of band: only correction bits for the rest
+                    if (coef[z] != 0) {
+                        coef[z] += sign * (readBit() << al);
+                    }
+            }
+        }
+        
+        if (acState == 4 && --eobRun == 0) {
+            acState = 0;
+        }
+    }
+    
+    private void resetBits() {
+        bits = 0;
+        bitCount = 0;
+        markerHit = false;
+    }
+    
+    /**
+     * Tops the bit buffer up to at least 57 bits, removing stuffed zero bytes. At a marker
+     * the buffer is padded with zeros instead, as the JPEG decoders do.
+     */
+    private void fill() {
+        while (bitCount <= 56) {
+            int b = 0;
+            
+            if (!markerHit && pos < DATA.length) {
+                b = DATA[pos] & 0xff;
+                
+                if (b != 0xff) {
+                    pos++;
+                } else if (pos + 1 < DATA.length && DATA[pos + 1] == 0) {
+                    pos += 2;
+                } else {
+                    markerHit = true;
+                    b = 0;
+                }
+            }
+            
+            bits |= (long) b << (56 - bitCount);
+            bitCount += 8;
+        }
+    }
+    
+    private int readBit() {
+        if (bitCount < 1) {
+            fill();
+        }
+        
+        int bit = (int) (bits >>> 63);
+        bits <<= 1;
+        bitCount--;
+        
+        return bit;
+    }
+    
+    private int receive(int n) {
+        if (n == 0) {
+            return 0;
+        }
+        
+        if (bitCount < n) {
+            fill();
+        }
+        
+        int value = (int) (bits >>> (64 - n));
+        bits <<= n;
+        bitCount -= n;
+        
+        return value;
+    }
+    
+    private int extend(int n) {
+        int value = receive(n);
+        
+        return (value < (1 << (n - 1))) ? value - (1 << n) + 1 : value;
+    }
+    
+    private int decode(Huffman table) throws IOException {
+        if (bitCount < 16) {
+            fill();
+        }
+        
+        int entry = table.FAST[(int) (bits >>> (64 - Huffman.FAST_BITS))];
+        
+        if (entry != 0) {
+            bits <<= entry >> 8;
+            bitCount -= entry >> 8;
+            
+            return entry & 0xff;
+        }
+        
+        for (int len = Huffman.FAST_BITS + 1; len <= 16; len++) {
+            int code = (int) (bits >>> (64 - len));
+            
+            if (code <= table.MAX_CODE[len]) {
+                bits <<= len;
+                bitCount -= len;
+                
+                return table.SYMBOLS[table.VAL_PTR[len] + code - table.MIN_CODE[len]];
+            }
+        }
+        
+        throw new IOException("Corrupt JPEG, bad Huffman code");
+    }
+    
+    /**
+     * Canonical Huffman table with a direct lookup for codes of up to FAST_BITS bits.
+     */
+    private static class Huffman {
+        static final int FAST_BITS = 9;
+        
+        final int[] FAST = new int[1 << FAST_BITS];     //(length << 8) | symbol, 0 if longer
+        final int[] MIN_CODE = new int[17];
+        final int[] MAX_CODE = new int[17];
+        final int[] VAL_PTR = new int[17];
+        final int[] SYMBOLS;
+        
+        Huffman(int[] counts, int[] symbols) {
+            SYMBOLS = symbols;
+            Arrays.fill(MAX_CODE, -1);
+            int code = 0;
+            int k = 0;
+            
+            for (int len = 1; len <= 16; len++) {
+                MIN_CODE[len] = code;
+                VAL_PTR[len] = k;
+                
+                for (int i = 0; i < counts[len]; i++, k++, code++) {
+                    if (len <= FAST_BITS) {
+                        int shift = FAST_BITS - len;
+                        Arrays.fill(FAST, code << shift, (code + 1) << shift, (len << 8) | symbols[k]);
+                    }
+                }
+                
+                if (counts[len] > 0) {
+                    MAX_CODE[len] = code - 1;
+                }
+                
+                code <<= 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets: each power of two of nanoseconds is
+ * split into 8 buckets, so any latency from 1 ns to hours is kept to within about 12% in a
+ * fixed 4 KB of counters. Recording is lock-free and may be done from any thread.
+ * 
+ * @author Robert Streetman
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+    private static final int SUB_BITS = 3;                  //8 buckets per power of two
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+    
+    private final AtomicLongArray COUNTS = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records one latency.
+     * 
+     * @param nanos Latency in nanoseconds, negative values count as 0
+     */
+    public void Record(long nanos) {
+        nanos = Math.max(0, nanos);
+        COUNTS.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        
+        long seen;
+        
+        while (nanos > (seen = max.get()) && !max.compareAndSet(seen, nanos)) {
+            //Another thread raised the max, compare again
+        }
+    }
+    
+    /**
+     * Clears the histogram. Latencies recorded while clearing may be partly kept.
+     */
+    public void Reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            COUNTS.set(i, 0);
+        }
+        
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+    
+    /**
+     * Returns the latency below which the given fraction of recorded latencies fall.
+     * 
+     * @param pct   Percentile, 0-100
+     * @return      Upper bound of the bucket holding that percentile, in nanoseconds
+     */
+    public long Percentile(double pct) {
+        long n = count.get();
+        
+        if (n == 0) {
+            return 0;
+        }
+        
+        long rank = Math.max(1, (long) Math.ceil(n * pct / 100.0));
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += COUNTS.get(i);
+            
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        
+        return max.get();
+    }
+    
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+    
+    @Override
+    public double getTotalMillis() {
+        return total.get() / 1e6;
+    }
+    
+    @Override
+    public double getMeanMillis() {
+        long n = count.get();
+        
+        return (n > 0) ? total.get() / 1e6 / n : 0.0;
+    }
+    
+    @Override
+    public double getP50Millis() {
+        return Percentile(50) / 1e6;
+    }
+    
+    @Override
+    public double getP90Millis() {
+        return Percentile(90) / 1e6;
+    }
+    
+    @Override
+    public double getP99Millis() {
+        return Percentile(99) / 1e6;
+    }
+    
+    @Override
+    public double getMaxMillis() {
+        return max.get() / 1e6;
+    }
+    
+    /**
+     * Returns the histogram summary as a JSON object.
+     * 
+     * @return  Count, total and mean/p50/p90/p99/max in milliseconds
+     */
+    public String ToJSON() {
+        return String.format(Locale.ROOT, "{\"count\":%d,\"total_ms\":%.3f,\"mean_ms\":%.3f,\"p50_ms\":%.3f,"
+                + "\"p90_ms\":%.3f,\"p99_ms\":%.3f,\"max_ms\":%.3f}", getCount(), getTotalMillis(),
+                getMeanMillis(), getP50Millis(), getP90Millis(), getP99Millis(), getMaxMillis());
+    }
+    
+    /**
+     * Values below 8 get their own bucket, larger ones are bucketed by their top 4 bits.
+     */
+    private static int bucket(long nanos) {
+        if (nanos < SUB_COUNT) {
+            return (int) nanos;
+        }
+        
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        
+        return ((exp - SUB_BITS + 1) << SUB_BITS) | sub;
+    }
+    
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long lower = (long) (SUB_COUNT | (bucket & (SUB_COUNT - 1))) << shift;
+        
+        return lower + (1L << shift) - 1;
+    }
+}
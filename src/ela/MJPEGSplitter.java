@@ -0,0 +1,166 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class cuts a Motion-JPEG stream into its frames without decoding them. Frames are
+ * found by walking the JPEG marker structure from SOI to EOI, so segments that embed
+ * whole JPEGs (EXIF thumbnails) are skipped over, and anything between frames (e.g. the
+ * part headers of an HTTP multipart stream) is ignored.
+ *
+ * @author Robert Streetman
+ */
+final class MJPEGSplitter implements Closeable {
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    
+    private final InputStream IN;
+    private final ReusableByteStream FRAME = new ReusableByteStream();
+    private int pending = -1;   //Marker found at the end of entropy-coded data
+    
+    MJPEGSplitter(InputStream in) {
+        IN = new BufferedInputStream(in, 1 << 16);
+    }
+    
+    /**
+     * Reads the next frame.
+     *
+     * @return  Encoded frame from SOI to EOI, or null at the end of the stream
+     * @throws IOException  If the stream can't be read or ends inside a frame
+     */
+    byte[] Next() throws IOException {
+        //Skip to the next SOI
+        int prev = -1;
+        int b;
+        
+        while ((b = IN.read()) >= 0 && !(prev == 0xFF && b == SOI)) {
+            prev = b;
+        }
+        
+        if (b < 0) {
+            return null;
+        }
+        
+        FRAME.reset();
+        FRAME.write(0xFF);
+        FRAME.write(SOI);
+        pending = -1;
+        
+        while (true) {
+            int marker = NextMarker();
+            FRAME.write(0xFF);
+            FRAME.write(marker);
+            
+            if (marker == EOI) {
+                return FRAME.toByteArray();
+            }
+            
+            //RSTn and TEM stand alone, everything else carries a length
+            if ((marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) {
+                continue;
+            }
+            
+            int high = ReadByte();
+            int low = ReadByte();
+            FRAME.write(high);
+            FRAME.write(low);
+            
+            for (int n = ((high << 8) | low) - 2; n > 0; n--) {
+                FRAME.write(ReadByte());
+            }
+            
+            if (marker == SOS) {
+                CopyScan();
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        IN.close();
+    }
+    
+    /**
+     * Returns the next marker code, skipping fill bytes.
+     */
+    private int NextMarker() throws IOException {
+        if (pending >= 0) {
+            int marker = pending;
+            pending = -1;
+            return marker;
+        }
+        
+        int b = ReadByte();
+        
+        if (b != 0xFF) {
+            throw new IOException(String.format("Expected a marker, found 0x%02X", b));
+        }
+        
+        while (b == 0xFF) {
+            b = ReadByte();
+        }
+        
+        return b;
+    }
+    
+    /**
+     * Copies entropy-coded data up to the next marker that isn't a stuffed byte or a
+     * restart, leaving that marker pending.
+     */
+    private void CopyScan() throws IOException {
+        while (true) {
+            int b = ReadByte();
+            
+            if (b != 0xFF) {
+                FRAME.write(b);
+                continue;
+            }
+            
+            int next = ReadByte();
+            
+            while (next == 0xFF) {
+                next = ReadByte();
+            }
+            
+            if (next == 0x00 || (next >= 0xD0 && next <= 0xD7)) {
+                FRAME.write(0xFF);
+                FRAME.write(next);
+            } else {
+                pending = next;
+                return;
+            }
+        }
+    }
+    
+    private int ReadByte() throws IOException {
+        int b = IN.read();
+        
+        if (b < 0) {
+            throw new EOFException("Stream ends inside a frame");
+        }
+        
+        return b;
+    }
+}
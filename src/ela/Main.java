@@ -17,16 +17,12 @@
  */
 package ela;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import javax.imageio.ImageIO;
 
 /**
  * This class is for testing, demonstrating use of error-level analysis library.
@@ -35,96 +31,398 @@ import javax.imageio.ImageIO;
  */
 public class Main {
     //Default settings
-    private static enum Mode { FILE, FOLDER, ERR };             //Strings for different modes
+    private static enum Mode { FILE, FOLDER, SEQUENCE, ERR };             //Strings for different modes
     private static final float COMP_PCT_DEF = 0.95f;            //Default JPG recompression percentage
     private static final int DIFF_THRESH_DEF = 25;              //Default threshold for error level difference
     private static final int[] MASK_RGB = Pixel.MAGENTA.RGB();  //Default mask pixel color
+    private static final long CACHE_MB_DEF = 4096;              //Default result cache size cap
+    private static final String USAGE = "Usage: java -jar ELA.jar [--spill] [--stream] [--off-heap | --scratch DIR] [--strip-rows N] [--qualities Q1,Q2,...]"
+            + " [--cache DIR] [--cache-size MB] [--metrics FILE.jsonl|FILE.csv] [--regions N]"
+            + " [--journal FILE] [--stats-interval SECONDS] [--dct | --dct-compare] [--preview SIZE [--escalate SCORE]] [--sequence] [--stages READERS,ANALYZERS,WRITERS] [--queue N]"
+            + " [--outputs difference,masked] [--format jpeg[:QUALITY]|png|gray] [--out DIR]"
+            + " [--adaptive SENSITIVITY [--adaptive-window PIXELS]] <image file | folder>\n       java -jar ELA.jar --serve PORT [--server-threads N]";
 
     public static void main(String[] args) {
+        ELAOptions options = new ELAOptions(COMP_PCT_DEF, DIFF_THRESH_DEF, MASK_RGB);
+        String inputName = null;
+        String cacheDir = null;
+        long cacheMB = CACHE_MB_DEF;
+        String metricsFile = null;
+        String journalFile = null;
+        long statsSeconds = 0;
+        boolean dctCompare = false;
+        boolean sequence = false;
+        boolean formatGiven = false;
+        int servePort = -1;
+        int serverThreads = Runtime.getRuntime().availableProcessors();
+        int[] stages = { 2, Runtime.getRuntime().availableProcessors(), 2 };
+        int queueCapacity = Math.max(2, Runtime.getRuntime().availableProcessors());
+        
+        //Options start with "--", anything else is the input file/folder
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--spill":
+                        options.SetSpill(true);
+                        break;
+                    case "--stream":
+                        options.SetStream(true);
+                        break;
+                    case "--off-heap":
+                        options.SetStream(true).SetOffHeap(true);
+                        break;
+                    case "--scratch":
+                        options.SetStream(true).SetOffHeap(true).SetScratchDir(new File(args[++i]));
+                        break;
+                    case "--strip-rows":
+                        options.SetStripRows(Integer.parseInt(args[++i]));
+                        break;
+                    case "--qualities":
+                        options.SetQualities(parseQualities(args[++i]));
+                        break;
+                    case "--cache":
+                        cacheDir = args[++i];
+                        break;
+                    case "--cache-size":
+                        cacheMB = Long.parseLong(args[++i]);
+                        break;
+                    case "--metrics":
+                        metricsFile = args[++i];
+                        break;
+                    case "--journal":
+                        journalFile = args[++i];
+                        break;
+                    case "--dct":
+                        options.SetDCT(true);
+                        break;
+                    case "--dct-compare":
+                        dctCompare = true;
+                        break;
+                    case "--sequence":
+                        sequence = true;
+                        break;
+                    case "--preview":
+                        options.SetPreviewSize(Integer.parseInt(args[++i]));
+                        break;
+                    case "--escalate":
+                        options.SetEscalateScore(Double.parseDouble(args[++i]));
+                        break;
+                    case "--stats-interval":
+                        statsSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--regions":
+                        options.SetMaxRegions(Integer.parseInt(args[++i]));
+                        break;
+                    case "--serve":
+                        servePort = Integer.parseInt(args[++i]);
+                        break;
+                    case "--server-threads":
+                        serverThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--stages":
+                        stages = parseStages(args[++i]);
+                        break;
+                    case "--queue":
+                        queueCapacity = Integer.parseInt(args[++i]);
+                        break;
+                    case "--outputs":
+                        parseOutputs(args[++i], options);
+                        break;
+                    case "--format":
+                        parseFormat(args[++i], options);
+                        formatGiven = true;
+                        break;
+                    case "--out":
+                        options.SetOutputDir(new File(args[++i]));
+                        break;
+                    case "--adaptive":
+                        options.SetAdaptiveSensitivity(Double.parseDouble(args[++i]));
+                        break;
+                    case "--adaptive-window":
+                        options.SetAdaptiveWindow(Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        inputName = args[i];
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            inputName = null;
+            servePort = -1;
+        }
+        
+        //Strips never hold the whole difference, which metrics, sweeps and adaptive masking
+        //need, nor the whole image a JPEG encoder needs; metrics use the global threshold and
+        //sweeps write images. These would otherwise be quietly ignored
+        String conflict = null;
+        
+        if (options.Stream() && metricsFile != null) {
+            conflict = "--metrics can't be used in strip mode (--stream, --off-heap, --scratch)";
+        } else if (options.Stream() && options.Adaptive()) {
+            conflict = "--adaptive can't be used in strip mode (--stream, --off-heap, --scratch)";
+        } else if (options.Stream() && options.Qualities() != null) {
+            conflict = "--qualities can't be used in strip mode (--stream, --off-heap, --scratch)";
+        } else if (options.Stream() && formatGiven && options.OutputFormat() == OutputFormat.JPEG) {
+            conflict = "strip mode (--stream, --off-heap, --scratch) writes --format png or gray, not jpeg";
+        } else if (metricsFile != null && options.Qualities() != null) {
+            conflict = "--qualities can't be used with --metrics, which writes no images";
+        } else if (metricsFile != null && options.Adaptive()) {
+            conflict = "--adaptive can't be used with --metrics, which uses the global threshold";
+        }
+        
+        if (conflict != null) {
+            System.out.format("%nError: %s...%n%n%s%n%n", conflict, USAGE);
+            return;
+        }
+        
+        //Counters and stage latencies are always visible over JMX, the log line is opt-in
+        RuntimeStats.Global().Register();
+        
+        if (statsSeconds > 0) {
+            RuntimeStats.Global().StartLog(statsSeconds * 1000, System.err);
+        }
+        
+        //Long-running local HTTP service instead of a one-off run
+        if (servePort >= 0) {
+            try {
+                ELAServer server = new ELAServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), servePort),
+                        serverThreads, options);
+                server.Start();
+                System.out.format("%nServing ELA on http://%s:%d/ela...%n", server.Address().getHostString(),
+                        server.Address().getPort());
+            } catch (IOException ex) {
+                System.out.format("%nError Starting Server: %s...%n", ex.getMessage());
+            }
+            
+            return;
+        }
+        
+        if (inputName == null) {
+            System.out.format("%n%s%n%n", USAGE);
+            return;
+        }
+        
+        if (cacheDir != null) {
+            try {
+                options.SetCache(new ResultCache(Paths.get(cacheDir), cacheMB << 20));
+            } catch (IOException ex) {
+                System.out.format("%nError Opening Result Cache: %s...%n", ex.getMessage());
+                return;
+            }
+        }
+        
+        if (journalFile != null) {
+            try {
+                options.SetJournal(new CheckpointJournal(Paths.get(journalFile)));
+            } catch (IOException ex) {
+                System.out.format("%nError Opening Checkpoint Journal: %s...%n", ex.getMessage());
+                return;
+            }
+        }
+        
+        if (metricsFile != null) {
+            try {
+                //A resumed run adds to the metrics of the run it continues
+                options.SetMetrics(new MetricsWriter(Paths.get(metricsFile), options.Journal() != null));
+            } catch (IOException ex) {
+                System.out.format("%nError Creating Metrics File: %s...%n", ex.getMessage());
+                return;
+            }
+        }
+        
         //Check whether user wants single image file or all image files in directory
-        File inputFile = new File(args[0]);
+        File inputFile = new File(inputName);
+        
+        //Accuracy of the DCT estimate against the pixel path, as a CSV table
+        if (dctCompare) {
+            compareDCT(inputFile, options.Quality());
+            return;
+        }
+
         boolean exists = inputFile.exists();
         boolean isFile = inputFile.isFile();
         boolean isFolder = inputFile.isDirectory();
-        Mode mode = (exists && isFile) ? Mode.FILE : (exists && isFolder) ? Mode.FOLDER : Mode.ERR;
+        Mode mode = !exists ? Mode.ERR : sequence ? Mode.SEQUENCE : isFile ? Mode.FILE : isFolder ? Mode.FOLDER : Mode.ERR;
         String filename = null;
         
         switch (mode) {
             //Run ELA on a single image file...
             case FILE:
-                filename = getFileName(args[0]);
+                filename = outputName(inputFile.toPath().getParent(), inputFile.toPath(), options);
                 System.out.format("%nExamining File %s...%n", filename);
 
-                runELA(inputFile, filename, MASK_RGB);
+                runELA(inputFile, filename, options);
                 System.out.format("%nFinished...%n%n");
                 break;
-            //Run ELA on all images in designated folder....
-            case FOLDER:
-                //Make a list only of jpg, png files for now...
-                List<Path> imageFiles = new ArrayList();
-
-                try (DirectoryStream<Path> stream = 
-                        Files.newDirectoryStream(Paths.get(args[0]), "*.{jpg,jpeg,png}")) {
-                    for (Path filePath : stream) {
-                        //System.out.format("Adding File %s...%n", filePath.toString());
-                        imageFiles.add(filePath);
-                    }
-                } catch(IOException ex) {
-                    System.out.format("%nError Creating File List: %s...%n", ex.getMessage());
+            //Run ELA on the frames of a Motion-JPEG file or a folder of frames, in order...
+            case SEQUENCE:
+                //Outputs of a folder go beside it, named after it
+                if (isFile) {
+                    filename = outputName(inputFile.toPath().getParent(), inputFile.toPath(), options);
+                } else if (options.OutputDir() == null) {
+                    filename = inputFile.getAbsoluteFile().toPath().normalize().toString();
+                } else {
+                    options.OutputDir().mkdirs();
+                    filename = new File(options.OutputDir(), inputFile.getAbsoluteFile().toPath().normalize()
+                            .getFileName().toString()).getPath();
                 }
-
-                //TODO: Set up executorservice to 
-                //long startTime = System.nanoTime();
                 
-                for (Path filePath : imageFiles) {
-                    //Old method, single threaded
-                    /*
-                    filename = getFileName(filePath.toString());
+                System.out.format("%nExamining Sequence %s...%n", inputName);
 
-                    System.out.format("%nExamining File %s...", filePath.toString());
-                    runELA(filePath.toFile(), filename, MASK_RGB);
-                    */
+                runSequence(inputFile, filename, options);
+                break;
+            //Run ELA on all images in designated folder....
+            case FOLDER:
+                //Files are handed over as the walk finds them, submission blocks while the queues are full
+                DirectoryWalker walker = new DirectoryWalker(options.Journal(), options.OutputDir());
+                
+                //Streaming, sweeps, DCT estimates and previews run whole tasks on a fixed pool, the rest is pipelined
+                boolean pipelined = !options.Stream() && options.Qualities() == null && !options.DCT()
+                        && options.PreviewSize() <= 0;
+                final BatchELA batch = pipelined ? null : new BatchELA();
+                final PipelineELA pipeline = pipelined
+                        ? new PipelineELA(options, stages[0], stages[1], stages[2], queueCapacity) : null;
+                
+                try {
+                    try {
+                        final Path root = inputFile.toPath();
+                        walker.Walk(root, new DirectoryWalker.Sink() {
+                            @Override
+                            public void Accept(Path file) throws InterruptedException {
+                                String name = outputName(root, file, options);
+                                
+                                if (pipeline != null) {
+                                    pipeline.Submit(name, file.toFile());
+                                } else {
+                                    batch.Submit(new FileELATask(name, file.toFile(), options));
+                                }
+                            }
+                        });
+                    } catch (IOException ex) {
+                        //Still finish whatever was submitted
+                        System.out.format("%nError Walking Directory: %s...%n", ex.getMessage());
+                    }
+                    
+                    BatchSummary summary = pipelined ? pipeline.AwaitCompletion() : batch.AwaitCompletion();
                     
-                    //New method: start new runnable for each file
-                    filename = getFileName(filePath.toString());
-                    Runnable eval = new FileELARunnable(filename, filePath.toFile(), MASK_RGB, COMP_PCT_DEF, DIFF_THRESH_DEF);
-                    Thread thread = new Thread(eval);
-                    thread.start();
+                    for (ELAResult failure : summary.Failures()) {
+                        System.out.format("%nRunELA: Error Running Error Level Analysis on file %s: %s...", failure.FileName(), failure.Error());
+                    }
+                    
+                    System.out.format("%n%nFinished directory: %s...%n", summary);
+                    System.out.format("Found %d images, %d skipped as already done, %d skipped as earlier outputs, "
+                            + "%d unreadable entries...%n%n", walker.Found(), walker.Skipped(), walker.Outputs(),
+                            walker.Unreadable());
+                    
+                    if (pipelined) {
+                        System.out.format("%s%n%n", pipeline.StageReport());
+                    }
+                } catch (InterruptedException ex) {
+                    System.out.format("%nInterrupted while processing directory...%n%n");
+                    Thread.currentThread().interrupt();
                 }
-                
-                //long duration = System.nanoTime() - startTime;
-
-                //System.out.format("%n%nFinished directory in %d ns (%d ms)...%n%n", duration, duration / 1000000);
-                System.out.format("%n%nFinished directory...%n%n");
                 break;
         }
+        
+        //Final totals, so short runs get at least one line
+        if (statsSeconds > 0) {
+            System.err.println(RuntimeStats.Global().getLogLine());
+        }
+        
+        if (options.Journal() != null) {
+            try {
+                options.Journal().close();
+            } catch (IOException ex) {
+                System.out.format("%nError Writing Checkpoint Journal: %s...%n", ex.getMessage());
+            }
+        }
+        
+        if (options.Metrics() != null) {
+            try {
+                options.Metrics().close();
+            } catch (IOException ex) {
+                System.out.format("%nError Writing Metrics File: %s...%n", ex.getMessage());
+            }
+        }
     }
     
     /**
-     * Send this class an image File, a string for desired output file name, and an int[]
-     * RGB value to run ELA on that File, masking the difference with the given RGB value
+     * Send this class an image File, a string for desired output file name, and the run
+     * options to run ELA on that File, masking the difference with the configured RGB value
      * and saving the file to the file name.
      * 
      * @param inputFile Image file input
      * @param filename  Desired name for the output file.
-     * @param maskValue RGB value to use when masking aberrant pixels
+     * @param options   Analysis settings
      */
-    private static void runELA(File inputFile, String filename, int[] maskValue) {
+    private static void runELA(File inputFile, String filename, ELAOptions options) {
+        //Single image, so it gets every core
+        ELAResult result = new FileELATask(filename, inputFile, options,
+                Runtime.getRuntime().availableProcessors()).call();
+        
+        if (!result.Success()) {
+            System.out.format("RunELA: Error Running Error Level Analysis on file %s: %s...%n", filename, result.Error());
+        }
+    }
+    
+    /**
+     * Send this method a Motion-JPEG file or a folder of frames, a base name for the output
+     * files and the run options to analyze the frames in order, one per core at a time,
+     * and report the frames flagged as possibly spliced.
+     * 
+     * @param input     Motion-JPEG file or folder of frame images
+     * @param filename  Base name for the frame CSV and the flagged frames' images
+     * @param options   Analysis settings
+     */
+    private static void runSequence(File input, String filename, ELAOptions options) {
+        SequenceELA sequence = new SequenceELA(options, Runtime.getRuntime().availableProcessors());
+        
         try {
-            //Read image and create compressed version
-            BufferedImage imgInput = ImageIO.read(inputFile);
-            BufferedImage imgCompressed = ELA.GetCompressedImage(imgInput, filename, COMP_PCT_DEF);
+            BatchSummary summary = sequence.Run(input, filename);
             
-            //Get difference image and save it
-            BufferedImage imgDifference = ELA.GetDifferenceImage(imgInput, imgCompressed);
-            ImageIO.write(imgDifference, "jpg", new File(filename + "_difference.jpg"));
-
-            //Mask original image with difference image and save it
-            BufferedImage imgMasked = ImageUtils.MaskImages(imgInput, imgDifference, maskValue,
-                    DIFF_THRESH_DEF);
-            ImageIO.write(imgMasked, "jpg", new File(filename + "_masked.jpg"));
-        } catch(IOException ex) {
-            System.out.format("RunELA: Error Running Error Level Analysis on file %s: %s...%n", filename, ex.getMessage());
+            for (ELAResult failure : summary.Failures()) {
+                System.out.format("%nRunSequence: Error Running Error Level Analysis on frame %s: %s...", failure.FileName(), failure.Error());
+            }
+            
+            System.out.format("%n%nFinished sequence: %s...%n", summary);
+            System.out.format("%d frames flagged as possibly spliced, see %s_frames.csv...%n%n", sequence.Flagged(), filename);
+        } catch (IOException ex) {
+            System.out.format("RunSequence: Error reading sequence %s: %s...%n", input, ex.getMessage());
+        } catch (InterruptedException ex) {
+            System.out.format("%nInterrupted while processing sequence...%n%n");
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Runs the DCT estimate and the pixel path on a JPEG file, or every JPEG under a
+     * folder, printing one CSV line of agreement statistics per file.
+     * 
+     * @param input     JPEG file or folder
+     * @param quality   JPEG compression level
+     */
+    private static void compareDCT(File input, final float quality) {
+        System.out.println(DCTELA.COMPARE_HEADER);
+        DirectoryWalker.Sink sink = new DirectoryWalker.Sink() {
+            @Override
+            public void Accept(Path file) {
+                try {
+                    System.out.println(DCTELA.Compare(file.toFile(), quality));
+                } catch (IOException ex) {
+                    System.out.format("CompareDCT: Error comparing file %s: %s...%n", file, ex.getMessage());
+                }
+            }
+        };
+        
+        try {
+            if (input.isFile()) {
+                sink.Accept(input.toPath());
+            } else {
+                new DirectoryWalker(null, null).Walk(input.toPath(), sink);
+            }
+        } catch (IOException ex) {
+            System.out.format("%nError Walking Directory: %s...%n", ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
     
@@ -136,15 +434,147 @@ public class Main {
      * @return String, file name for output file.
      */
     private static String getFileName(String name) {
-        //TODO: Make this more advanced later, not robust enough
-        int length = name.length();
+        //Drop the extension, if any, but never a dot in a folder name
+        int dot = name.lastIndexOf('.');
         
-        if (name.charAt(length - 4) == '.') {
-            name = name.substring(0, length - 4);
-        } else if (name.charAt(length - 5) == '.') { //For .jpeg
-            name = name.substring(0, length - 5);
+        if (dot > name.lastIndexOf(File.separatorChar) + 1) {
+            name = name.substring(0, dot);
         }
         
         return name;
     }
+    
+    /**
+     * Send this method an input image and the folder it was found under to get the base
+     * name of its outputs: next to the input, or at the same relative path under the
+     * output directory (whose subfolders are created as needed).
+     * 
+     * @param root      Folder the input was found under, or null
+     * @param file      Input image
+     * @param options   Run options, for the output directory
+     * @return          Output base name, without suffix or extension
+     */
+    private static String outputName(Path root, Path file, ELAOptions options) {
+        if (options.OutputDir() == null) {
+            return getFileName(file.toString());
+        }
+        
+        Path relative = (root == null) ? file.getFileName() : root.relativize(file);
+        File output = new File(options.OutputDir(), relative.toString());
+        File parent = output.getParentFile();
+        
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            System.out.format("OutputName: Error creating output folder %s...%n", parent);
+        }
+        
+        return getFileName(output.getPath());
+    }
+    
+    /**
+     * Send this method a comma-separated list of output images (e.g. "difference,masked")
+     * to select them in the options.
+     * 
+     * @param list      Comma-separated output names, "difference" and/or "masked"
+     * @param options   Options to update
+     */
+    private static void parseOutputs(String list, ELAOptions options) {
+        boolean difference = false;
+        boolean masked = false;
+        
+        for (String part : list.split(",")) {
+            switch (part.trim().toLowerCase()) {
+                case "difference":
+                    difference = true;
+                    break;
+                case "masked":
+                    masked = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown output: " + part);
+            }
+        }
+        
+        options.SetOutputs(difference, masked);
+    }
+    
+    /**
+     * Send this method an output format (e.g. "png", "gray" or "jpeg:0.9") to set it, and
+     * the JPEG quality if one is given, in the options.
+     * 
+     * @param format    Format name, optionally followed by ":" and a JPEG quality 0-1
+     * @param options   Options to update
+     */
+    private static void parseFormat(String format, ELAOptions options) {
+        String[] parts = format.split(":", 2);
+        options.SetOutputFormat(OutputFormat.Parse(parts[0].trim()));
+        
+        if (parts.length > 1) {
+            float quality = Float.parseFloat(parts[1].trim());
+            
+            if (quality < 0 || quality > 1) {
+                throw new NumberFormatException("Quality out of range: " + parts[1]);
+            }
+            
+            options.SetOutputQuality(quality);
+        }
+    }
+    
+    /**
+     * Send this method a comma-separated list of JPEG qualities (e.g. "0.7,0.8,0.9,0.95")
+     * to get them as an array. Each output is named by its quality in whole percent, so
+     * qualities that round to the same percent are rejected.
+     * 
+     * @param list  Comma-separated qualities, each 0-1
+     * @return      Parsed qualities
+     */
+    private static float[] parseQualities(String list) {
+        String[] parts = list.split(",");
+        float[] qualities = new float[parts.length];
+        boolean[] named = new boolean[101];     //Outputs are named by whole percent
+        
+        for (int i = 0; i < parts.length; i++) {
+            qualities[i] = Float.parseFloat(parts[i].trim());
+            
+            if (qualities[i] < 0 || qualities[i] > 1) {
+                throw new NumberFormatException("Quality out of range: " + parts[i]);
+            }
+            
+            int percent = Math.round(qualities[i] * 100);
+            
+            if (named[percent]) {
+                throw new IllegalArgumentException("Qualities share the output name _q" + percent + ": " + list);
+            }
+            
+            named[percent] = true;
+        }
+        
+        return qualities;
+    }
+    
+    /**
+     * Send this method a comma-separated list of three thread counts (e.g. "2,8,2") to get
+     * the reader, analyzer and writer stage sizes.
+     * 
+     * @param list  Comma-separated thread counts, each at least 1
+     * @return      Parsed stage sizes
+     */
+    private static int[] parseStages(String list) {
+        String[] parts = list.split(",");
+        
+        if (parts.length != 3) {
+            throw new NumberFormatException("Expected three stage sizes: " + list);
+        }
+        
+        int[] stages = new int[3];
+        
+        for (int i = 0; i < 3; i++) {
+            stages[i] = Integer.parseInt(parts[i].trim());
+            
+            if (stages[i] < 1) {
+                throw new NumberFormatException("Stage size out of range: " + parts[i]);
+            }
+        }
+        
+        return stages;
+    }
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class writes the metrics of a whole batch to one file, one line per image. Files
+ * ending in ".csv" get CSV with a header line, anything else gets JSON lines. Workers may
+ * write concurrently.
+ * 
+ * @author Robert Streetman
+ */
+public class MetricsWriter implements Closeable {
+    private final BufferedWriter OUT;
+    private final boolean CSV;
+    
+    /**
+     * Creates (or replaces) the metrics file.
+     * 
+     * @param path  Destination file
+     * @throws IOException  If the file can't be created
+     */
+    public MetricsWriter(Path path) throws IOException {
+        this(path, false);
+    }
+    
+    /**
+     * Creates the metrics file, or adds to it when resuming an interrupted batch. The CSV
+     * header is only written to an empty file.
+     * 
+     * @param path      Destination file
+     * @param append    True to keep earlier records
+     * @throws IOException  If the file can't be opened
+     */
+    public MetricsWriter(Path path, boolean append) throws IOException {
+        boolean empty = !append || !Files.exists(path) || Files.size(path) == 0;
+        OUT = append
+                ? Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                : Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        CSV = path.getFileName().toString().toLowerCase().endsWith(".csv");
+        
+        if (CSV && empty) {
+            OUT.write(ELAMetrics.CSV_HEADER + "\n");
+        }
+    }
+    
+    /**
+     * Appends one image's metrics.
+     * 
+     * @param image     Image name
+     * @param metrics   Its metrics
+     * @throws IOException  If writing fails
+     */
+    public synchronized void Write(String image, ELAMetrics metrics) throws IOException {
+        OUT.write((CSV ? metrics.ToCSV(image) : metrics.ToJSON(image)) + "\n");
+        OUT.flush();    //Before the image is journaled, a killed run mustn't lose the record
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        OUT.close();
+    }
+}
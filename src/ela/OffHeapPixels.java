@@ -0,0 +1,163 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * This class stores packed pixels outside the Java heap, either in direct memory or in a
+ * memory-mapped scratch file, so image-sized data doesn't count against -Xmx or get
+ * scanned by the garbage collector. Pixels are copied in and out in runs through on-heap
+ * arrays.
+ * 
+ * A single NIO buffer holds at most 2 GB, so the store is split into chunks of CHUNK_INTS
+ * pixels. The scratch file is deleted as soon as it is mapped; its space and the direct
+ * memory are returned to the system when the store is garbage collected, keep stores for
+ * reuse (see BufferPool.OffHeap()) rather than creating one per image.
+ * 
+ * @author Robert Streetman
+ */
+final class OffHeapPixels implements Closeable {
+    private static final int CHUNK_INTS = 1 << 28;      //1 GB per buffer
+    
+    private final long LENGTH;
+    private final File SCRATCH_DIR;
+    private IntBuffer[] chunks;
+    
+    /**
+     * Creates a store of length pixels.
+     * 
+     * @param length        Number of pixels
+     * @param scratchDir    Directory for the mapped scratch file, or null for direct memory
+     * @throws IOException  If the scratch file can't be created or mapped
+     */
+    OffHeapPixels(long length, File scratchDir) throws IOException {
+        LENGTH = length;
+        SCRATCH_DIR = scratchDir;
+        chunks = new IntBuffer[(int) ((length + CHUNK_INTS - 1) / CHUNK_INTS)];
+        
+        if (scratchDir == null) {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = ByteBuffer.allocateDirect(4 * ChunkLength(i)).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+            
+            return;
+        }
+        
+        File scratch = Files.createTempFile(scratchDir.toPath(), "ela_", ".pixels").toFile();
+        
+        try (RandomAccessFile file = new RandomAccessFile(scratch, "rw")) {
+            file.setLength(4 * length);
+            
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 4L * i * CHUNK_INTS,
+                        4L * ChunkLength(i)).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        } finally {
+            //Mappings outlive the file's name on POSIX systems, Windows keeps it until exit
+            try {
+                Files.delete(scratch.toPath());
+            } catch (IOException ex) {
+                scratch.deleteOnExit();
+            }
+        }
+    }
+    
+    /**
+     * Number of pixels this store holds.
+     * 
+     * @return  Capacity in pixels
+     */
+    long Length() {
+        return LENGTH;
+    }
+    
+    /**
+     * Directory the store is mapped from.
+     * 
+     * @return  Scratch directory, or null for direct memory
+     */
+    File ScratchDir() {
+        return SCRATCH_DIR;
+    }
+    
+    /**
+     * Copies pixels into the store.
+     * 
+     * @param index     First pixel of the store to write
+     * @param source    Pixels to copy
+     * @param offset    First pixel of source to copy
+     * @param count     Number of pixels
+     */
+    void Put(long index, int[] source, int offset, int count) {
+        while (count > 0) {
+            IntBuffer chunk = chunks[(int) (index / CHUNK_INTS)];
+            int position = (int) (index % CHUNK_INTS);
+            int run = Math.min(count, chunk.capacity() - position);
+            
+            chunk.position(position);
+            chunk.put(source, offset, run);
+            index += run;
+            offset += run;
+            count -= run;
+        }
+    }
+    
+    /**
+     * Copies pixels out of the store.
+     * 
+     * @param index         First pixel of the store to read
+     * @param destination   Array receiving the pixels
+     * @param offset        First pixel of destination to write
+     * @param count         Number of pixels
+     */
+    void Get(long index, int[] destination, int offset, int count) {
+        while (count > 0) {
+            IntBuffer chunk = chunks[(int) (index / CHUNK_INTS)];
+            int position = (int) (index % CHUNK_INTS);
+            int run = Math.min(count, chunk.capacity() - position);
+            
+            chunk.position(position);
+            chunk.get(destination, offset, run);
+            index += run;
+            offset += run;
+            count -= run;
+        }
+    }
+    
+    /**
+     * Drops the buffers. The memory or mapping itself is released once they are collected,
+     * Java 8 has no supported way to free it sooner.
+     */
+    @Override
+    public void close() {
+        chunks = new IntBuffer[0];
+    }
+    
+    private int ChunkLength(int chunk) {
+        return (int) Math.min(CHUNK_INTS, LENGTH - (long) chunk * CHUNK_INTS);
+    }
+}
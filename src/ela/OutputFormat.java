@@ -0,0 +1,71 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.util.Locale;
+
+/**
+ * This enum lists the file formats the difference and masked images can be written in.
+ * 
+ * @author Robert Streetman
+ */
+public enum OutputFormat {
+    //Small files, but the encoder adds its own error to the error levels shown
+    JPEG(".jpg", "image/jpeg"),
+    //Lossless, written at deflate level 1 since these files are large anyway
+    PNG(".png", "image/png"),
+    //Binary PGM of each image's luma: lossless, no compression cost at all
+    GRAY(".pgm", "image/x-portable-graymap");
+    
+    private final String EXTENSION;
+    private final String CONTENT_TYPE;
+    
+    OutputFormat(String extension, String contentType) {
+        EXTENSION = extension;
+        CONTENT_TYPE = contentType;
+    }
+    
+    /**
+     * Returns the file extension of the format, including the dot.
+     * 
+     * @return  Extension such as ".png"
+     */
+    public String Extension() {
+        return EXTENSION;
+    }
+    
+    /**
+     * Returns the MIME type of the format, for HTTP responses.
+     * 
+     * @return  Content type such as "image/png"
+     */
+    public String ContentType() {
+        return CONTENT_TYPE;
+    }
+    
+    /**
+     * Looks a format up by name, ignoring case.
+     * 
+     * @param name  "jpeg", "png" or "gray"
+     * @return      The format
+     * @throws IllegalArgumentException If there is no such format
+     */
+    public static OutputFormat Parse(String name) {
+        return (name.equalsIgnoreCase("jpg")) ? JPEG : valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
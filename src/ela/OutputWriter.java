@@ -0,0 +1,355 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * This class writes the difference and masked images the way the run options ask for:
+ * which of the two, and in which format. Output names are the task's base name plus
+ * "_difference" or "_masked" (and "_qNN" for each quality of a sweep) and the format's
+ * extension.
+ * 
+ * @author Robert Streetman
+ */
+final class OutputWriter {
+    private static final String DIFFERENCE = "_difference";
+    private static final String MASKED = "_masked";
+    private static final String REGIONS = "_regions.csv";
+    private static final float PNG_FAST = 0.85f;   //The JDK writer maps quality q to deflate level 9 * (1 - q), so 1
+    
+    private OutputWriter() {
+    }
+    
+    /**
+     * Returns the format outputs are written in: the configured one, except that strip mode
+     * can't encode JPEG from rows and writes PNG instead of the JPEG default (Main rejects
+     * an explicit --format jpeg there).
+     * 
+     * @param options   Run options
+     * @return          Output format
+     */
+    static OutputFormat Format(ELAOptions options) {
+        return (options.Stream() && options.OutputFormat() == OutputFormat.JPEG) ? OutputFormat.PNG
+                : options.OutputFormat();
+    }
+    
+    /**
+     * Checks whether image runs mask adaptively, and so also write a regions file. Strip
+     * mode always uses the global threshold.
+     * 
+     * @param options   Run options
+     * @return          True if outputs come from ImageUtils.MaskImagesAdaptive()
+     */
+    static boolean Adaptive(ELAOptions options) {
+        return options.Adaptive() && !options.Stream();
+    }
+    
+    /**
+     * Returns the suffixes of the files one image produces, difference first.
+     * 
+     * @param options   Run options
+     * @return          Suffix of each selected output
+     */
+    static String[] Suffixes(ELAOptions options) {
+        String extension = Format(options).Extension();
+        List<String> suffixes = new ArrayList<>();
+        
+        if (options.OutputDifference()) {
+            suffixes.add(DIFFERENCE + extension);
+        }
+        
+        if (options.OutputMasked()) {
+            suffixes.add(MASKED + extension);
+        }
+        
+        if (Adaptive(options)) {
+            suffixes.add(REGIONS);
+        }
+        
+        return suffixes.toArray(new String[suffixes.size()]);
+    }
+    
+    /**
+     * Returns the result cache mode for image or strip runs. Default outputs keep the plain
+     * mode, so existing cache entries stay valid.
+     * 
+     * @param options   Run options
+     * @return          Mode string for ResultCache.Key()
+     */
+    static String CacheMode(ELAOptions options) {
+        String mode = options.Stream() ? "stream" : "image";
+        
+        if (options.OutputDifference() && options.OutputMasked() && Format(options) == OutputFormat.JPEG
+                && options.OutputQuality() < 0 && !Adaptive(options)) {
+            return mode;
+        }
+        
+        return mode + ":" + String.join(",", Suffixes(options)) + ":" + options.OutputQuality()
+                + (Adaptive(options) ? ":" + options.AdaptiveSensitivity() + "," + options.AdaptiveWindow()
+                        + "," + options.MaxRegions() : "");
+    }
+    
+    /**
+     * Writes the selected outputs of one image.
+     * 
+     * @param difference    Difference pixels
+     * @param masked        Masked pixels
+     * @param base          Output name without suffix
+     * @param options       Run options
+     * @throws IOException  If a file can't be written
+     */
+    static void Write(RGBRaster difference, RGBRaster masked, String base, ELAOptions options) throws IOException {
+        String extension = Format(options).Extension();
+        
+        if (options.OutputDifference()) {
+            Write(difference, new File(base + DIFFERENCE + extension), Format(options), options.OutputQuality());
+        }
+        
+        if (options.OutputMasked()) {
+            Write(masked, new File(base + MASKED + extension), Format(options), options.OutputQuality());
+        }
+    }
+    
+    /**
+     * Writes the selected outputs of one quality of a sweep, named base + "_difference_qNN"
+     * and base + "_masked_qNN" with NN the quality in whole percent.
+     * 
+     * @param difference    Difference pixels
+     * @param masked        Masked pixels, or null if OutputMasked() is off
+     * @param base          Output name without suffix
+     * @param quality       Recompression quality of this result
+     * @param options       Run options
+     * @throws IOException  If a file can't be written
+     */
+    static void WriteSweep(RGBRaster difference, RGBRaster masked, String base, float quality, ELAOptions options)
+            throws IOException {
+        String suffix = "_q" + Math.round(quality * 100) + Format(options).Extension();
+        
+        if (options.OutputDifference()) {
+            Write(difference, new File(base + DIFFERENCE + suffix), Format(options), options.OutputQuality());
+        }
+        
+        if (options.OutputMasked()) {
+            Write(masked, new File(base + MASKED + suffix), Format(options), options.OutputQuality());
+        }
+    }
+    
+    /**
+     * Writes the regions adaptive masking found, largest first, as CSV to base + "_regions.csv".
+     * 
+     * @param mask  Adaptive masking result
+     * @param base  Output name without suffix
+     * @throws IOException  If the file can't be written
+     */
+    static void WriteRegions(AdaptiveMask mask, String base) throws IOException {
+        try (Writer csv = Files.newBufferedWriter(new File(base + REGIONS).toPath(), StandardCharsets.UTF_8)) {
+            csv.write(AdaptiveMask.CSV_HEADER + "\n");
+            
+            for (Region region : mask.Regions()) {
+                csv.write(String.format("%d,%d,%d,%d,%d\n", region.X(), region.Y(), region.Width(), region.Height(),
+                        region.Pixels()));
+            }
+        }
+    }
+    
+    /**
+     * Writes one image in the given format, replacing the file.
+     * 
+     * @param raster    Pixels to write
+     * @param file      Destination file
+     * @param format    File format
+     * @param quality   JPEG quality, or a negative value for the writer's default
+     * @throws IOException  If the file can't be written
+     */
+    static void Write(RGBRaster raster, File file, OutputFormat format, float quality) throws IOException {
+        if (format == OutputFormat.JPEG) {
+            JPEGCodecs.Write(raster, file, quality);
+            return;
+        }
+        
+        long startTime = System.nanoTime();
+        
+        if (format == OutputFormat.PNG) {
+            WritePNG(ImageUtils.BGRImg(raster, BufferPool.Local().Image(BufferPool.Slot.ENCODE,
+                    raster.Width(), raster.Height())), file);
+        } else {
+            WriteGray(raster, file);
+        }
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.ENCODE, startTime);
+        RuntimeStats.Global().AddBytesWritten(file.length());
+    }
+    
+    /**
+     * Encodes one image in the given format to a stream, for responses that never touch
+     * the disk. JPEG and PNG go through the calling thread's pooled ENCODE image.
+     * 
+     * @param raster    Pixels to write
+     * @param out       Destination stream, left open
+     * @param format    Encoding
+     * @param quality   JPEG quality, or a negative value for the writer's default
+     * @throws IOException  If encoding fails
+     */
+    static void Write(RGBRaster raster, OutputStream out, OutputFormat format, float quality) throws IOException {
+        if (format == OutputFormat.GRAY) {
+            WriteGray(raster, out);
+            return;
+        }
+        
+        RenderedImage image = ImageUtils.BGRImg(raster, BufferPool.Local().Image(BufferPool.Slot.ENCODE,
+                raster.Width(), raster.Height()));
+        
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            if (format == OutputFormat.JPEG) {
+                JPEGCodecs.Write(image, stream, quality);
+            } else {
+                WritePNG(image, stream);
+            }
+        }
+    }
+    
+    /**
+     * Writes an image whose tiles are computed as they are pulled, top to bottom, such as
+     * the strip outputs of StreamingELA. JPEG can't be written this way.
+     * 
+     * @param image     Image with packed 0xRRGGBB int pixels
+     * @param file      Destination file
+     * @param format    PNG or GRAY
+     * @throws IOException  If the file can't be written
+     */
+    static void Write(RenderedImage image, File file, OutputFormat format) throws IOException {
+        if (format == OutputFormat.JPEG) {
+            throw new IllegalArgumentException("Row-by-row outputs can't be written as JPEG");
+        }
+        
+        if (format == OutputFormat.PNG) {
+            WritePNG(image, file);
+            return;
+        }
+        
+        int width = image.getWidth();
+        int[] pixels = new int[width];
+        byte[] row = new byte[width];
+        
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16)) {
+            WriteGrayHeader(out, width, image.getHeight());
+            
+            for (int y = image.getMinY(); y < image.getMinY() + image.getHeight(); ) {
+                Raster tile = image.getData(new Rectangle(image.getMinX(), y, width,
+                        Math.min(image.getTileHeight(), image.getMinY() + image.getHeight() - y)));
+                
+                for (int end = y + tile.getHeight(); y < end; y++) {
+                    tile.getDataElements(image.getMinX(), y, width, 1, pixels);
+                    GrayRow(pixels, 0, row);
+                    out.write(row);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes an image as PNG at deflate level 1, about twice as fast as ImageIO.write's
+     * default level for files a fifth larger. The image's tiles are pulled as the writer
+     * reaches them.
+     * 
+     * @param image Image to write
+     * @param file  Destination file
+     * @throws IOException  If the file can't be written
+     */
+    static void WritePNG(RenderedImage image, File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        
+        try (ImageOutputStream out = new FileImageOutputStream(file)) {
+            WritePNG(image, out);
+        }
+    }
+    
+    private static void WritePNG(RenderedImage image, ImageOutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            
+            //Java 8's PNG writer has no compression setting and keeps its default
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(PNG_FAST);
+            }
+            
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+    
+    /**
+     * Writes the luma (BT.601) of each pixel as a binary PGM.
+     */
+    private static void WriteGray(RGBRaster raster, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16)) {
+            WriteGray(raster, out);
+        }
+    }
+    
+    private static void WriteGray(RGBRaster raster, OutputStream out) throws IOException {
+        int width = raster.Width();
+        int height = raster.Height();
+        byte[] row = new byte[width];
+        
+        WriteGrayHeader(out, width, height);
+        
+        for (int r = 0; r < height; r++) {
+            GrayRow(raster.Pixels(), r * width, row);
+            out.write(row);
+        }
+    }
+    
+    private static void WriteGrayHeader(OutputStream out, int width, int height) throws IOException {
+        out.write(String.format("P5\n%d %d\n255\n", width, height).getBytes(StandardCharsets.US_ASCII));
+    }
+    
+    /**
+     * Converts one row of packed pixels, starting at index from, to luma.
+     */
+    private static void GrayRow(int[] pixels, int from, byte[] row) {
+        for (int c = 0, i = from; c < row.length; c++, i++) {
+            int p = pixels[i];
+            row[c] = (byte) ((299 * ((p >> 16) & 0xff) + 587 * ((p >> 8) & 0xff) + 114 * (p & 0xff) + 500) / 1000);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class splits per-pixel work on packed rasters into bands of whole rows and runs
+ * them with fork-join. Each band covers pixel indices [from, to), so the kernels written
+ * for a whole image run unchanged on a band and the result matches the serial one exactly.
+ * 
+ * @author Robert Streetman
+ */
+final class ParallelRows {
+    private static final int MIN_BAND_PIXELS = 1 << 16;    //Smaller bands cost more to fork than to run
+    private static final ConcurrentMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+    
+    /**
+     * Kernel applied to a band of pixels.
+     */
+    interface Band {
+        void Run(int from, int to);
+    }
+    
+    /**
+     * Kernel reducing a band of pixels to its maximum value.
+     */
+    interface MaxBand {
+        int Run(int from, int to);
+    }
+    
+    private ParallelRows() {
+    }
+    
+    /**
+     * Runs the kernel over every row of the image using up to parallelism threads.
+     * 
+     * @param parallelism   Number of threads, 1 runs on the calling thread
+     * @param width         Image width
+     * @param height        Image height
+     * @param kernel        Kernel to run on each band
+     */
+    static void ForEach(int parallelism, final int width, int height, final Band kernel) {
+        if (parallelism <= 1 || height < 2) {
+            kernel.Run(0, width * height);
+        } else {
+            final int bandRows = BandRows(parallelism, width, height);
+            
+            Pool(parallelism).invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    Split(0, height);
+                }
+                
+                private void Split(final int rowFrom, final int rowTo) {
+                    if (rowTo - rowFrom <= bandRows) {
+                        kernel.Run(rowFrom * width, rowTo * width);
+                    } else {
+                        final int mid = (rowFrom + rowTo) >>> 1;
+                        
+                        invokeAll(new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                Split(rowFrom, mid);
+                            }
+                        }, new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                Split(mid, rowTo);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Reduces every row of the image to the maximum of the kernel's band results using up
+     * to parallelism threads.
+     * 
+     * @param parallelism   Number of threads, 1 runs on the calling thread
+     * @param width         Image width
+     * @param height        Image height
+     * @param kernel        Kernel returning the maximum of a band
+     * @return              Maximum over the whole image
+     */
+    static int Max(int parallelism, int width, int height, MaxBand kernel) {
+        if (parallelism <= 1 || height < 2) {
+            return kernel.Run(0, width * height);
+        }
+        
+        return Pool(parallelism).invoke(new MaxTask(kernel, width, BandRows(parallelism, width, height), 0, height));
+    }
+    
+    /**
+     * Returns how many rows one band should hold: a few bands per thread for balance, but
+     * never so small that forking dominates.
+     */
+    private static int BandRows(int parallelism, int width, int height) {
+        int minRows = Math.max(1, MIN_BAND_PIXELS / Math.max(1, width));
+        
+        return Math.max(minRows, height / (parallelism * 4));
+    }
+    
+    /**
+     * Returns the shared pool of the given size, created on first use and kept for the rest
+     * of the run, so callers with other work to spread (e.g. quality sweeps) don't start
+     * threads per image. Its threads are daemons.
+     * 
+     * @param parallelism   Number of threads
+     * @return              Pool of that size
+     */
+    static ForkJoinPool Pool(int parallelism) {
+        ForkJoinPool pool = POOLS.get(parallelism);
+        
+        if (pool == null) {
+            ForkJoinPool created = new ForkJoinPool(parallelism);
+            pool = POOLS.putIfAbsent(parallelism, created);
+            
+            if (pool == null) {
+                pool = created;
+            } else {
+                created.shutdown();
+            }
+        }
+        
+        return pool;
+    }
+    
+    private static class MaxTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+        
+        private final MaxBand KERNEL;
+        private final int WIDTH;
+        private final int BAND_ROWS;
+        private final int ROW_FROM;
+        private final int ROW_TO;
+        
+        MaxTask(MaxBand kernel, int width, int bandRows, int rowFrom, int rowTo) {
+            KERNEL = kernel;
+            WIDTH = width;
+            BAND_ROWS = bandRows;
+            ROW_FROM = rowFrom;
+            ROW_TO = rowTo;
+        }
+        
+        @Override
+        protected Integer compute() {
+            if (ROW_TO - ROW_FROM <= BAND_ROWS) {
+                return KERNEL.Run(ROW_FROM * WIDTH, ROW_TO * WIDTH);
+            }
+            
+            int mid = (ROW_FROM + ROW_TO) >>> 1;
+            MaxTask left = new MaxTask(KERNEL, WIDTH, BAND_ROWS, ROW_FROM, mid);
+            MaxTask right = new MaxTask(KERNEL, WIDTH, BAND_ROWS, mid, ROW_TO);
+            left.fork();
+            int rightMax = right.compute();
+            
+            return Math.max(left.join(), rightMax);
+        }
+    }
+}
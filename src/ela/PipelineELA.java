@@ -0,0 +1,500 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs a directory as a three stage pipeline: readers decode images, analyzers
+ * recompress and compute the difference and mask, writers encode the outputs. The stages
+ * are connected by bounded queues and each has its own thread count, so disk and CPU work
+ * overlap and at most a fixed number of decoded images are held at once. Decoded images and
+ * output rasters go back to bounded free-lists once the next stage is done with them, so a
+ * batch of same-size images stops allocating them after the pipeline fills.
+ * 
+ * Each stage records how long its threads were busy, starved (waiting on an empty input
+ * queue) and blocked (waiting on a full output queue), and the queues are sampled for their
+ * depth. A stage that stays busy while its input queue stays full is the bottleneck.
+ * 
+ * Only single-quality runs (image outputs or metrics) are pipelined, streaming, quality
+ * sweeps, DCT estimates and previews go through BatchELA.
+ * 
+ * @author Robert Streetman
+ */
+public class PipelineELA {
+    private static final Job END = new Job(null, null);    //Tells a stage thread to stop
+    private static final long SAMPLE_MS = 20;               //Queue depth sampling period
+    
+    private final ELAOptions OPTIONS;
+    private final BatchTally TALLY = new BatchTally();
+    private final Timer SAMPLER = new Timer("ela-queue-sampler", true);
+    private final Depth FILE_DEPTH;
+    private final Depth DECODED_DEPTH;
+    private final Depth ANALYZED_DEPTH;
+    private final BlockingQueue<BufferedImage> FREE_IMAGES;     //Decoded images the analyzers are done with
+    private final BlockingQueue<int[]> FREE_PIXELS;             //Output pixels the writers are done with
+    private final Stage READ;
+    private final Stage ANALYZE;
+    private final Stage WRITE;
+    
+    /**
+     * Creates a pipeline with one analyzer per available core, two readers, two writers and
+     * queues as deep as the analyzer count.
+     * 
+     * @param options   Analysis settings
+     */
+    public PipelineELA(ELAOptions options) {
+        this(options, 2, Runtime.getRuntime().availableProcessors(), 2,
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+    
+    /**
+     * Creates and starts a pipeline with the given stage sizes.
+     * 
+     * @param options       Analysis settings
+     * @param readers       Decoding threads
+     * @param analyzers     Recompress and difference threads
+     * @param writers       Encoding threads
+     * @param queueCapacity Images allowed to wait between two stages
+     */
+    public PipelineELA(ELAOptions options, int readers, int analyzers, int writers, int queueCapacity) {
+        if (options.Stream() || options.Qualities() != null || options.DCT() || options.PreviewSize() > 0) {
+            throw new IllegalArgumentException("Streaming, sweeps, DCT estimates and previews can't be pipelined");
+        }
+        
+        OPTIONS = options;
+        FILE_DEPTH = new Depth("files", queueCapacity);
+        DECODED_DEPTH = new Depth("decoded", queueCapacity);
+        ANALYZED_DEPTH = new Depth("analyzed", queueCapacity);
+        
+        //Enough for every image a stage or queue can hold at once, two output rasters per image
+        FREE_IMAGES = new ArrayBlockingQueue<>(readers + queueCapacity + analyzers);
+        FREE_PIXELS = new ArrayBlockingQueue<>(2 * (analyzers + queueCapacity + writers));
+        
+        //Built back to front, each stage hands its stop signals to the next
+        WRITE = new Stage("write", writers, ANALYZED_DEPTH.QUEUE, null, null) {
+            @Override
+            Job Process(Job job) throws IOException {
+                write(job);
+                return null;
+            }
+        };
+        ANALYZE = new Stage("analyze", analyzers, DECODED_DEPTH.QUEUE, ANALYZED_DEPTH.QUEUE, WRITE) {
+            @Override
+            Job Process(Job job) throws IOException {
+                return analyze(job);
+            }
+        };
+        READ = new Stage("read", readers, FILE_DEPTH.QUEUE, DECODED_DEPTH.QUEUE, ANALYZE) {
+            @Override
+            Job Process(Job job) throws IOException {
+                return read(job);
+            }
+        };
+        
+        SAMPLER.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                FILE_DEPTH.Sample();
+                DECODED_DEPTH.Sample();
+                ANALYZED_DEPTH.Sample();
+            }
+        }, SAMPLE_MS, SAMPLE_MS);
+        
+        WRITE.Start();
+        ANALYZE.Start();
+        READ.Start();
+    }
+    
+    /**
+     * Queues a file for the readers, blocking while the queue is full.
+     * 
+     * @param filename  Base name for output files
+     * @param file      Image file to analyze
+     * @throws InterruptedException If interrupted while waiting for room in the queue
+     */
+    public void Submit(String filename, File file) throws InterruptedException {
+        RuntimeStats.Global().Started();
+        
+        try {
+            FILE_DEPTH.QUEUE.put(new Job(filename, file));
+        } catch (InterruptedException ex) {
+            RuntimeStats.Global().Cancelled();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Stops accepting files, waits for every stage to drain and summarizes the batch.
+     * 
+     * @return  Summary of the finished batch
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public BatchSummary AwaitCompletion() throws InterruptedException {
+        READ.Stop();
+        READ.Join();
+        ANALYZE.Join();
+        WRITE.Join();
+        SAMPLER.cancel();
+        
+        return TALLY.Summary();
+    }
+    
+    /**
+     * Describes where each stage spent its time and how full each queue ran, naming the
+     * stage with the highest utilization as the bottleneck. Meant to be called after
+     * AwaitCompletion.
+     * 
+     * @return  Multi-line stage and queue report
+     */
+    public String StageReport() {
+        StringBuilder report = new StringBuilder();
+        Stage bottleneck = READ;
+        
+        for (Stage stage : new Stage[] { READ, ANALYZE, WRITE }) {
+            report.append(stage).append(String.format("%n"));
+            
+            if (stage.Utilization() > bottleneck.Utilization()) {
+                bottleneck = stage;
+            }
+        }
+        
+        for (Depth depth : new Depth[] { FILE_DEPTH, DECODED_DEPTH, ANALYZED_DEPTH }) {
+            report.append(depth).append(String.format("%n"));
+        }
+        
+        report.append("bottleneck: ").append(bottleneck.NAME);
+        
+        return report.toString();
+    }
+    
+    private Job read(Job job) throws IOException {
+        //Metrics aren't files, only image runs are cached
+        ResultCache cache = (OPTIONS.Metrics() == null) ? OPTIONS.Cache() : null;
+        
+        if (cache != null) {
+            job.key = cache.Key(job.FILE, OPTIONS, OutputWriter.CacheMode(OPTIONS));
+            
+            if (cache.Restore(job.key, job.NAME, OutputWriter.Suffixes(OPTIONS))) {
+                completed(job);
+                record(ELAResult.Cached(job.NAME, System.nanoTime() - job.startTime));
+                return null;
+            }
+        }
+        
+        //Decoded into a free image when one of this size is waiting, the analyzer hands it back
+        long startTime = System.nanoTime();
+        job.input = ImageUtils.Read(job.FILE, FREE_IMAGES.poll());
+        
+        RuntimeStats.Global().Time(RuntimeStats.Stage.DECODE, startTime);
+        RuntimeStats.Global().AddBytesRead(job.FILE.length());
+        
+        return job;
+    }
+    
+    private Job analyze(Job job) throws IOException {
+        //Intermediates stay on this thread and come from its pool, the outputs go to a
+        //writer thread and come from the free-list it returns them to
+        BufferPool pool = BufferPool.Local();
+        int width = job.input.getWidth();
+        int height = job.input.getHeight();
+        BufferedImage imgCompressed = OPTIONS.Spill()
+                ? ELA.GetCompressedImage(job.input, job.NAME, OPTIONS.Quality())
+                : ELA.GetCompressedImage(job.input, OPTIONS.Quality(), pool.Image(BufferPool.Slot.COMPRESSED, width, height));
+        
+        if (imgCompressed == null) {
+            throw new IOException("Could not recompress image");
+        }
+        
+        RGBRaster original = ImageUtils.RGBPacked(job.input, pool.Raster(BufferPool.Slot.ORIGINAL_PIXELS, width, height));
+        RGBRaster compressed = ImageUtils.RGBPacked(imgCompressed, pool.Raster(BufferPool.Slot.COMPRESSED_PIXELS, width, height));
+        
+        //Only the layout the JPEG decoder fills can be decoded into again
+        if (job.input.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            FREE_IMAGES.offer(job.input);
+        }
+        
+        job.input = null;
+        
+        //Metrics only: one record for the batch file, nothing for the writers
+        if (OPTIONS.Metrics() != null) {
+            ELAMetrics metrics = ELA.GetMetrics(original, compressed, OPTIONS.Threshold(),
+                    OPTIONS.MaxRegions(), 1);
+            OPTIONS.Metrics().Write(job.FILE.getPath(), metrics);
+            completed(job);
+            record(ELAResult.Succeeded(job.NAME, System.nanoTime() - job.startTime));
+            return null;
+        }
+        
+        job.difference = raster(width, height);
+        job.masked = raster(width, height);
+        
+        if (OutputWriter.Adaptive(OPTIONS)) {
+            ELA.GetDifferenceImage(original, compressed, 1, job.difference);
+            job.mask = ImageUtils.MaskImagesAdaptive(original, job.difference, OPTIONS.MaskColor(),
+                    OPTIONS.AdaptiveSensitivity(), OPTIONS.AdaptiveWindow(), OPTIONS.MaxRegions(), 1, job.masked);
+        } else {
+            ELA.GetDifferenceAndMask(original, compressed, OPTIONS.MaskColor(), OPTIONS.Threshold(), 1,
+                    job.difference, job.masked);
+        }
+        
+        return job;
+    }
+    
+    private void write(Job job) throws IOException {
+        OutputWriter.Write(job.difference, job.masked, job.NAME, OPTIONS);
+        
+        if (job.mask != null) {
+            OutputWriter.WriteRegions(job.mask, job.NAME);
+            job.mask = null;
+        }
+        
+        FREE_PIXELS.offer(job.difference.Pixels());
+        FREE_PIXELS.offer(job.masked.Pixels());
+        job.difference = null;
+        job.masked = null;
+        
+        if (job.key != null) {
+            OPTIONS.Cache().Store(job.key, job.NAME, OutputWriter.Suffixes(OPTIONS));
+        }
+        
+        completed(job);
+        record(ELAResult.Succeeded(job.NAME, System.nanoTime() - job.startTime));
+    }
+    
+    /**
+     * Returns an output raster on free pixels of the right size, or on new ones. A free
+     * array of another size is dropped, so the free-list turns over to a new image size.
+     */
+    private RGBRaster raster(int width, int height) {
+        int[] pixels = FREE_PIXELS.poll();
+        
+        if (pixels == null || pixels.length != width * height) {
+            pixels = new int[width * height];
+        }
+        
+        return new RGBRaster(width, height, pixels);
+    }
+    
+    private void record(ELAResult result) {
+        TALLY.Record(result);
+        RuntimeStats.Global().Finished(result);
+    }
+    
+    private void completed(Job job) throws IOException {
+        if (OPTIONS.Journal() != null) {
+            OPTIONS.Journal().Completed(job.FILE.toPath());
+        }
+    }
+    
+    /**
+     * One image moving through the pipeline, each stage fills in what the next one needs.
+     */
+    private static class Job {
+        final String NAME;
+        final File FILE;
+        long startTime;
+        String key;
+        BufferedImage input;
+        RGBRaster difference;
+        RGBRaster masked;
+        AdaptiveMask mask;
+        
+        Job(String name, File file) {
+            NAME = name;
+            FILE = file;
+        }
+    }
+    
+    /**
+     * A bounded queue between two stages, with its sampled depth.
+     */
+    private static class Depth {
+        final String NAME;
+        final BlockingQueue<Job> QUEUE;
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong samples = new AtomicLong();
+        private final AtomicInteger max = new AtomicInteger();
+        
+        Depth(String name, int capacity) {
+            NAME = name;
+            QUEUE = new ArrayBlockingQueue<>(capacity);
+        }
+        
+        void Sample() {
+            int depth = QUEUE.size();
+            total.addAndGet(depth);
+            samples.incrementAndGet();
+            
+            if (depth > max.get()) {
+                max.set(depth);     //Only the sampler thread writes
+            }
+        }
+        
+        @Override
+        public String toString() {
+            long n = samples.get();
+            
+            return String.format("%-8s queue: avg %.1f / %d, max %d", NAME, (n > 0) ? total.get() / (double) n : 0.0,
+                    QUEUE.size() + QUEUE.remainingCapacity(), max.get());
+        }
+    }
+    
+    /**
+     * A group of threads taking jobs from one queue and putting them on the next. When the
+     * last thread of a stage stops, it sends one stop signal per thread of the next stage.
+     */
+    private abstract class Stage {
+        final String NAME;
+        private final BlockingQueue<Job> IN;
+        private final BlockingQueue<Job> OUT;
+        private final Stage NEXT;
+        private final List<Thread> THREADS = new ArrayList<>();
+        private final AtomicInteger running;
+        private final AtomicLong busy = new AtomicLong();
+        private final AtomicLong starved = new AtomicLong();
+        private final AtomicLong blocked = new AtomicLong();
+        
+        Stage(String name, int threads, BlockingQueue<Job> in, BlockingQueue<Job> out, Stage next) {
+            NAME = name;
+            IN = in;
+            OUT = out;
+            NEXT = next;
+            running = new AtomicInteger(threads);
+            
+            for (int i = 0; i < threads; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "ela-" + name + "-" + i);
+                thread.setDaemon(true);
+                THREADS.add(thread);
+            }
+        }
+        
+        /**
+         * Does this stage's part of the job.
+         * 
+         * @param job   Job from the input queue
+         * @return      Job for the next stage, or null if the job is finished
+         * @throws IOException  If the stage's work fails, the job is recorded as failed
+         */
+        abstract Job Process(Job job) throws IOException;
+        
+        void Start() {
+            for (Thread thread : THREADS) {
+                thread.start();
+            }
+        }
+        
+        void Stop() throws InterruptedException {
+            for (int i = 0; i < THREADS.size(); i++) {
+                IN.put(END);
+            }
+        }
+        
+        void Join() throws InterruptedException {
+            for (Thread thread : THREADS) {
+                thread.join();
+            }
+        }
+        
+        /**
+         * Returns the fraction of this stage's thread time spent working.
+         * 
+         * @return  Busy time over busy, starved and blocked time
+         */
+        double Utilization() {
+            long total = busy.get() + starved.get() + blocked.get();
+            
+            return (total > 0) ? busy.get() / (double) total : 0.0;
+        }
+        
+        private void work() {
+            try {
+                while (true) {
+                    long takeStart = System.nanoTime();
+                    Job job = IN.take();
+                    long workStart = System.nanoTime();
+                    starved.addAndGet(workStart - takeStart);
+                    
+                    if (job == END) {
+                        break;
+                    }
+                    
+                    if (job.startTime == 0) {
+                        job.startTime = workStart;
+                    }
+                    
+                    Job next = null;
+                    
+                    try {
+                        next = Process(job);
+                    } catch (IOException ex) {
+                        record(ELAResult.Failed(job.NAME, ex.getMessage(), System.nanoTime() - job.startTime));
+                    } catch (Throwable ex) {
+                        //Errors too (e.g. out of memory on one huge image): a dead thread would leave
+                        //its job unrecorded and, once the stage is empty, block the stage before it
+                        job.input = null;
+                        job.difference = null;
+                        job.masked = null;
+                        job.mask = null;
+                        record(ELAResult.Failed(job.NAME, ex.toString(), System.nanoTime() - job.startTime));
+                    }
+                    
+                    long putStart = System.nanoTime();
+                    busy.addAndGet(putStart - workStart);
+                    
+                    if (next != null) {
+                        OUT.put(next);
+                        blocked.addAndGet(System.nanoTime() - putStart);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (running.decrementAndGet() == 0 && NEXT != null) {
+                    try {
+                        NEXT.Stop();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%-8s %2d threads: busy %d ms, starved %d ms, blocked %d ms (%.0f%% utilized)",
+                    NAME, THREADS.size(), busy.get() / 1000000, starved.get() / 1000000,
+                    blocked.get() / 1000000, Utilization() * 100);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class holds the outcome of ELA at one recompression quality, as produced by a
+ * quality sweep.
+ * 
+ * @author Robert Streetman
+ */
+public class QualityResult {
+    public static final String CSV_HEADER = "image,quality,mean_r,mean_g,mean_b,mean,max_r,max_g,max_b,p99_r,p99_g,p99_b";
+    
+    private final float QUALITY;
+    private final BufferedImage DIFFERENCE;
+    private final ErrorStats STATS;
+    
+    QualityResult(float quality, BufferedImage difference, ErrorStats stats) {
+        QUALITY = quality;
+        DIFFERENCE = difference;
+        STATS = stats;
+    }
+    
+    public float Quality() {
+        return QUALITY;
+    }
+    
+    public BufferedImage Difference() {
+        return DIFFERENCE;
+    }
+    
+    public ErrorStats Stats() {
+        return STATS;
+    }
+    
+    /**
+     * Writes one image's error-level vs quality curve as CSV, one row per quality.
+     * 
+     * @param image     Image name for the first column
+     * @param results   Sweep results, in quality order
+     * @param out       Destination
+     * @param header    Whether to write the header line first
+     * @throws IOException  If writing fails
+     */
+    public static void WriteCSV(String image, List<QualityResult> results, Writer out, boolean header)
+            throws IOException {
+        if (header) {
+            out.write(CSV_HEADER + "\n");
+        }
+        
+        for (QualityResult result : results) {
+            ErrorStats s = result.STATS;
+            
+            out.write(String.format(Locale.ROOT, "\"%s\",%.2f,%.4f,%.4f,%.4f,%.4f,%d,%d,%d,%d,%d,%d\n",
+                    image.replace("\"", "\"\""), result.QUALITY,
+                    s.Mean(ErrorStats.RED), s.Mean(ErrorStats.GREEN), s.Mean(ErrorStats.BLUE), s.Mean(),
+                    s.Max(ErrorStats.RED), s.Max(ErrorStats.GREEN), s.Max(ErrorStats.BLUE),
+                    s.Percentile(ErrorStats.RED, 99), s.Percentile(ErrorStats.GREEN, 99),
+                    s.Percentile(ErrorStats.BLUE, 99)));
+        }
+    }
+}
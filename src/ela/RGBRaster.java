@@ -0,0 +1,84 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+/**
+ * This class holds an image's RGB pixels as one packed int per pixel (0xRRGGBB), row by row.
+ * Only the low 24 bits of each pixel are meaningful.
+ * 
+ * @author Robert Streetman
+ */
+public class RGBRaster {
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final int[] PIXELS;
+    
+    /**
+     * Creates an empty (black) raster.
+     * 
+     * @param width     Width in pixels
+     * @param height    Height in pixels
+     */
+    public RGBRaster(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+    
+    /**
+     * Wraps an existing packed pixel array, the array is not copied.
+     * 
+     * @param width     Width in pixels
+     * @param height    Height in pixels
+     * @param pixels    Packed 0xRRGGBB pixels, at least width * height long
+     */
+    public RGBRaster(int width, int height, int[] pixels) {
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Raster dimensions do not match pixel data");
+        }
+        
+        WIDTH = width;
+        HEIGHT = height;
+        PIXELS = pixels;
+    }
+    
+    public int Width() {
+        return WIDTH;
+    }
+    
+    public int Height() {
+        return HEIGHT;
+    }
+    
+    /**
+     * Returns the backing array, pixel (column, row) is at index row * Width() + column.
+     * 
+     * @return  Packed pixel data
+     */
+    public int[] Pixels() {
+        return PIXELS;
+    }
+    
+    /**
+     * Packs an RGB triple (values 0-255) into one pixel value.
+     * 
+     * @param rgb   Red, green, blue
+     * @return      Packed 0xRRGGBB value
+     */
+    public static int Pack(int[] rgb) {
+        return ((rgb[0] & 0xff) << 16) | ((rgb[1] & 0xff) << 8) | (rgb[2] & 0xff);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+/**
+ * This class describes one connected region of high error level: its bounding box and how
+ * many pixels it covers.
+ * 
+ * @author Robert Streetman
+ */
+public class Region {
+    private final int MIN_X;
+    private final int MIN_Y;
+    private final int MAX_X;
+    private final int MAX_Y;
+    private final long PIXELS;
+    
+    Region(int minX, int minY, int maxX, int maxY, long pixels) {
+        MIN_X = minX;
+        MIN_Y = minY;
+        MAX_X = maxX;
+        MAX_Y = maxY;
+        PIXELS = pixels;
+    }
+    
+    public int X() {
+        return MIN_X;
+    }
+    
+    public int Y() {
+        return MIN_Y;
+    }
+    
+    public int Width() {
+        return MAX_X - MIN_X + 1;
+    }
+    
+    public int Height() {
+        return MAX_Y - MIN_Y + 1;
+    }
+    
+    public long Pixels() {
+        return PIXELS;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d:%d:%d:%d:%d", MIN_X, MIN_Y, Width(), Height(), PIXELS);
+    }
+}
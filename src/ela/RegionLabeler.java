@@ -0,0 +1,333 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class finds 8-connected regions of flagged pixels with a single pass of union-find
+ * over horizontal runs. Runs must be added row by row, top to bottom; only the previous
+ * row's runs are kept for matching, so no full-image label map is needed.
+ * 
+ * When a row is done, every region the next row can no longer reach is closed and its
+ * labels are recycled, so the label arrays stay in proportion to the runs of two rows
+ * rather than of the whole image. Closed regions are trimmed to the largest maxRegions
+ * as they accumulate.
+ * 
+ * @author Robert Streetman
+ */
+class RegionLabeler {
+    private final int MAX_REGIONS;
+    
+    //Per label: union-find parent, bounding box, size and the creation order of the first run
+    private int[] parent = new int[256];
+    private int[] minX = new int[256];
+    private int[] maxX = new int[256];
+    private int[] minY = new int[256];
+    private int[] maxY = new int[256];
+    private long[] pixels = new long[256];
+    private long[] first = new long[256];
+    private int[] mark = new int[256];
+    private int labels = 0;         //Labels ever handed out
+    private long runs = 0;          //Runs ever added
+    
+    //Labels handed out since the last row closed or kept open by it, and recycled labels
+    private int[] active = new int[256];
+    private int activeCount = 0;
+    private int[] free = new int[256];
+    private int freeCount = 0;
+    private int stamp = 0;
+    
+    //Closed regions, with the creation order of their first run to break size ties
+    private final List<Region> closed = new ArrayList<>();
+    private final List<Long> closedFirst = new ArrayList<>();
+    private int closedCount = 0;
+    
+    //Runs of the previous and current rows: start, end (inclusive), label
+    private int[] prevRuns = new int[48];
+    private int prevCount = 0;
+    private int[] curRuns = new int[48];
+    private int curCount = 0;
+    private int curRow = -1;
+    private int prevMatch = 0;      //First previous-row run which may still touch the next run
+    
+    /**
+     * Creates a labeler which keeps the given number of largest regions.
+     * 
+     * @param maxRegions    Max number of regions Regions() returns
+     */
+    RegionLabeler(int maxRegions) {
+        MAX_REGIONS = Math.max(0, maxRegions);
+    }
+    
+    /**
+     * Adds the run of flagged pixels [x0, x1] on the given row.
+     * 
+     * @param row   Row of the run, never smaller than the previous call's
+     * @param x0    First flagged column
+     * @param x1    Last flagged column
+     */
+    void AddRun(int row, int x0, int x1) {
+        if (row != curRow) {
+            //Previous row is only useful if it is directly above this one
+            if (row == curRow + 1) {
+                Close(curRuns, curCount);
+                int[] swap = prevRuns;
+                prevRuns = curRuns;
+                curRuns = swap;
+                prevCount = curCount;
+            } else {
+                Close(curRuns, 0);
+                prevCount = 0;
+            }
+            
+            curCount = 0;
+            curRow = row;
+            prevMatch = 0;
+        }
+        
+        int label = NewLabel(row, x0, x1);
+        
+        //Runs arrive left to right, so earlier previous runs ending left of x0 - 1 are done
+        while (prevMatch < prevCount && prevRuns[prevMatch * 3 + 1] < x0 - 1) {
+            prevMatch++;
+        }
+        
+        for (int p = prevMatch; p < prevCount && prevRuns[p * 3] <= x1 + 1; p++) {
+            Union(label, prevRuns[p * 3 + 2]);
+        }
+        
+        if ((curCount + 1) * 3 > curRuns.length) {
+            curRuns = Arrays.copyOf(curRuns, curRuns.length * 2);
+        }
+        
+        curRuns[curCount * 3] = x0;
+        curRuns[curCount * 3 + 1] = x1;
+        curRuns[curCount * 3 + 2] = label;
+        curCount++;
+    }
+    
+    /**
+     * Adds every run of flagged pixels of one row.
+     * 
+     * @param row       Row index
+     * @param flagged   Flags of the row's pixels, at least width long
+     * @param width     Row width
+     */
+    void AddRow(int row, boolean[] flagged, int width) {
+        int c = 0;
+        
+        while (c < width) {
+            if (flagged[c]) {
+                int start = c;
+                
+                while (c < width && flagged[c]) {
+                    c++;
+                }
+                
+                AddRun(row, start, c - 1);
+            } else {
+                c++;
+            }
+        }
+    }
+    
+    /**
+     * Returns the largest regions found, by pixel count. Call after the last row.
+     * 
+     * @return  Up to maxRegions regions, largest first
+     */
+    List<Region> Regions() {
+        Finish();
+        Trim();
+        
+        return new ArrayList<>(closed);
+    }
+    
+    /**
+     * Returns how many distinct regions were found. Call after the last row.
+     * 
+     * @return  Number of regions
+     */
+    int Count() {
+        Finish();
+        
+        return closedCount;
+    }
+    
+    /**
+     * Closes every region still open, no further row can reach them.
+     */
+    private void Finish() {
+        Close(curRuns, 0);
+        curCount = 0;
+        prevCount = 0;
+    }
+    
+    /**
+     * Points the given runs straight at their regions' roots, then closes every region
+     * those runs don't belong to and recycles all labels but those roots.
+     * 
+     * @param open      Runs whose regions stay open: start, end, label
+     * @param openCount Number of runs
+     */
+    private void Close(int[] open, int openCount) {
+        stamp++;
+        
+        for (int r = 0; r < openCount; r++) {
+            int root = Find(open[r * 3 + 2]);
+            open[r * 3 + 2] = root;
+            mark[root] = stamp;
+        }
+        
+        int kept = 0;
+        
+        for (int i = 0; i < activeCount; i++) {
+            int label = active[i];
+            
+            if (mark[label] == stamp) {
+                active[kept++] = label;
+                continue;
+            }
+            
+            if (parent[label] == label) {
+                closedCount++;
+                
+                if (MAX_REGIONS > 0) {
+                    closed.add(new Region(minX[label], minY[label], maxX[label], maxY[label], pixels[label]));
+                    closedFirst.add(first[label]);
+                }
+            }
+            
+            free[freeCount++] = label;
+        }
+        
+        activeCount = kept;
+        
+        if (closed.size() > 2 * MAX_REGIONS) {
+            Trim();
+        }
+    }
+    
+    /**
+     * Drops all but the largest MAX_REGIONS closed regions, earlier regions first on ties.
+     */
+    private void Trim() {
+        Integer[] order = new Integer[closed.size()];
+        
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int bySize = Long.compare(closed.get(b).Pixels(), closed.get(a).Pixels());
+                
+                return (bySize != 0) ? bySize : Long.compare(closedFirst.get(a), closedFirst.get(b));
+            }
+        });
+        
+        List<Region> regions = new ArrayList<>();
+        List<Long> firsts = new ArrayList<>();
+        
+        for (int i = 0; i < Math.min(MAX_REGIONS, order.length); i++) {
+            regions.add(closed.get(order[i]));
+            firsts.add(closedFirst.get(order[i]));
+        }
+        
+        closed.clear();
+        closed.addAll(regions);
+        closedFirst.clear();
+        closedFirst.addAll(firsts);
+    }
+    
+    private int NewLabel(int row, int x0, int x1) {
+        int label;
+        
+        if (freeCount > 0) {
+            label = free[--freeCount];
+        } else {
+            if (labels == parent.length) {
+                int size = labels * 2;
+                parent = Arrays.copyOf(parent, size);
+                minX = Arrays.copyOf(minX, size);
+                maxX = Arrays.copyOf(maxX, size);
+                minY = Arrays.copyOf(minY, size);
+                maxY = Arrays.copyOf(maxY, size);
+                pixels = Arrays.copyOf(pixels, size);
+                first = Arrays.copyOf(first, size);
+                mark = Arrays.copyOf(mark, size);
+                active = Arrays.copyOf(active, size);
+                free = Arrays.copyOf(free, size);
+            }
+            
+            label = labels++;
+        }
+        
+        parent[label] = label;
+        minX[label] = x0;
+        maxX[label] = x1;
+        minY[label] = row;
+        maxY[label] = row;
+        pixels[label] = x1 - x0 + 1;
+        first[label] = runs++;
+        active[activeCount++] = label;
+        
+        return label;
+    }
+    
+    private int Find(int label) {
+        int root = label;
+        
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        
+        //Path compression
+        while (parent[label] != root) {
+            int next = parent[label];
+            parent[label] = root;
+            label = next;
+        }
+        
+        return root;
+    }
+    
+    private void Union(int a, int b) {
+        int rootA = Find(a);
+        int rootB = Find(b);
+        
+        if (rootA == rootB) {
+            return;
+        }
+        
+        //Keep the older region as root, merge the bounding box and size into it
+        int root = (first[rootA] < first[rootB]) ? rootA : rootB;
+        int child = (root == rootA) ? rootB : rootA;
+        parent[child] = root;
+        minX[root] = Math.min(minX[root], minX[child]);
+        maxX[root] = Math.max(maxX[root], maxX[child]);
+        minY[root] = Math.min(minY[root], minY[child]);
+        maxY[root] = Math.max(maxY[root], maxY[child]);
+        pixels[root] += pixels[child];
+    }
+}
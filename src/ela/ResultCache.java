@@ -0,0 +1,287 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * This class is an on-disk cache of ELA outputs, keyed by a SHA-256 hash of the input file's
+ * content plus every setting that affects the output. A hit restores the cached output files
+ * without decoding the image at all.
+ * 
+ * Each entry is a directory named by its key holding one file per output suffix. Entries are
+ * evicted least recently used first once the cache exceeds its size cap; use is recorded in
+ * the entry's modification time so the order survives between runs.
+ * 
+ * @author Robert Streetman
+ */
+public class ResultCache {
+    private static final String VERSION = "ela-1";      //Change when outputs change, invalidates old entries
+    private static final int HASH_BUFFER = 1 << 16;
+    
+    private final Path DIR;
+    private final long MAX_BYTES;
+    private final LinkedHashMap<String, Long> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);  //Key -> bytes, LRU order
+    private long totalBytes = 0;
+    
+    /**
+     * Opens (or creates) a cache directory and indexes its entries.
+     * 
+     * @param dir       Cache directory
+     * @param maxBytes  Size cap, least recently used entries are evicted beyond it
+     * @throws IOException  If the directory can't be created or read
+     */
+    public ResultCache(Path dir, long maxBytes) throws IOException {
+        DIR = dir;
+        MAX_BYTES = maxBytes;
+        Files.createDirectories(dir);
+        
+        //Rebuild LRU order from the entries' last use
+        List<Path> entries = new ArrayList<>();
+        
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                if (Files.isDirectory(entry) && !entry.getFileName().toString().contains(".tmp")) {
+                    entries.add(entry);
+                } else if (Files.isDirectory(entry)) {
+                    DeleteEntry(entry);     //Left over from an interrupted store
+                }
+            }
+        }
+        
+        final Map<Path, FileTime> used = new LinkedHashMap<>();
+        
+        for (Path entry : entries) {
+            used.put(entry, Files.getLastModifiedTime(entry));
+        }
+        
+        Collections.sort(entries, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return used.get(a).compareTo(used.get(b));
+            }
+        });
+        
+        for (Path entry : entries) {
+            long bytes = EntryBytes(entry);
+            ENTRIES.put(entry.getFileName().toString(), bytes);
+            totalBytes += bytes;
+        }
+    }
+    
+    /**
+     * Computes the cache key of an input file under the given settings.
+     * 
+     * @param input     Input image file
+     * @param options   Analysis settings
+     * @param mode      Name of the output mode, so different modes never share an entry
+     * @return          Hex key
+     * @throws IOException  If the file can't be read
+     */
+    public String Key(File input, ELAOptions options, String mode) throws IOException {
+        MessageDigest digest = Digest();
+        byte[] buffer = new byte[HASH_BUFFER];
+        
+        try (InputStream in = Files.newInputStream(input.toPath())) {
+            int read;
+            
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        
+        int[] mask = options.MaskColor();
+        String settings = String.format("|%s|%s|q=%s|t=%d|m=%d,%d,%d", VERSION, mode,
+                Float.toString(options.Quality()), options.Threshold(), mask[0], mask[1], mask[2]);
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        
+        return Hex(digest.digest());
+    }
+    
+    /**
+     * Restores a cached entry's outputs to outputBase + suffix, replacing whatever is
+     * there. Existing outputs may come from other settings, often with the same size (e.g.
+     * PGMs of one image), so they are never trusted.
+     * 
+     * @param key           Cache key
+     * @param outputBase    Output file name without suffix
+     * @param suffixes      Output suffixes stored in the entry
+     * @return              True on a hit, false if the key isn't cached
+     * @throws IOException  If an output can't be restored
+     */
+    public boolean Restore(String key, String outputBase, String[] suffixes) throws IOException {
+        synchronized (this) {
+            if (ENTRIES.get(key) == null) {
+                return false;
+            }
+        }
+        
+        Path entry = DIR.resolve(key);
+        
+        try {
+            for (String suffix : suffixes) {
+                Files.copy(entry.resolve(suffix), new File(outputBase + suffix).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            //Evicted by another run meanwhile, treat as a miss
+            if (!Files.isDirectory(entry)) {
+                Forget(key);
+                return false;
+            }
+            
+            throw ex;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Stores freshly written outputs under the key, then evicts old entries if the cache is
+     * over its cap.
+     * 
+     * @param key           Cache key
+     * @param outputBase    Output file name without suffix
+     * @param suffixes      Output suffixes to store
+     * @throws IOException  If the outputs can't be copied into the cache
+     */
+    public void Store(String key, String outputBase, String[] suffixes) throws IOException {
+        Path entry = DIR.resolve(key);
+        Path staging = DIR.resolve(key + ".tmp-" + UUID.randomUUID());
+        long bytes = 0;
+        
+        //Copy into a staging directory and rename, so readers never see half an entry
+        Files.createDirectories(staging);
+        
+        try {
+            for (String suffix : suffixes) {
+                Path output = new File(outputBase + suffix).toPath();
+                Files.copy(output, staging.resolve(suffix));
+                bytes += Files.size(output);
+            }
+            
+            Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ex) {
+            DeleteEntry(staging);   //Stored concurrently by another worker
+            return;
+        } catch (IOException ex) {
+            DeleteEntry(staging);
+            
+            if (Files.isDirectory(entry)) {
+                return;
+            }
+            
+            throw ex;
+        }
+        
+        List<String> evicted = new ArrayList<>();
+        
+        synchronized (this) {
+            if (ENTRIES.put(key, bytes) == null) {
+                totalBytes += bytes;
+            }
+            
+            Iterator<Map.Entry<String, Long>> oldest = ENTRIES.entrySet().iterator();
+            
+            while (totalBytes > MAX_BYTES && oldest.hasNext()) {
+                Map.Entry<String, Long> victim = oldest.next();
+                
+                if (!victim.getKey().equals(key)) {
+                    totalBytes -= victim.getValue();
+                    evicted.add(victim.getKey());
+                    oldest.remove();
+                }
+            }
+        }
+        
+        for (String victim : evicted) {
+            DeleteEntry(DIR.resolve(victim));
+        }
+    }
+    
+    private synchronized void Forget(String key) {
+        Long bytes = ENTRIES.remove(key);
+        
+        if (bytes != null) {
+            totalBytes -= bytes;
+        }
+    }
+    
+    private static long EntryBytes(Path entry) throws IOException {
+        long bytes = 0;
+        
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry)) {
+            for (Path file : stream) {
+                bytes += Files.size(file);
+            }
+        }
+        
+        return bytes;
+    }
+    
+    private static void DeleteEntry(Path entry) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+            
+            Files.deleteIfExists(entry);
+        } catch (IOException ex) {
+            System.out.format("ResultCache: Error deleting cache entry %s: %s...%n", entry, ex.getMessage());
+        }
+    }
+    
+    private static MessageDigest Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+    
+    private static String Hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        
+        return hex.toString();
+    }
+}
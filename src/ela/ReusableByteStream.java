@@ -0,0 +1,43 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A byte stream whose backing array is kept across reset() calls and can be read back
+ * without copying, used to hold encoded images in memory.
+ * 
+ * @author Robert Streetman
+ */
+class ReusableByteStream extends ByteArrayOutputStream {
+    
+    ReusableByteStream() {
+        super(1 << 16);
+    }
+    
+    /**
+     * Returns a stream over the bytes written so far, sharing this stream's buffer.
+     * 
+     * @return  InputStream over the current contents
+     */
+    ByteArrayInputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class collects process-wide instrumentation: a latency histogram per processing
+ * stage, image and byte counters, and the number of images in flight. The counters are
+ * lock-free, so they can stay on in production. They can be read over JMX under the "ela"
+ * domain, or as a periodic JSON log line.
+ * 
+ * @author Robert Streetman
+ */
+public class RuntimeStats implements RuntimeStatsMBean {
+    /**
+     * Timed stages. The difference/mask kernel is fused, so DIFFERENCE is the error scan
+     * (max-difference pass, metrics and sweep statistics) and MASK is the pass that scales
+     * the error and applies the threshold, writing the output pixels or flagging regions.
+     */
+    public enum Stage {
+        DECODE, RECOMPRESS, DIFFERENCE, MASK, ENCODE;
+        
+        public String Key() {
+            return name().toLowerCase();
+        }
+    }
+    
+    private static final RuntimeStats GLOBAL = new RuntimeStats();
+    
+    private final LatencyHistogram[] STAGES = new LatencyHistogram[Stage.values().length];
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cached = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private boolean registered = false;
+    
+    RuntimeStats() {
+        for (int i = 0; i < STAGES.length; i++) {
+            STAGES[i] = new LatencyHistogram();
+        }
+    }
+    
+    /**
+     * Returns the instance every part of the library records into.
+     * 
+     * @return  Process-wide statistics
+     */
+    public static RuntimeStats Global() {
+        return GLOBAL;
+    }
+    
+    /**
+     * Records a stage that started at the given time and just ended.
+     * 
+     * @param stage     Stage that ran
+     * @param startTime System.nanoTime() when it started
+     */
+    public void Time(Stage stage, long startTime) {
+        STAGES[stage.ordinal()].Record(System.nanoTime() - startTime);
+    }
+    
+    public LatencyHistogram Latency(Stage stage) {
+        return STAGES[stage.ordinal()];
+    }
+    
+    /**
+     * Counts an image as started, call Finished when its result is known.
+     */
+    public void Started() {
+        inFlight.incrementAndGet();
+    }
+    
+    /**
+     * Counts an image as done.
+     * 
+     * @param result    Outcome of the image
+     */
+    public void Finished(ELAResult result) {
+        inFlight.decrementAndGet();
+        processed.incrementAndGet();
+        
+        if (result.FromCache()) {
+            cached.incrementAndGet();
+        } else if (!result.Success()) {
+            failed.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Takes back a Started call for an image that was never run.
+     */
+    public void Cancelled() {
+        inFlight.decrementAndGet();
+    }
+    
+    public void AddBytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+    
+    public void AddBytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+    
+    /**
+     * Clears the stage histograms and the image and byte counters, e.g. after a warmup.
+     * Images in flight are still counted.
+     */
+    @Override
+    public void Reset() {
+        for (LatencyHistogram stage : STAGES) {
+            stage.Reset();
+        }
+        
+        processed.set(0);
+        failed.set(0);
+        cached.set(0);
+        bytesRead.set(0);
+        bytesWritten.set(0);
+    }
+    
+    @Override
+    public long getProcessed() {
+        return processed.get();
+    }
+    
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+    
+    @Override
+    public long getCached() {
+        return cached.get();
+    }
+    
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+    
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+    
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+    
+    /**
+     * Returns a snapshot of every counter and stage histogram as one line of JSON.
+     * 
+     * @return  JSON object, no trailing newline
+     */
+    @Override
+    public String getLogLine() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":").append(System.currentTimeMillis())
+                .append(",\"processed\":").append(getProcessed())
+                .append(",\"failed\":").append(getFailed())
+                .append(",\"cached\":").append(getCached())
+                .append(",\"in_flight\":").append(getInFlight())
+                .append(",\"bytes_read\":").append(getBytesRead())
+                .append(",\"bytes_written\":").append(getBytesWritten());
+        
+        for (Stage stage : Stage.values()) {
+            json.append(",\"").append(stage.Key()).append("\":").append(Latency(stage).ToJSON());
+        }
+        
+        return json.append('}').toString();
+    }
+    
+    /**
+     * Registers the counters as ela:type=RuntimeStats and each stage histogram as
+     * ela:type=Stage,name=[stage] with the platform MBean server. Safe to call more than once.
+     */
+    public synchronized void Register() {
+        if (registered) {
+            return;
+        }
+        
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("ela:type=RuntimeStats"));
+            
+            for (Stage stage : Stage.values()) {
+                server.registerMBean(Latency(stage), new ObjectName("ela:type=Stage,name=" + stage.Key()));
+            }
+            
+            registered = true;
+        } catch (JMException ex) {
+            System.out.format("RuntimeStats: Error registering MBeans: %s...%n", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Prints the JSON log line every period on a daemon thread, until the JVM exits or the
+     * returned timer is cancelled.
+     * 
+     * @param periodMs  Time between lines
+     * @param out       Destination, e.g. System.err to keep it apart from normal output
+     * @return          Timer driving the log, cancel it to stop
+     */
+    public Timer StartLog(long periodMs, final PrintStream out) {
+        Timer timer = new Timer("ela-stats-log", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                out.println(getLogLine());
+            }
+        }, periodMs, periodMs);
+        
+        return timer;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+/**
+ * JMX view of the process-wide ELA counters. Stage latencies are registered separately,
+ * one LatencyHistogramMBean per stage.
+ * 
+ * @author Robert Streetman
+ */
+public interface RuntimeStatsMBean {
+    long getProcessed();
+    
+    long getFailed();
+    
+    long getCached();
+    
+    int getInFlight();
+    
+    long getBytesRead();
+    
+    long getBytesWritten();
+    
+    String getLogLine();
+    
+    void Reset();
+}
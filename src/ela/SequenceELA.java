@@ -0,0 +1,458 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * This class runs ELA over the frames of a video, given as a Motion-JPEG file or a folder
+ * of numbered frame images. Frames are analyzed in parallel, each worker in its own
+ * reusable buffers, and collected in order for temporal statistics: each frame's error
+ * level, and how far its block error map moved from the previous frame's. A frame whose
+ * numbers jump against the recent frames is flagged as possibly spliced, and only flagged
+ * frames get output images. Only a few frames are held at once, whatever the length of
+ * the sequence.
+ *
+ * @author Robert Streetman
+ */
+public class SequenceELA {
+    public static final String CSV_HEADER = "frame,name,width,height,mean_error,p99_error,max_error,"
+            + "delta,score_z,delta_z,flagged";
+    private static final int WINDOW = 31;           //Recent frames a frame is compared against
+    private static final int MIN_HISTORY = 5;       //Frames seen before any can be flagged
+    private static final double SPLICE_Z = 5.0;     //Robust z-score above which a frame is flagged
+    
+    private final ELAOptions OPTIONS;
+    private final int THREADS;
+    private final BatchTally TALLY = new BatchTally();
+    private final Window SCORES = new Window();
+    private final Window DELTAS = new Window();
+    private BlockErrorMap previous = null;
+    private int flagged = 0;
+    
+    /**
+     * Creates a sequence run.
+     *
+     * @param options   Analysis and output settings
+     * @param threads   Frames analyzed at once
+     */
+    public SequenceELA(ELAOptions options, int threads) {
+        OPTIONS = options;
+        THREADS = threads;
+    }
+    
+    /**
+     * Analyzes every frame, writing one CSV row per frame to base + "_frames.csv" and the
+     * selected output images of flagged frames to base + "_frameNNNNNN".
+     *
+     * @param input Motion-JPEG file, or folder of frames in name order (numbers compared by value)
+     * @param base  Output name without suffix
+     * @return      Summary of the frames processed
+     * @throws IOException  If the input or the CSV can't be opened
+     * @throws InterruptedException If interrupted while waiting for a frame
+     */
+    public BatchSummary Run(File input, String base) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        Deque<Future<FrameResult>> inFlight = new ArrayDeque<>();
+        File[] files = input.isDirectory() ? Frames(input) : null;
+        
+        try (Writer csv = Files.newBufferedWriter(Paths.get(base + "_frames.csv"), StandardCharsets.UTF_8);
+                MJPEGSplitter splitter = (files == null) ? new MJPEGSplitter(new FileInputStream(input)) : null) {
+            csv.write(CSV_HEADER + "\n");
+            
+            for (int index = 0; ; index++) {
+                final Frame frame;
+                
+                if (files != null) {
+                    if (index >= files.length) {
+                        break;
+                    }
+                    
+                    frame = new Frame(index, files[index].getName(), files[index], null);
+                } else {
+                    String name = String.format("%s#%d", input.getName(), index);
+                    byte[] bytes;
+                    
+                    try {
+                        bytes = splitter.Next();
+                    } catch (EOFException ex) {
+                        //Cut off recording, keep what came before
+                        RuntimeStats.Global().Started();
+                        record(ELAResult.Failed(name, ex.getMessage(), 0));
+                        break;
+                    }
+                    
+                    if (bytes == null) {
+                        break;
+                    }
+                    
+                    frame = new Frame(index, name, null, bytes);
+                }
+                
+                //Frames complete out of order but are collected in order, a bounded number ahead
+                if (inFlight.size() >= THREADS * 2) {
+                    collect(take(inFlight.poll()), csv, base);
+                }
+                
+                RuntimeStats.Global().Started();
+                inFlight.add(executor.submit(new Callable<FrameResult>() {
+                    @Override
+                    public FrameResult call() {
+                        return analyze(frame);
+                    }
+                }));
+            }
+            
+            while (!inFlight.isEmpty()) {
+                collect(take(inFlight.poll()), csv, base);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        return TALLY.Summary();
+    }
+    
+    /**
+     * Returns the number of frames flagged so far.
+     *
+     * @return  Flagged frames
+     */
+    public int Flagged() {
+        return flagged;
+    }
+    
+    /**
+     * Computes a frame's block error map on a worker thread.
+     */
+    private FrameResult analyze(Frame frame) {
+        long startTime = System.nanoTime();
+        
+        try {
+            BufferPool pool = BufferPool.Local();
+            BufferedImage image = frame.Decode(pool);
+            int width = image.getWidth();
+            int height = image.getHeight();
+            
+            RuntimeStats.Global().Time(RuntimeStats.Stage.DECODE, startTime);
+            RuntimeStats.Global().AddBytesRead(frame.Length());
+            
+            BufferedImage compressed = ELA.GetCompressedImage(image, OPTIONS.Quality(),
+                    pool.Image(BufferPool.Slot.COMPRESSED, width, height));
+            
+            if (compressed == null) {
+                throw new IOException("Could not recompress frame");
+            }
+            
+            BlockErrorMap map = ELA.GetBlockErrorMap(
+                    ImageUtils.RGBPacked(image, pool.Raster(BufferPool.Slot.ORIGINAL_PIXELS, width, height)),
+                    ImageUtils.RGBPacked(compressed, pool.Raster(BufferPool.Slot.COMPRESSED_PIXELS, width, height)));
+            
+            return new FrameResult(frame, map, null, System.nanoTime() - startTime);
+        } catch (IOException ex) {
+            return new FrameResult(frame, null, ex.getMessage(), System.nanoTime() - startTime);
+        } catch (RuntimeException ex) {
+            return new FrameResult(frame, null, ex.toString(), System.nanoTime() - startTime);
+        }
+    }
+    
+    /**
+     * Adds a frame's row to the CSV, in frame order, and writes its images if flagged.
+     */
+    private void collect(FrameResult result, Writer csv, String base) throws IOException {
+        Frame frame = result.FRAME;
+        
+        if (result.ERROR != null) {
+            //No delta across a frame that couldn't be read
+            previous = null;
+            record(ELAResult.Failed(frame.NAME, result.ERROR, result.DURATION));
+            return;
+        }
+        
+        BlockErrorMap map = result.MAP;
+        double mean = map.Mean();
+        double delta = (previous != null && previous.Width() == map.Width() && previous.Height() == map.Height())
+                ? MeanAbsoluteDelta(previous, map) : Double.NaN;
+        
+        //A spliced-in frame can be cleaner or noisier than its neighbours, but only its change can jump
+        double scoreZ = Math.abs(SCORES.Z(mean));
+        double deltaZ = Double.isNaN(delta) ? Double.NaN : DELTAS.Z(delta);
+        boolean flag = scoreZ > SPLICE_Z || deltaZ > SPLICE_Z;
+        
+        SCORES.Add(mean);
+        
+        if (!Double.isNaN(delta)) {
+            DELTAS.Add(delta);
+        }
+        
+        previous = map;
+        csv.write(String.format(Locale.ROOT, "%d,\"%s\",%d,%d,%.4f,%.4f,%.4f,%s,%s,%s,%b\n",
+                frame.INDEX, frame.NAME.replace("\"", "\"\""), map.Width(), map.Height(),
+                mean, map.Percentile(99), map.Max(), CSVNumber(delta), CSVNumber(scoreZ), CSVNumber(deltaZ), flag));
+        
+        if (flag) {
+            flagged++;
+            write(frame, String.format("%s_frame%06d", base, frame.INDEX));
+        }
+        
+        record(ELAResult.Succeeded(frame.NAME, result.DURATION));
+    }
+    
+    /**
+     * Runs the full analysis again on a flagged frame and writes its selected outputs.
+     */
+    private void write(Frame frame, String name) {
+        if (!OPTIONS.OutputDifference() && !OPTIONS.OutputMasked()) {
+            return;
+        }
+        
+        try {
+            BufferPool pool = BufferPool.Local();
+            BufferedImage image = frame.Decode(pool);
+            int width = image.getWidth();
+            int height = image.getHeight();
+            BufferedImage imgCompressed = ELA.GetCompressedImage(image, OPTIONS.Quality(),
+                    pool.Image(BufferPool.Slot.COMPRESSED, width, height));
+            
+            if (imgCompressed == null) {
+                throw new IOException("Could not recompress frame");
+            }
+            
+            RGBRaster original = ImageUtils.RGBPacked(image, pool.Raster(BufferPool.Slot.ORIGINAL_PIXELS, width, height));
+            RGBRaster compressed = ImageUtils.RGBPacked(imgCompressed, pool.Raster(BufferPool.Slot.COMPRESSED_PIXELS, width, height));
+            RGBRaster difference = pool.Raster(BufferPool.Slot.DIFFERENCE, width, height);
+            RGBRaster masked = pool.Raster(BufferPool.Slot.MASKED, width, height);
+            ELA.GetDifferenceAndMask(original, compressed, OPTIONS.MaskColor(), OPTIONS.Threshold(), 1,
+                    difference, masked);
+            OutputWriter.Write(difference, masked, name, OPTIONS);
+        } catch (IOException ex) {
+            System.out.format("SequenceELA: Error writing flagged frame %s: %s...%n", frame.NAME, ex.getMessage());
+        }
+    }
+    
+    private void record(ELAResult result) {
+        TALLY.Record(result);
+        RuntimeStats.Global().Finished(result);
+    }
+    
+    private static FrameResult take(Future<FrameResult> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            //analyze() reports its own failures, this is an Error escaping a worker
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+    
+    /**
+     * Returns the mean absolute difference between two block error maps of the same size.
+     */
+    private static double MeanAbsoluteDelta(BlockErrorMap a, BlockErrorMap b) {
+        float[] x = a.Errors();
+        float[] y = b.Errors();
+        double sum = 0;
+        
+        for (int i = 0; i < x.length; i++) {
+            sum += Math.abs(x[i] - y[i]);
+        }
+        
+        return sum / x.length;
+    }
+    
+    private static String CSVNumber(double value) {
+        return Double.isNaN(value) ? "" : String.format(Locale.ROOT, "%.4f", value);
+    }
+    
+    /**
+     * Lists the image files directly in a folder, in name order with digit runs compared
+     * by value, so frame_9 comes before frame_10 with or without zero padding.
+     */
+    private static File[] Frames(File folder) throws IOException {
+        File[] files = folder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && DirectoryWalker.IsImage(file.toPath());
+            }
+        });
+        
+        if (files == null) {
+            throw new IOException("Cannot list " + folder);
+        }
+        
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return CompareNatural(a.getName(), b.getName());
+            }
+        });
+        
+        return files;
+    }
+    
+    static int CompareNatural(String a, String b) {
+        int i = 0;
+        int j = 0;
+        
+        while (i < a.length() && j < b.length()) {
+            char x = a.charAt(i);
+            char y = b.charAt(j);
+            
+            if (Character.isDigit(x) && Character.isDigit(y)) {
+                int startA = i;
+                int startB = j;
+                
+                while (i < a.length() && Character.isDigit(a.charAt(i))) {
+                    i++;
+                }
+                
+                while (j < b.length() && Character.isDigit(b.charAt(j))) {
+                    j++;
+                }
+                
+                //Compare by value: drop leading zeros, then longer is larger, then digit by digit
+                String numberA = a.substring(startA, i).replaceFirst("^0+(?=.)", "");
+                String numberB = b.substring(startB, j).replaceFirst("^0+(?=.)", "");
+                int order = (numberA.length() != numberB.length())
+                        ? Integer.compare(numberA.length(), numberB.length()) : numberA.compareTo(numberB);
+                
+                if (order != 0) {
+                    return order;
+                }
+            } else {
+                if (x != y) {
+                    return Character.compare(x, y);
+                }
+                
+                i++;
+                j++;
+            }
+        }
+        
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+    
+    /**
+     * One frame, either a file or bytes cut from a stream.
+     */
+    private static final class Frame {
+        private final int INDEX;
+        private final String NAME;
+        private final File FILE;
+        private final byte[] BYTES;
+        
+        private Frame(int index, String name, File file, byte[] bytes) {
+            INDEX = index;
+            NAME = name;
+            FILE = file;
+            BYTES = bytes;
+        }
+        
+        private BufferedImage Decode(BufferPool pool) throws IOException {
+            if (FILE != null) {
+                return ImageUtils.Read(FILE, pool);
+            }
+            
+            try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(BYTES))) {
+                return ImageUtils.Read(in, pool);
+            }
+        }
+        
+        private long Length() {
+            return (FILE != null) ? FILE.length() : BYTES.length;
+        }
+    }
+    
+    private static final class FrameResult {
+        private final Frame FRAME;
+        private final BlockErrorMap MAP;
+        private final String ERROR;
+        private final long DURATION;
+        
+        private FrameResult(Frame frame, BlockErrorMap map, String error, long duration) {
+            FRAME = frame;
+            MAP = map;
+            ERROR = error;
+            DURATION = duration;
+        }
+    }
+    
+    /**
+     * The last WINDOW values of a statistic, scoring new values by their distance from
+     * the median in units of the (normal-scaled) median absolute deviation.
+     */
+    private static final class Window {
+        private final double[] VALUES = new double[WINDOW];
+        private final double[] SCRATCH = new double[WINDOW];
+        private int count = 0;
+        private int next = 0;
+        
+        private void Add(double value) {
+            VALUES[next] = value;
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+        }
+        
+        private double Z(double value) {
+            if (count < MIN_HISTORY) {
+                return Double.NaN;
+            }
+            
+            double median = Median(VALUES);
+            
+            for (int i = 0; i < count; i++) {
+                SCRATCH[i] = Math.abs(VALUES[i] - median);
+            }
+            
+            double mad = Median(SCRATCH);
+            
+            //Static footage can have almost no spread, so small relative changes aren't outliers
+            double spread = Math.max(1.4826 * mad, 0.01 + 0.02 * Math.abs(median));
+            
+            return (value - median) / spread;
+        }
+        
+        private double Median(double[] values) {
+            double[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            
+            return (count % 2 == 1) ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+        }
+    }
+}
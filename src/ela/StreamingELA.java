@@ -0,0 +1,458 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Vector;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * This class runs error-level analysis on images too large to decode at once. The source is
+ * decoded in horizontal strips with ImageReadParam.setSourceRegion(), each strip is
+ * recompressed and diffed on its own, and the outputs are written as PNG or gray PGM one
+ * strip at a time, so peak memory depends on the strip size rather than the image size.
+ * 
+ * Strips start and end on MCU_ROWS boundaries and are recompressed with one extra MCU row
+ * above and below, so every JPEG block and chroma upsampling neighbourhood matches the
+ * full-image recompression and the result is identical to it.
+ * 
+ * The global max difference needs its own pass, so the source is decoded three times (max,
+ * difference, masked), each time in one forward sweep (see StripSweep) that hands strips
+ * over in order as the decoder reaches them. Formats that can't be swept (interlaced PNG,
+ * TIFF) fall back to a region read per strip, which TIFF serves from the strips or tiles it
+ * needs. With ELAOptions.OffHeap() the first pass also copies each strip's original and
+ * recompressed pixels to off-heap stores, direct memory or a memory-mapped scratch file, and
+ * the outputs are computed from those: one decode, with the heap still holding only a strip.
+ * 
+ * @author Robert Streetman
+ */
+public class StreamingELA {
+    public static final int MCU_ROWS = 16;              //Largest JPEG MCU height (4:2:0 subsampling)
+    private static final int STRIP_PIXELS = 1 << 22;    //Default strip size when rows aren't given
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+    
+    private final File INPUT;
+    private final ELAOptions OPTIONS;
+    
+    /**
+     * Creates a streaming analysis of one image file.
+     * 
+     * @param input     Image file to analyze
+     * @param options   Analysis settings, StripRows() picks the strip height
+     */
+    public StreamingELA(File input, ELAOptions options) {
+        INPUT = input;
+        OPTIONS = options;
+    }
+    
+    /**
+     * Runs the analysis, writing the difference and masked images in the format
+     * OutputWriter.Format() picks, PNG or gray. Each output skipped saves one decode of the
+     * source.
+     * 
+     * @param differenceOut Destination of the difference image, or null to skip it
+     * @param maskedOut     Destination of the masked image, or null to skip it
+     * @throws IOException  If the image can't be read, recompressed or written
+     */
+    public void Run(File differenceOut, File maskedOut) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(INPUT)) {
+            if (in == null) {
+                throw new IOException("Cannot open " + INPUT);
+            }
+            
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            
+            if (!readers.hasNext()) {
+                throw new IOException("No decoder for image format");
+            }
+            
+            ImageReader reader = readers.next();
+            
+            try {
+                reader.setInput(in, false, true);
+                
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int stripRows = StripRows(width);
+                int maxDiff = 0;
+                OffHeapPixels original = null;
+                OffHeapPixels compressed = null;
+                
+                if (OPTIONS.OffHeap()) {
+                    BufferPool pool = BufferPool.Local();
+                    original = pool.OffHeap(BufferPool.Slot.ORIGINAL_PIXELS, (long) width * height, OPTIONS.ScratchDir());
+                    compressed = pool.OffHeap(BufferPool.Slot.COMPRESSED_PIXELS, (long) width * height, OPTIONS.ScratchDir());
+                }
+                
+                //Pass 1: global max difference, needed to scale every strip the same way
+                boolean sequential;
+                
+                try (StripSweep sweep = StripSweep.Open(reader, width, height, stripRows, MCU_ROWS)) {
+                    sequential = (sweep != null);
+                    maxDiff = MaxDifference(reader, sweep, width, height, stripRows, original, compressed);
+                } catch (StripSweep.SweepException ex) {
+                    //Rows out of order or a buffer the decoder won't take: read each strip's region
+                    sequential = false;
+                    maxDiff = MaxDifference(reader, null, width, height, stripRows, original, compressed);
+                }
+                
+                double scale = ELA.Scale(maxDiff);
+                
+                //Pass 2 and 3: the writer pulls rows, strips are computed as it reaches them
+                try {
+                    if (differenceOut != null) {
+                        WriteOutput(reader, sequential && original == null, width, height, stripRows, scale,
+                                false, original, compressed, differenceOut);
+                    }
+                    
+                    if (maskedOut != null) {
+                        WriteOutput(reader, sequential && original == null, width, height, stripRows, scale,
+                                true, original, compressed, maskedOut);
+                    }
+                } catch (IllegalStateException ex) {
+                    if (ex.getCause() instanceof IOException) {
+                        throw (IOException) ex.getCause();
+                    }
+                    
+                    throw ex;
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
+    /**
+     * Returns the strip height: the configured one, or enough rows for about STRIP_PIXELS
+     * pixels, rounded to whole MCU rows either way.
+     */
+    private int StripRows(int width) {
+        int rows = (OPTIONS.StripRows() > 0) ? OPTIONS.StripRows() : STRIP_PIXELS / Math.max(1, width);
+        
+        return Math.max(MCU_ROWS, (rows / MCU_ROWS) * MCU_ROWS);
+    }
+    
+    /**
+     * Finds the largest band difference, strip by strip, copying the strips to the off-heap
+     * stores when given.
+     * 
+     * @param sweep Forward sweep over the strips, or null to read each strip's region
+     */
+    private int MaxDifference(ImageReader reader, StripSweep sweep, int width, int height, int stripRows,
+            OffHeapPixels original, OffHeapPixels compressed) throws IOException {
+        int maxDiff = 0;
+        
+        for (int row = 0; row < height; row += stripRows) {
+            Strip strip = NextStrip(reader, sweep, width, height, row, Math.min(row + stripRows, height));
+            maxDiff = Math.max(maxDiff, ELA.MaxDifference(strip.ORIGINAL, strip.COMPRESSED, strip.FROM, strip.TO));
+            
+            //Keep the strip's own rows, context rows belong to its neighbours
+            if (original != null) {
+                original.Put((long) row * width, strip.ORIGINAL, strip.FROM, strip.TO - strip.FROM);
+                compressed.Put((long) row * width, strip.COMPRESSED, strip.FROM, strip.TO - strip.FROM);
+            }
+        }
+        
+        return maxDiff;
+    }
+    
+    /**
+     * Writes one output, decoding the source again in a forward sweep when sweep is set and
+     * the off-heap stores aren't given.
+     */
+    private void WriteOutput(ImageReader reader, boolean sweep, int width, int height, int stripRows,
+            double scale, boolean masked, OffHeapPixels original, OffHeapPixels compressed, File out)
+            throws IOException {
+        try (StripSweep strips = sweep ? StripSweep.Open(reader, width, height, stripRows, MCU_ROWS) : null) {
+            OutputWriter.Write(new StripImage(reader, strips, width, height, stripRows, scale, masked,
+                    original, compressed), out, OutputWriter.Format(OPTIONS));
+        }
+    }
+    
+    /**
+     * Returns the next strip of a sweep, or decodes rows [rowFrom, rowTo) on their own when
+     * sweep is null, and recompresses it.
+     */
+    private Strip NextStrip(ImageReader reader, StripSweep sweep, int width, int height, int rowFrom, int rowTo)
+            throws IOException {
+        int readFrom = Math.max(0, rowFrom - MCU_ROWS);
+        BufferedImage image;
+        
+        if (sweep != null) {
+            image = sweep.Next();
+        } else {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, readFrom, width, Math.min(height, rowTo + MCU_ROWS) - readFrom));
+            image = reader.read(0, param);
+        }
+        
+        BufferedImage compressed = OPTIONS.Spill()
+                ? ELA.GetCompressedImage(image, INPUT.getPath(), OPTIONS.Quality())
+                : ELA.GetCompressedImage(image, OPTIONS.Quality());
+        
+        if (compressed == null) {
+            throw new IOException("Could not recompress rows " + rowFrom + "-" + rowTo);
+        }
+        
+        return new Strip(ImageUtils.RGBPacked(image).Pixels(), ImageUtils.RGBPacked(compressed).Pixels(),
+                (rowFrom - readFrom) * width, (rowTo - readFrom) * width);
+    }
+    
+    /**
+     * Original and recompressed pixels of one strip with its context rows. Only pixel
+     * indices [FROM, TO) belong to the strip itself.
+     */
+    private static class Strip {
+        private final int[] ORIGINAL;
+        private final int[] COMPRESSED;
+        private final int FROM;
+        private final int TO;
+        
+        Strip(int[] original, int[] compressed, int from, int to) {
+            ORIGINAL = original;
+            COMPRESSED = compressed;
+            FROM = from;
+            TO = to;
+        }
+    }
+    
+    /**
+     * Output image whose pixels are computed strip by strip as they are requested, from the
+     * off-heap stores when given and from the sweep or a region read of the strip otherwise.
+     * Only the most recently used strip is kept, and a sweep only moves forward, so rows have
+     * to be requested top to bottom as the writers do.
+     */
+    private class StripImage implements RenderedImage {
+        private final ImageReader READER;
+        private final StripSweep SWEEP;
+        private final int WIDTH;
+        private final int HEIGHT;
+        private final int STRIP_ROWS;
+        private final int[] SCALE_TABLE;
+        private final boolean MASKED;
+        private final OffHeapPixels ORIGINAL;
+        private final OffHeapPixels COMPRESSED;
+        private int cachedStrip = -1;
+        private int[] cachedPixels;
+        
+        StripImage(ImageReader reader, StripSweep sweep, int width, int height, int stripRows, double scale,
+                boolean masked, OffHeapPixels original, OffHeapPixels compressed) {
+            READER = reader;
+            SWEEP = sweep;
+            WIDTH = width;
+            HEIGHT = height;
+            STRIP_ROWS = stripRows;
+            SCALE_TABLE = ELA.ScaleTable(scale);
+            MASKED = masked;
+            ORIGINAL = original;
+            COMPRESSED = compressed;
+        }
+        
+        /**
+         * Copies rows [rowFrom, rowTo) back from the off-heap stores.
+         */
+        private Strip LoadStrip(int rowFrom, int rowTo) {
+            int count = (rowTo - rowFrom) * WIDTH;
+            int[] original = new int[count];
+            int[] compressed = new int[count];
+            
+            ORIGINAL.Get((long) rowFrom * WIDTH, original, 0, count);
+            COMPRESSED.Get((long) rowFrom * WIDTH, compressed, 0, count);
+            
+            return new Strip(original, compressed, 0, count);
+        }
+        
+        /**
+         * Returns the output pixels of strip index, rows [index * STRIP_ROWS, ...).
+         */
+        private int[] StripPixels(int index) {
+            if (index != cachedStrip) {
+                int rowFrom = index * STRIP_ROWS;
+                int rowTo = Math.min(rowFrom + STRIP_ROWS, HEIGHT);
+                Strip strip;
+                
+                if (SWEEP != null && index != cachedStrip + 1) {
+                    throw new IllegalStateException("Rows of strip " + index + " requested after strip " + cachedStrip);
+                }
+                
+                try {
+                    strip = (ORIGINAL != null) ? LoadStrip(rowFrom, rowTo)
+                            : NextStrip(READER, SWEEP, WIDTH, HEIGHT, rowFrom, rowTo);
+                } catch (IOException ex) {
+                    //RenderedImage can't throw checked exceptions, ImageIO.write reports this
+                    throw new IllegalStateException(ex.getMessage(), ex);
+                }
+                
+                int[] diff = new int[strip.ORIGINAL.length];
+                int[] masked = MASKED ? new int[strip.ORIGINAL.length] : null;
+                
+                ELA.DifferenceRange(strip.ORIGINAL, strip.COMPRESSED, diff, masked, SCALE_TABLE,
+                        RGBRaster.Pack(OPTIONS.MaskColor()), OPTIONS.Threshold(), strip.FROM, strip.TO);
+                cachedPixels = new int[strip.TO - strip.FROM];
+                System.arraycopy(MASKED ? masked : diff, strip.FROM, cachedPixels, 0, cachedPixels.length);
+                cachedStrip = index;
+            }
+            
+            return cachedPixels;
+        }
+        
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle bounds = rect.intersection(new Rectangle(0, 0, WIDTH, HEIGHT));
+            WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(Math.max(1, bounds.width * bounds.height)),
+                    bounds.width, bounds.height, bounds.width, RGB_MODEL.getMasks(), new Point(bounds.x, bounds.y));
+            int[] out = ((DataBufferInt) raster.getDataBuffer()).getData();
+            
+            for (int row = bounds.y; row < bounds.y + bounds.height; row++) {
+                int[] pixels = StripPixels(row / STRIP_ROWS);
+                int src = (row % STRIP_ROWS) * WIDTH + bounds.x;
+                
+                System.arraycopy(pixels, src, out, (row - bounds.y) * bounds.width, bounds.width);
+            }
+            
+            return raster;
+        }
+        
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, WIDTH, HEIGHT));
+        }
+        
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            int rowFrom = tileY * STRIP_ROWS;
+            
+            return getData(new Rectangle(0, rowFrom, WIDTH, Math.min(STRIP_ROWS, HEIGHT - rowFrom)));
+        }
+        
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                return (WritableRaster) getData();
+            }
+            
+            raster.setRect(getData(raster.getBounds()));
+            
+            return raster;
+        }
+        
+        @Override
+        public ColorModel getColorModel() {
+            return RGB_MODEL;
+        }
+        
+        @Override
+        public SampleModel getSampleModel() {
+            return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, WIDTH,
+                    STRIP_ROWS, RGB_MODEL.getMasks());
+        }
+        
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+        
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+        
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+        
+        @Override
+        public int getWidth() {
+            return WIDTH;
+        }
+        
+        @Override
+        public int getHeight() {
+            return HEIGHT;
+        }
+        
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+        
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+        
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+        
+        @Override
+        public int getNumYTiles() {
+            return (HEIGHT + STRIP_ROWS - 1) / STRIP_ROWS;
+        }
+        
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+        
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+        
+        @Override
+        public int getTileWidth() {
+            return WIDTH;
+        }
+        
+        @Override
+        public int getTileHeight() {
+            return STRIP_ROWS;
+        }
+        
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+        
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
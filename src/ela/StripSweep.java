@@ -0,0 +1,398 @@
+/**
+ * Copyright 2017 Robert Streetman
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package ela;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * This class decodes an image top to bottom in one read and hands it out as horizontal
+ * strips, in order, each with CONTEXT rows above and below. The reader decodes into a
+ * destination whose data buffer only holds the rows of the strip being filled; when the
+ * decoder moves past them the strip is copied out and the buffer slides down. Decoding runs
+ * on its own thread, one strip ahead of the consumer.
+ * 
+ * Strips are images of the decoder's default type, the same as a region read of their rows
+ * returns, so results don't depend on how the strips were read. Only row-ordered layouts
+ * with byte or short samples in one bank are swept (Open() returns null otherwise). Next()
+ * throws SweepException when the decoder can't be swept: it goes back to an earlier row, as
+ * interlaced PNG and tiled TIFF do, or won't decode into this buffer, as TIFF won't. Strips
+ * handed out before that may be incomplete, so the caller has to start over with region
+ * reads, which also report what was wrong if the image itself is broken.
+ * 
+ * Raster indices are ints, so images of more than about 2^31 samples are read in bands of
+ * strips, one source region per band.
+ * 
+ * @author Robert Streetman
+ */
+final class StripSweep implements Closeable {
+    private final ImageReader READER;
+    private final ImageTypeSpecifier TYPE;
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final int STRIP_ROWS;
+    private final int CONTEXT;
+    private final int STRIDE;           //Samples per row
+    private final int BAND_STRIPS;
+    private final BlockingQueue<Object> STRIPS = new ArrayBlockingQueue<>(1);
+    private final Thread THREAD;
+    private int handedOut = 0;
+    private volatile boolean closed = false;
+    
+    /**
+     * Starts decoding, unless the decoder's default image layout can't be swept.
+     * 
+     * @param reader    Reader with its input set, used only by the sweep until it is closed
+     * @param width     Image width
+     * @param height    Image height
+     * @param stripRows Rows per strip
+     * @param context   Extra rows decoded above and below each strip
+     * @return          Running sweep, or null to read the strips some other way
+     * @throws IOException  If the reader can't describe the image
+     */
+    static StripSweep Open(ImageReader reader, int width, int height, int stripRows, int context)
+            throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        
+        if (!types.hasNext()) {
+            return null;
+        }
+        
+        ImageTypeSpecifier type = types.next();
+        SampleModel model = type.getSampleModel(width, 1);
+        
+        if (!(model instanceof ComponentSampleModel) || (model.getDataType() != DataBuffer.TYPE_BYTE
+                && model.getDataType() != DataBuffer.TYPE_USHORT)) {
+            return null;
+        }
+        
+        for (int bank : ((ComponentSampleModel) model).getBankIndices()) {
+            if (bank != 0) {
+                return null;
+            }
+        }
+        
+        //Strips are copied out with one arraycopy, their images must lay rows out the same way
+        BufferedImage probe = type.createBufferedImage(width, 1);
+        DataBuffer buffer = probe.getRaster().getDataBuffer();
+        int stride = ((ComponentSampleModel) model).getScanlineStride();
+        long bandRows = (Integer.MAX_VALUE - 1) / Math.max(1, stride);
+        
+        if (!model.equals(probe.getSampleModel()) || buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                || bandRows < stripRows + 2L * context) {
+            return null;
+        }
+        
+        return new StripSweep(reader, type, width, height, stripRows, context, stride,
+                (int) ((bandRows - 2 * context) / stripRows));
+    }
+    
+    private StripSweep(ImageReader reader, ImageTypeSpecifier type, int width, int height, int stripRows,
+            int context, int stride, int bandStrips) {
+        READER = reader;
+        TYPE = type;
+        WIDTH = width;
+        HEIGHT = height;
+        STRIP_ROWS = stripRows;
+        CONTEXT = context;
+        STRIDE = stride;
+        BAND_STRIPS = bandStrips;
+        THREAD = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Decode();
+            }
+        }, "ela-strip-decode");
+        THREAD.setDaemon(true);
+        THREAD.start();
+    }
+    
+    /**
+     * Returns the next strip, rows [max(0, i * stripRows - context), min(height, (i + 1) *
+     * stripRows + context)) of strip i.
+     * 
+     * @return  Strip image of the decoder's default type
+     * @throws SweepException  If decoding fails
+     */
+    BufferedImage Next() throws IOException {
+        if (handedOut == StripCount()) {
+            throw new IllegalStateException("All " + handedOut + " strips were handed out");
+        }
+        
+        Object next;
+        
+        try {
+            next = STRIPS.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for strip " + handedOut);
+        }
+        
+        if (next instanceof IOException) {
+            throw (IOException) next;
+        } else if (next instanceof RuntimeException) {
+            throw (RuntimeException) next;
+        } else if (next instanceof Error) {
+            throw (Error) next;
+        }
+        
+        handedOut++;
+        
+        return (BufferedImage) next;
+    }
+    
+    /**
+     * Stops decoding if it hasn't finished and waits for the decoding thread, after which the
+     * reader can be used again.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        boolean interrupted = false;
+        
+        while (THREAD.isAlive()) {
+            THREAD.interrupt();
+            STRIPS.clear();
+            
+            try {
+                THREAD.join(100);
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        
+        STRIPS.clear();
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private int StripCount() {
+        return (HEIGHT + STRIP_ROWS - 1) / STRIP_ROWS;
+    }
+    
+    /**
+     * Decoding thread: reads every band and queues its strips, or the failure that ended it.
+     */
+    private void Decode() {
+        try {
+            for (int first = 0; first < StripCount(); first += BAND_STRIPS) {
+                ReadBand(first, Math.min(first + BAND_STRIPS, StripCount()));
+            }
+        } catch (CancellationException ex) {
+            //Closed while waiting to queue a strip
+        } catch (IOException | RuntimeException ex) {
+            Fail(new SweepException(ex));
+        } catch (Error ex) {
+            Fail(ex);
+        }
+    }
+    
+    private void Fail(Throwable ex) {
+        if (!closed) {
+            try {
+                STRIPS.put(ex);
+            } catch (InterruptedException e) {
+                //Closed, nobody is waiting for it
+            }
+        }
+    }
+    
+    /**
+     * Decodes strips [first, last) with one region read.
+     */
+    private void ReadBand(int first, int last) throws IOException {
+        int from = Math.max(0, first * STRIP_ROWS - CONTEXT);
+        int to = Math.min(HEIGHT, last * STRIP_ROWS + CONTEXT);
+        Window window = new Window(first, last, from, (to - from) * STRIDE);
+        WritableRaster raster = Raster.createWritableRaster(TYPE.getSampleModel(WIDTH, to - from), window, null);
+        BufferedImage destination = new BufferedImage(TYPE.getColorModel(), raster,
+                TYPE.getColorModel().isAlphaPremultiplied(), null);
+        ImageReadParam param = READER.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, from, WIDTH, to - from));
+        param.setDestination(destination);
+        
+        if (READER.read(0, param) != destination) {
+            throw new IOException("Decoder did not read into the strip buffer");
+        }
+        
+        window.Finish();
+    }
+    
+    /**
+     * Data buffer of one band's destination. It holds rows [windowFrom, windowTo) of the
+     * current strip, absolute image rows, in storage sized for the tallest strip window.
+     */
+    private class Window extends DataBuffer {
+        private final int BAND_FROM;    //Image row of the band's first row
+        private final int LAST;         //Strip after the band's last strip
+        private final byte[] BYTES;
+        private final short[] SHORTS;
+        private int strip;
+        private int windowFrom;
+        private int windowTo;
+        private int base;               //Buffer index of the window's first sample
+        private int row = -1;           //Row the decoder is writing and its index range
+        private int rowStart = 0;
+        private int rowEnd = 0;
+        
+        Window(int first, int last, int bandFrom, int size) {
+            super(TYPE.getSampleModel().getDataType(), size);
+            BAND_FROM = bandFrom;
+            LAST = last;
+            int capacity = (STRIP_ROWS + 2 * CONTEXT) * STRIDE;
+            BYTES = (dataType == TYPE_BYTE) ? new byte[capacity] : null;
+            SHORTS = (dataType == TYPE_BYTE) ? null : new short[capacity];
+            strip = first;
+            windowFrom = Math.max(0, first * STRIP_ROWS - CONTEXT);
+            windowTo = Math.min(HEIGHT, (first + 1) * STRIP_ROWS + CONTEXT);
+            base = (windowFrom - BAND_FROM) * STRIDE;
+        }
+        
+        @Override
+        public int getElem(int bank, int i) {
+            int j = i - base;
+            
+            if (j < 0 || j >= (windowTo - windowFrom) * STRIDE) {
+                return 0;
+            }
+            
+            return (BYTES != null) ? BYTES[j] & 0xff : SHORTS[j] & 0xffff;
+        }
+        
+        @Override
+        public void setElem(int bank, int i, int val) {
+            if (i >= rowEnd || i < rowStart) {
+                Seek(i);
+            }
+            
+            if (BYTES != null) {
+                BYTES[i - base] = (byte) val;
+            } else {
+                SHORTS[i - base] = (short) val;
+            }
+        }
+        
+        /**
+         * Moves to the row of buffer index i, handing out every strip the decoder has
+         * moved past.
+         */
+        private void Seek(int i) {
+            int next = BAND_FROM + i / STRIDE;
+            
+            if (next < row) {
+                throw new IllegalStateException("Decoder went back from row " + row + " to row " + next);
+            }
+            
+            while (next >= windowTo && strip < LAST - 1) {
+                HandOut();
+            }
+            
+            row = next;
+            rowStart = (row - BAND_FROM) * STRIDE;
+            rowEnd = rowStart + STRIDE;
+        }
+        
+        /**
+         * Hands out the strips left once the decoder is done.
+         */
+        void Finish() {
+            while (strip < LAST) {
+                HandOut();
+            }
+        }
+        
+        /**
+         * Copies the current strip into its own image, queues it, and slides the window to
+         * the next strip, keeping the rows the two share.
+         */
+        private void HandOut() {
+            int count = (windowTo - windowFrom) * STRIDE;
+            BufferedImage image = TYPE.createBufferedImage(WIDTH, windowTo - windowFrom);
+            DataBuffer target = image.getRaster().getDataBuffer();
+            
+            if (BYTES != null) {
+                byte[] data = ((DataBufferByte) target).getData();
+                System.arraycopy(BYTES, 0, data, 0, Math.min(count, data.length));
+            } else {
+                short[] data = ((DataBufferUShort) target).getData();
+                System.arraycopy(SHORTS, 0, data, 0, Math.min(count, data.length));
+            }
+            
+            try {
+                STRIPS.put(image);
+            } catch (InterruptedException ex) {
+                throw new CancellationException("Closed at strip " + strip);
+            }
+            
+            strip++;
+            
+            if (strip < LAST) {
+                int from = Math.max(0, strip * STRIP_ROWS - CONTEXT);
+                int shared = Math.max(0, windowTo - from) * STRIDE;
+                
+                if (BYTES != null) {
+                    System.arraycopy(BYTES, (from - windowFrom) * STRIDE, BYTES, 0, shared);
+                } else {
+                    System.arraycopy(SHORTS, (from - windowFrom) * STRIDE, SHORTS, 0, shared);
+                }
+                
+                windowFrom = from;
+                windowTo = Math.min(HEIGHT, (strip + 1) * STRIP_ROWS + CONTEXT);
+                base = (windowFrom - BAND_FROM) * STRIDE;
+            }
+        }
+    }
+    
+    /**
+     * Thrown when decoding the sweep fails.
+     */
+    static final class SweepException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        SweepException(Throwable cause) {
+            super(RootMessage(cause), cause);
+        }
+        
+        private static String RootMessage(Throwable ex) {
+            while (ex.getCause() != null) {
+                ex = ex.getCause();
+            }
+            
+            return ex.getMessage();
+        }
+    }
+}